@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.integration.common.utils.CaptureProfile;
+import org.wso2.carbon.integration.common.utils.ThreadAnalyser;
+import org.wso2.carbon.integration.common.utils.ThreadDumpSnapshot;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import javax.management.remote.rmi.RMIConnectorServer;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.rmi.server.RMIClientSocketFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Capture of the live threads of this VM with each capture profile, through the local
+ * ThreadMXBean, through an MXBean proxy of the in-process MBeanServer (open data conversion,
+ * no transport) and through an RMI connector on the loopback interface (conversion and
+ * serialization), which is how a remote VM is captured. Allocation per operation shows the
+ * payload each profile costs. For the RMI target the bytes the client receives are counted
+ * through its socket factory, and the reply size per capture is printed when the trial ends.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CaptureBenchmark {
+
+    private static final int STACK_DEPTH = 24;
+    private static final AtomicLong RECEIVED_BYTES = new AtomicLong();
+
+    @Param({"100", "1000", "10000"})
+    public int threadCount;
+
+    @Param({"local", "mbeanserver", "rmi"})
+    public String target;
+
+    @Param({"NAMES", "STATES", "TOP_FRAMES", "FULL"})
+    public CaptureProfile captureProfile;
+
+    private final ThreadAnalyser threadAnalyser = new ThreadAnalyser();
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ThreadMXBean threadMXBean;
+    private JMXConnectorServer connectorServer;
+    private JMXConnector connector;
+    private long captureCount;
+
+    @Setup
+    public void setUp() throws Exception {
+        final CountDownLatch started = new CountDownLatch(threadCount);
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    park(STACK_DEPTH);
+                }
+            }, "capture-benchmark-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        started.await();
+
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName threading = new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME);
+        if ("local".equals(target)) {
+            threadMXBean = ManagementFactory.getThreadMXBean();
+        } else if ("mbeanserver".equals(target)) {
+            threadMXBean = threadAnalyser.getThreadMXBeanObjects(threading, mBeanServer);
+        } else {
+            Map<String, Object> environment = new HashMap<String, Object>();
+            environment.put(RMIConnectorServer.RMI_CLIENT_SOCKET_FACTORY_ATTRIBUTE,
+                            new CountingClientSocketFactory());
+            connectorServer = JMXConnectorServerFactory.newJMXConnectorServer(
+                    new JMXServiceURL("rmi", "localhost", 0), environment, mBeanServer);
+            connectorServer.start();
+            connector = JMXConnectorFactory.connect(connectorServer.getAddress());
+            threadMXBean = threadAnalyser.getThreadMXBeanObjects(threading, connector.getMBeanServerConnection());
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        release.countDown();
+        if (connector != null) {
+            System.out.println("Reply bytes per capture: "
+                               + RECEIVED_BYTES.get() / Math.max(1, captureCount));
+            connector.close();
+        }
+        if (connectorServer != null) {
+            connectorServer.stop();
+        }
+    }
+
+    @Benchmark
+    public ThreadDumpSnapshot capture() {
+        captureCount++;
+        return threadAnalyser.capture(threadMXBean, captureProfile);
+    }
+
+    private void park(int depth) {
+        if (depth > 0) {
+            park(depth - 1);
+            return;
+        }
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Counts the bytes read by the client side of the RMI connector, which are the serialized
+     * replies plus a little RMI framing.
+     */
+    private static class CountingClientSocketFactory implements RMIClientSocketFactory, Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        public Socket createSocket(String host, int port) throws IOException {
+            return new Socket(host, port) {
+                @Override
+                public InputStream getInputStream() throws IOException {
+                    return new FilterInputStream(super.getInputStream()) {
+                        @Override
+                        public int read() throws IOException {
+                            int b = super.read();
+                            if (b >= 0) {
+                                RECEIVED_BYTES.incrementAndGet();
+                            }
+                            return b;
+                        }
+
+                        @Override
+                        public int read(byte[] bytes, int offset, int length) throws IOException {
+                            int count = super.read(bytes, offset, length);
+                            if (count > 0) {
+                                RECEIVED_BYTES.addAndGet(count);
+                            }
+                            return count;
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof CountingClientSocketFactory;
+        }
+
+        @Override
+        public int hashCode() {
+            return CountingClientSocketFactory.class.hashCode();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.integration.common.utils.CaptureProfile;
+import org.wso2.carbon.integration.common.utils.ThreadAnalyser;
+import org.wso2.carbon.integration.common.utils.ThreadDumpSnapshot;
+
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Capture of a VM with up to 100k threads, in one <code>getThreadInfo</code> call and in
+ * chunks. The synthetic ThreadMXBean builds ThreadInfo objects from open data on every call,
+ * as a JMX proxy does, so chunking bounds the ThreadInfo objects alive at once while the
+ * snapshot keeps each distinct frame once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ChunkedCaptureBenchmark {
+
+    @Param({"10000", "100000"})
+    public int threadCount;
+
+    @Param({"1000", "10000"})
+    public int chunkSize;
+
+    private final ThreadAnalyser threadAnalyser = new ThreadAnalyser();
+    private ThreadMXBean threadMXBean;
+
+    @Setup
+    public void setUp() {
+        threadMXBean = SyntheticThreads.threadMXBean(threadCount);
+    }
+
+    @Benchmark
+    public ThreadDumpSnapshot captureInChunks() {
+        return threadAnalyser.captureInChunks(threadMXBean, chunkSize, CaptureProfile.DEFAULT_DEPTH);
+    }
+
+    @Benchmark
+    public ThreadDumpSnapshot captureAtOnce() {
+        return threadAnalyser.capture(threadMXBean, CaptureProfile.TOP_FRAMES);
+    }
+}
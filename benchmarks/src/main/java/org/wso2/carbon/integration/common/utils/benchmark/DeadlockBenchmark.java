@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.integration.common.utils.LockGraph;
+import org.wso2.carbon.integration.common.utils.ThreadDumpSnapshot;
+
+import java.lang.management.ThreadInfo;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadlock and contention lookup on dumps where every seventh pair of threads is deadlocked,
+ * and the snapshot conversion they start from.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeadlockBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int threadCount;
+
+    private ThreadInfo[] threadInfos;
+    private ThreadDumpSnapshot snapshot;
+
+    @Setup
+    public void setUp() {
+        threadInfos = SyntheticThreads.create(threadCount);
+        snapshot = ThreadDumpSnapshot.fromThreadInfo(threadInfos);
+        if (snapshot.findDeadlockedThreads() == null) {
+            throw new IllegalStateException("Synthetic dump has no deadlock");
+        }
+    }
+
+    @Benchmark
+    public ThreadDumpSnapshot fromThreadInfo() {
+        return ThreadDumpSnapshot.fromThreadInfo(threadInfos);
+    }
+
+    @Benchmark
+    public long[] findDeadlockedThreads() {
+        return snapshot.findDeadlockedThreads();
+    }
+
+    @Benchmark
+    public int[] lockGraphHottestLocks() {
+        return new LockGraph(snapshot).getHottestLocks(10);
+    }
+}
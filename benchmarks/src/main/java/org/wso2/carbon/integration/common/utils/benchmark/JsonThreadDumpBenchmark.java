@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.integration.common.utils.ThreadDumpJsonParser;
+import org.wso2.carbon.integration.common.utils.ThreadDumpSnapshot;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ThreadInfo;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of <code>jcmd Thread.dump_to_file -format=json</code> dumps of up to 100k threads,
+ * most of them virtual threads in an executor container, as written by JDK 21.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class JsonThreadDumpBenchmark {
+
+    private static final int PLATFORM_THREADS = 200;
+
+    @Param({"10000", "100000"})
+    public int threadCount;
+
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("json-thread-dump", ".json");
+        ThreadInfo[] templates = SyntheticThreads.create(7);
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                Files.newOutputStream(file.toPath()), Charset.forName("UTF-8")))) {
+            writer.write("{\n  \"threadDump\": {\n    \"processId\": \"1\",\n" +
+                         "    \"time\": \"2024-01-01T00:00:00.000000000Z\",\n" +
+                         "    \"runtimeVersion\": \"21\",\n    \"threadContainers\": [\n");
+            int platformThreads = Math.min(PLATFORM_THREADS, threadCount);
+            writeContainer(writer, "<root>", templates, 0, platformThreads, false);
+            writer.write(",\n");
+            writeContainer(writer, "java.util.concurrent.ThreadPerTaskExecutor@1b6d3586", templates,
+                           platformThreads, threadCount, true);
+            writer.write("\n    ]\n  }\n}\n");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public ThreadDumpSnapshot parse() throws IOException {
+        return new ThreadDumpJsonParser().parse(file.getPath());
+    }
+
+    private static void writeContainer(Writer writer, String container, ThreadInfo[] templates,
+                                       int start, int end, boolean virtual) throws IOException {
+        writer.write("      {\n        \"container\": \"" + container + "\",\n" +
+                     "        \"parent\": null,\n        \"owner\": null,\n        \"threads\": [\n");
+        for (int i = start; i < end; i++) {
+            ThreadInfo template = templates[i % templates.length];
+            writer.write(i == start ? "         {\n" : ",\n         {\n");
+            writer.write("           \"tid\": \"" + (SyntheticThreads.FIRST_THREAD_ID + i) + "\",\n");
+            writer.write("           \"name\": \"" + (virtual ? "" : template.getThreadName()) + "\",\n");
+            writer.write("           \"stack\": [\n");
+            StackTraceElement[] stackTrace = template.getStackTrace();
+            for (int depth = 0; depth < stackTrace.length; depth++) {
+                writer.write("              \"java.base\\/" + stackTrace[depth] + "\"");
+                writer.write(depth + 1 < stackTrace.length || virtual ? ",\n" : "\n");
+            }
+            if (virtual) {
+                writer.write("              \"java.base\\/java.lang.VirtualThread.run(VirtualThread.java:309)\"\n");
+            }
+            writer.write("           ]\n         }");
+        }
+        writer.write("\n        ],\n        \"threadCount\": \"" + (end - start) + "\"\n      }");
+    }
+}
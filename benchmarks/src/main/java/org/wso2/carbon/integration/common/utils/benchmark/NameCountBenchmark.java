@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.integration.common.utils.ThreadAnalyser;
+import org.wso2.carbon.integration.common.utils.ThreadDumpSnapshot;
+import org.wso2.carbon.integration.common.utils.ThreadNameCounter;
+import org.wso2.carbon.integration.common.utils.ThreadPoolAnalyzer;
+
+import java.lang.management.ThreadInfo;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counting threads by name, one pattern at a time as <code>getThreadCount</code> and
+ * <code>getThreadCountUsingRegex</code> do, many patterns in one pass, and by pool family.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NameCountBenchmark {
+
+    private static final String[] PATTERNS = {
+            "PassThrough", "http-nio", "deadlock", "lock-", "worker", "exec-1\\d", "Sender-\\d+$", "^main$"
+    };
+
+    @Param({"100", "1000", "10000"})
+    public int threadCount;
+
+    private final ThreadAnalyser threadAnalyser = new ThreadAnalyser();
+    private ThreadInfo[] threadInfos;
+    private ThreadDumpSnapshot snapshot;
+    private ThreadNameCounter threadNameCounter;
+    private ThreadPoolAnalyzer threadPoolAnalyzer;
+
+    @Setup
+    public void setUp() {
+        threadInfos = SyntheticThreads.create(threadCount);
+        snapshot = ThreadDumpSnapshot.fromThreadInfo(threadInfos);
+        threadNameCounter = new ThreadNameCounter();
+        for (String pattern : PATTERNS) {
+            threadNameCounter.addRegexMatch(pattern);
+        }
+        threadPoolAnalyzer = new ThreadPoolAnalyzer();
+    }
+
+    @Benchmark
+    public int getThreadCount() {
+        return threadAnalyser.getThreadCount(threadInfos, "PassThroughHTTPSSender-1");
+    }
+
+    @Benchmark
+    public int getThreadCountUsingRegex() {
+        return threadAnalyser.getThreadCountUsingRegex(threadInfos, "PassThrough");
+    }
+
+    @Benchmark
+    public int getThreadCountUsingRegexOnSnapshot() {
+        return threadAnalyser.getThreadCountUsingRegex(snapshot, "PassThrough");
+    }
+
+    @Benchmark
+    public int[] countPatternsOnSnapshot() {
+        return threadNameCounter.count(snapshot);
+    }
+
+    @Benchmark
+    public long analyzeThreadPools() {
+        threadPoolAnalyzer.update(snapshot);
+        return threadPoolAnalyzer.getSampleCount();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.wso2.carbon.integration.common.utils.StackTraceGrouper;
+import org.wso2.carbon.integration.common.utils.ThreadAnalyser;
+import org.wso2.carbon.integration.common.utils.ThreadDumpSnapshot;
+import org.wso2.carbon.integration.common.utils.ThreadDumpWriter;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.management.ThreadInfo;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of thread dumps: the text written by <code>createThreadDumpFile</code>, into memory
+ * and into a file, from ThreadInfo objects and from snapshots. The <code>legacy</code>
+ * benchmarks are the rendering <code>createThreadDumpFile</code> did before ThreadDumpWriter,
+ * a StringBuilder and a String per thread through a BufferedWriter, as the baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RenderBenchmark {
+
+    @Param({"100", "1000", "10000"})
+    public int threadCount;
+
+    private ThreadInfo[] threadInfos;
+    private ThreadDumpSnapshot snapshot;
+    private final ThreadAnalyser threadAnalyser = new ThreadAnalyser();
+    private File directory;
+
+    @Setup
+    public void setUp() throws IOException {
+        threadInfos = SyntheticThreads.create(threadCount);
+        snapshot = ThreadDumpSnapshot.fromThreadInfo(threadInfos);
+        directory = Files.createTempDirectory("render-benchmark").toFile();
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteDumps() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        deleteDumps();
+        directory.delete();
+    }
+
+    @Benchmark
+    public long writeThreadInfo() throws IOException {
+        ThreadDumpWriter threadDumpWriter = new ThreadDumpWriter(new NullChannel());
+        threadDumpWriter.write(threadInfos);
+        threadDumpWriter.flush();
+        return threadDumpWriter.getBytesWritten();
+    }
+
+    @Benchmark
+    public long writeSnapshot() throws IOException {
+        ThreadDumpWriter threadDumpWriter = new ThreadDumpWriter(new NullChannel());
+        threadDumpWriter.write(snapshot);
+        threadDumpWriter.flush();
+        return threadDumpWriter.getBytesWritten();
+    }
+
+    @Benchmark
+    public long writeGroupedSnapshot() throws IOException {
+        ThreadDumpWriter threadDumpWriter = new ThreadDumpWriter(new NullChannel());
+        threadDumpWriter.write(new StackTraceGrouper().group(snapshot));
+        threadDumpWriter.flush();
+        return threadDumpWriter.getBytesWritten();
+    }
+
+    @Benchmark
+    public void createThreadDumpFile() throws IOException {
+        threadAnalyser.createThreadDumpFile(threadInfos, directory.getPath());
+    }
+
+    @Benchmark
+    public void legacyWriteThreadInfo() throws IOException {
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new NullOutputStream(), Charset.defaultCharset()));
+        try {
+            legacyWrite(threadInfos, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Benchmark
+    public void legacyCreateThreadDumpFile() throws IOException {
+        Timestamp timeStamp = new Timestamp(new Date().getTime());
+        File threadDumpFile = new File(directory.getPath() + File.separator + timeStamp + ".txt");
+        if (!threadDumpFile.exists() && !threadDumpFile.createNewFile()) {
+            return;
+        }
+        BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(threadDumpFile),
+                                                                  Charset.defaultCharset()));
+        try {
+            legacyWrite(threadInfos, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void legacyWrite(ThreadInfo[] allThreadInfo, BufferedWriter writer) throws IOException {
+        for (ThreadInfo threadInfo : allThreadInfo) {
+            StringBuilder dump = new StringBuilder();
+            dump.append("Thread name:");
+            dump.append('"');
+            dump.append(threadInfo.getThreadName());
+            dump.append("\" ");
+            dump.append("\n\tjava.lang.Thread.State: ");
+            dump.append(threadInfo.getThreadState());
+            for (StackTraceElement stackTraceElement : threadInfo.getStackTrace()) {
+                dump.append("\n\t\tat ");
+                dump.append(stackTraceElement);
+            }
+            dump.append("\n\n");
+            writer.write(dump.toString());
+            writer.newLine();
+        }
+    }
+
+    /**
+     * Discards what is written, so only rendering is measured.
+     */
+    static final class NullChannel implements WritableByteChannel {
+
+        public int write(ByteBuffer source) {
+            int count = source.remaining();
+            source.position(source.limit());
+            return count;
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * Discards what is written, the stream counterpart of {@link NullChannel}.
+     */
+    static final class NullOutputStream extends OutputStream {
+
+        public void write(int b) {
+        }
+
+        public void write(byte[] bytes, int offset, int length) {
+        }
+    }
+}
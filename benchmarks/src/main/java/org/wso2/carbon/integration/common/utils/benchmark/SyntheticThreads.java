@@ -0,0 +1,381 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils.benchmark;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Builds thread dumps of any size without starting that many threads. A handful of real
+ * template threads is captured once, as the open data ThreadMXBean sends over JMX: a deadlocked
+ * pair, a lock holder with a blocked waiter, an idle pool worker, a sleeping thread with a deep
+ * stack and a running thread. Dumps are made of copies of the templates, group after group,
+ * with their own thread Ids, names and lock identities, so lock owners, deadlocks and name
+ * families stay consistent at every size.
+ */
+final class SyntheticThreads {
+
+    static final long FIRST_THREAD_ID = 1000;
+
+    private static final String[] TEMPLATE_NAMES = {
+            "deadlock-a-1", "deadlock-b-1", "lock-holder-1", "lock-waiter-1",
+            "PassThroughHTTPSSender-1", "http-nio-8280-exec-1", "worker-1"
+    };
+    private static final int SLEEPER_DEPTH = 40;
+    private static final int GOLDEN_RATIO = 0x9E3779B1;
+
+    private static final Map<Long, Integer> TEMPLATE_MEMBERS = new HashMap<Long, Integer>();
+
+    // Captured on first use rather than in a static initializer: the template threads run
+    // code of this class, and would block on its initialization.
+    private static CompositeData[] templates;
+
+    private SyntheticThreads() {
+    }
+
+    /**
+     * @param threadCount number of threads.
+     * @return thread dump of <code>threadCount</code> threads.
+     */
+    static ThreadInfo[] create(int threadCount) {
+        ThreadInfo[] threadInfos = new ThreadInfo[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threadInfos[i] = create(FIRST_THREAD_ID + i);
+        }
+        return threadInfos;
+    }
+
+    /**
+     * @param threadId thread Id, at least {@link #FIRST_THREAD_ID}.
+     * @return the thread with this Id, as the dumps returned by {@link #create(int)} hold it.
+     */
+    static ThreadInfo create(long threadId) {
+        return ThreadInfo.from(createData(threadId));
+    }
+
+    /**
+     * A ThreadMXBean of a VM with <code>threadCount</code> synthetic threads, which builds the
+     * ThreadInfo objects of each call from open data, as a JMX proxy does.
+     *
+     * @param threadCount number of threads.
+     * @return ThreadMXBean answering <code>getAllThreadIds</code> and <code>getThreadInfo</code>.
+     */
+    static ThreadMXBean threadMXBean(final int threadCount) {
+        final long[] threadIds = new long[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threadIds[i] = FIRST_THREAD_ID + i;
+        }
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getAllThreadIds".equals(name)) {
+                    return threadIds.clone();
+                }
+                if ("getThreadInfo".equals(name) && args.length >= 1 && args[0] instanceof long[]) {
+                    long[] ids = (long[]) args[0];
+                    ThreadInfo[] threadInfos = new ThreadInfo[ids.length];
+                    for (int i = 0; i < ids.length; i++) {
+                        threadInfos[i] = create(ids[i]);
+                    }
+                    return threadInfos;
+                }
+                if ("dumpAllThreads".equals(name)) {
+                    return create(threadCount);
+                }
+                if ("getThreadCount".equals(name)) {
+                    return threadCount;
+                }
+                if ("isThreadCpuTimeEnabled".equals(name)) {
+                    return false;
+                }
+                if ("hashCode".equals(name)) {
+                    return System.identityHashCode(proxy);
+                }
+                if ("equals".equals(name)) {
+                    return proxy == args[0];
+                }
+                if ("toString".equals(name)) {
+                    return "SyntheticThreadMXBean[" + threadCount + "]";
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        };
+        return (ThreadMXBean) Proxy.newProxyInstance(SyntheticThreads.class.getClassLoader(),
+                                                     new Class<?>[]{ThreadMXBean.class}, handler);
+    }
+
+    private static synchronized CompositeData[] getTemplates() {
+        if (templates == null) {
+            CompositeData[] captured = captureTemplates();
+            for (int member = 0; member < captured.length; member++) {
+                TEMPLATE_MEMBERS.put((Long) captured[member].get("threadId"), member);
+            }
+            templates = captured;
+        }
+        return templates;
+    }
+
+    private static CompositeData createData(long threadId) {
+        CompositeData[] templates = getTemplates();
+        int index = (int) (threadId - FIRST_THREAD_ID);
+        int group = index / templates.length;
+        int member = index % templates.length;
+        CompositeData template = templates[member];
+        try {
+            Map<String, Object> overrides = new HashMap<String, Object>();
+            overrides.put("threadId", threadId);
+            overrides.put("threadName", rename((String) template.get("threadName"), group));
+            long ownerId = (Long) template.get("lockOwnerId");
+            Integer ownerMember = TEMPLATE_MEMBERS.get(ownerId);
+            if (ownerMember != null) {
+                overrides.put("lockOwnerId", FIRST_THREAD_ID + group * templates.length + ownerMember);
+                overrides.put("lockOwnerName", rename(TEMPLATE_NAMES[ownerMember], group));
+            }
+            String lockName = (String) template.get("lockName");
+            if (lockName != null) {
+                int at = lockName.lastIndexOf('@');
+                int identity = (int) Long.parseLong(lockName.substring(at + 1), 16);
+                overrides.put("lockName", lockName.substring(0, at + 1) +
+                                          Integer.toHexString(remap(identity, group)));
+            }
+            CompositeData lockInfo = (CompositeData) template.get("lockInfo");
+            if (lockInfo != null) {
+                overrides.put("lockInfo", remapLock(lockInfo, group));
+            }
+            overrides.put("lockedMonitors", remapLocks((CompositeData[]) template.get("lockedMonitors"), group));
+            overrides.put("lockedSynchronizers",
+                          remapLocks((CompositeData[]) template.get("lockedSynchronizers"), group));
+            return copy(template, overrides);
+        } catch (OpenDataException e) {
+            throw new IllegalStateException("Can not copy thread template", e);
+        }
+    }
+
+    private static String rename(String templateName, int group) {
+        return templateName.substring(0, templateName.length() - 1) + (group + 1);
+    }
+
+    private static int remap(int identity, int group) {
+        return identity ^ (group * GOLDEN_RATIO);
+    }
+
+    private static CompositeData[] remapLocks(CompositeData[] locks, int group) throws OpenDataException {
+        if (locks == null || group == 0) {
+            return locks;
+        }
+        CompositeData[] remapped = new CompositeData[locks.length];
+        for (int i = 0; i < locks.length; i++) {
+            remapped[i] = remapLock(locks[i], group);
+        }
+        return remapped;
+    }
+
+    private static CompositeData remapLock(CompositeData lock, int group) throws OpenDataException {
+        Map<String, Object> overrides = new HashMap<String, Object>();
+        overrides.put("identityHashCode", remap((Integer) lock.get("identityHashCode"), group));
+        return copy(lock, overrides);
+    }
+
+    private static CompositeData copy(CompositeData data, Map<String, Object> overrides)
+            throws OpenDataException {
+        CompositeType type = data.getCompositeType();
+        Map<String, Object> items = new HashMap<String, Object>();
+        for (String key : type.keySet()) {
+            items.put(key, overrides.containsKey(key) ? overrides.get(key) : data.get(key));
+        }
+        return new CompositeDataSupport(type, items);
+    }
+
+    //##############################################################################################
+
+    private static CompositeData[] captureTemplates() {
+        final Object lockA = new Object();
+        final Object lockB = new Object();
+        final Object lockC = new Object();
+        final CountDownLatch bothLocked = new CountDownLatch(2);
+        final CountDownLatch holding = new CountDownLatch(1);
+        final AtomicBoolean stop = new AtomicBoolean();
+
+        start("deadlock-a-1", new Runnable() {
+            public void run() {
+                synchronized (lockA) {
+                    bothLocked.countDown();
+                    awaitQuietly(bothLocked);
+                    synchronized (lockB) {
+                        bothLocked.countDown();
+                    }
+                }
+            }
+        });
+        start("deadlock-b-1", new Runnable() {
+            public void run() {
+                synchronized (lockB) {
+                    bothLocked.countDown();
+                    awaitQuietly(bothLocked);
+                    synchronized (lockA) {
+                        bothLocked.countDown();
+                    }
+                }
+            }
+        });
+        start("lock-holder-1", new Runnable() {
+            public void run() {
+                synchronized (lockC) {
+                    holding.countDown();
+                    sleepQuietly(Long.MAX_VALUE);
+                }
+            }
+        });
+        awaitQuietly(holding);
+        start("lock-waiter-1", new Runnable() {
+            public void run() {
+                synchronized (lockC) {
+                    Thread.yield();
+                }
+            }
+        });
+        ExecutorService pool = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                                      new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "PassThroughHTTPSSender-1");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pool.execute(new Runnable() {
+            public void run() {
+            }
+        });
+        start("http-nio-8280-exec-1", new Runnable() {
+            public void run() {
+                recurse(SLEEPER_DEPTH);
+            }
+        });
+        start("worker-1", new Runnable() {
+            public void run() {
+                long count = 0;
+                while (!stop.get()) {
+                    count++;
+                }
+                if (count == 42) {
+                    Thread.yield();
+                }
+            }
+        });
+
+        try {
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName threading = new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME);
+            CompositeData[] captured = new CompositeData[TEMPLATE_NAMES.length];
+            long deadline = System.currentTimeMillis() + 10000;
+            while (true) {
+                CompositeData[] dump = (CompositeData[]) mBeanServer.invoke(
+                        threading, "dumpAllThreads", new Object[]{true, true},
+                        new String[]{boolean.class.getName(), boolean.class.getName()});
+                if (select(dump, captured) && threadMXBean.findDeadlockedThreads() != null) {
+                    break;
+                }
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IllegalStateException("Template threads did not reach their states");
+                }
+                Thread.sleep(10);
+            }
+            return captured;
+        } catch (Exception e) {
+            throw new IllegalStateException("Can not capture template threads", e);
+        } finally {
+            stop.set(true);
+            pool.shutdown();
+        }
+    }
+
+    private static boolean select(CompositeData[] dump, CompositeData[] templates) {
+        Thread.State[] expected = {
+                Thread.State.BLOCKED, Thread.State.BLOCKED, Thread.State.TIMED_WAITING,
+                Thread.State.BLOCKED, Thread.State.WAITING, Thread.State.TIMED_WAITING,
+                Thread.State.RUNNABLE
+        };
+        for (CompositeData thread : dump) {
+            for (int member = 0; member < TEMPLATE_NAMES.length; member++) {
+                if (TEMPLATE_NAMES[member].equals(thread.get("threadName"))) {
+                    if (!expected[member].name().equals(thread.get("threadState"))) {
+                        return false;
+                    }
+                    templates[member] = thread;
+                }
+            }
+        }
+        for (CompositeData template : templates) {
+            if (template == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void recurse(int depth) {
+        if (depth == 0) {
+            sleepQuietly(Long.MAX_VALUE);
+        } else {
+            recurse(depth - 1);
+        }
+    }
+
+    private static void start(String name, Runnable runnable) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void awaitQuietly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measures how fast each thread of a remote VM allocates, to find the few threads behind GC
+ * pressure.
+ * <p/>
+ * A sample reads the thread Ids and the bytes allocated by every thread with two remote calls,
+ * through the bulk <code>getThreadAllocatedBytes(long[])</code> of
+ * <code>com.sun.management.ThreadMXBean</code>, and turns the growth since the previous sample
+ * into bytes per second. Rates are also summed per thread name group, the patterns of a
+ * {@link ThreadNameCounter}, and the top allocators have their stacks fetched with one more
+ * call.
+ * <p/>
+ * Per thread state, the allocated bytes, the name and the groups it matches, is kept in arrays
+ * indexed through a primitive map from thread Id and rebuilt on every sample from the live
+ * threads only, so memory is bounded by the number of live threads however long the sampler
+ * runs. Names are fetched and matched once, when a thread is first seen, with a single call for
+ * all new threads; a thread renamed later keeps its first name.
+ */
+public class AllocationSampler {
+
+    private static final int[] NO_GROUPS = new int[0];
+
+    private final com.sun.management.ThreadMXBean threadMXBean;
+    private final ThreadNameCounter threadNameCounter;
+    private final int stackDepth;
+    private final int[] matches;
+
+    private LongIntHashMap threadIndex = new LongIntHashMap(256);
+    private LongIntHashMap nextIndex = new LongIntHashMap(256);
+    private long[] allocatedBytes = new long[0];
+    private String[] threadNames = new String[0];
+    private int[][] threadGroups = new int[0][];
+    private long previousSampleNanos = -1;
+
+    /**
+     * Allocation of one thread over the last interval.
+     */
+    public static final class ThreadAllocation {
+
+        private final long threadId;
+        private final String threadName;
+        private final Thread.State threadState;
+        private final long allocatedBytes;
+        private final double bytesPerSecond;
+        private final StackTraceElement[] stackTrace;
+
+        ThreadAllocation(long threadId, String threadName, Thread.State threadState,
+                         long allocatedBytes, double bytesPerSecond,
+                         StackTraceElement[] stackTrace) {
+            this.threadId = threadId;
+            this.threadName = threadName;
+            this.threadState = threadState;
+            this.allocatedBytes = allocatedBytes;
+            this.bytesPerSecond = bytesPerSecond;
+            this.stackTrace = stackTrace;
+        }
+
+        public long getThreadId() {
+            return threadId;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        public Thread.State getThreadState() {
+            return threadState;
+        }
+
+        /**
+         * @return bytes allocated over the interval.
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * @return stack at the end of the interval.
+         */
+        public StackTraceElement[] getStackTrace() {
+            return stackTrace.clone();
+        }
+    }
+
+    /**
+     * Allocation rates of one interval.
+     */
+    public static final class AllocationSample {
+
+        private final long intervalNanos;
+        private final double bytesPerSecond;
+        private final double[] groupBytesPerSecond;
+        private final List<ThreadAllocation> topThreads;
+
+        AllocationSample(long intervalNanos, double bytesPerSecond, double[] groupBytesPerSecond,
+                         List<ThreadAllocation> topThreads) {
+            this.intervalNanos = intervalNanos;
+            this.bytesPerSecond = bytesPerSecond;
+            this.groupBytesPerSecond = groupBytesPerSecond;
+            this.topThreads = topThreads;
+        }
+
+        /**
+         * @return length of the interval in nanoseconds, <code>0</code> for the first sample.
+         */
+        public long getIntervalNanos() {
+            return intervalNanos;
+        }
+
+        /**
+         * @return allocation rate of all live threads.
+         */
+        public double getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * @return allocation rate of the threads matching each pattern of the thread name
+         *         counter, indexed as the counts of the counter.
+         */
+        public double[] getGroupBytesPerSecond() {
+            return groupBytesPerSecond.clone();
+        }
+
+        /**
+         * @return top allocating threads, highest rate first.
+         */
+        public List<ThreadAllocation> getTopThreads() {
+            return topThreads;
+        }
+    }
+
+    /**
+     * @param threadMXBean      ThreadMXBean object of remote VM, which must implement
+     *                          <code>com.sun.management.ThreadMXBean</code> (see
+     *                          {@link ThreadAnalyser#getThreadMXBeanObjects}).
+     * @param threadNameCounter thread name groups rates are summed for, or <code>null</code>.
+     * @param stackDepth        maximum number of frames fetched for each top allocator.
+     * @throws IllegalStateException if the VM does not measure allocated bytes.
+     */
+    public AllocationSampler(ThreadMXBean threadMXBean, ThreadNameCounter threadNameCounter,
+                             int stackDepth) {
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            throw new IllegalStateException("Thread allocated bytes are not available from " +
+                                            threadMXBean.getClass().getName());
+        }
+        this.threadMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        if (!this.threadMXBean.isThreadAllocatedMemorySupported() ||
+            !this.threadMXBean.isThreadAllocatedMemoryEnabled()) {
+            throw new IllegalStateException("Thread allocated memory measurement is not enabled");
+        }
+        if (stackDepth < 0) {
+            throw new IllegalArgumentException("Depth can not be negative: " + stackDepth);
+        }
+        this.threadNameCounter = threadNameCounter == null ? new ThreadNameCounter() :
+                                 threadNameCounter.copy();
+        this.stackDepth = stackDepth;
+        this.matches = new int[this.threadNameCounter.getPatternCount()];
+    }
+
+    /**
+     * Read the allocated bytes of all threads and compute the rates since the previous call. The
+     * first call only records the counters and returns a sample without rates.
+     *
+     * @param limit maximum number of top allocators returned.
+     * @return allocation rates of the interval.
+     */
+    public synchronized AllocationSample sample(int limit) {
+        long[] threadIds = threadMXBean.getAllThreadIds();
+        long[] bytes = threadMXBean.getThreadAllocatedBytes(threadIds);
+        long sampleNanos = System.nanoTime();
+        long intervalNanos = previousSampleNanos < 0 ? 0 : sampleNanos - previousSampleNanos;
+
+        nextIndex.clear();
+        long[] nextBytes = new long[threadIds.length];
+        String[] nextNames = new String[threadIds.length];
+        int[][] nextGroups = new int[threadIds.length][];
+        long[] deltas = new long[threadIds.length];
+        long[] newIds = new long[threadIds.length];
+        int[] newSlots = new int[threadIds.length];
+        int newCount = 0;
+        int count = 0;
+        for (int i = 0; i < threadIds.length; i++) {
+            if (bytes[i] < 0) {
+                // the thread has died since getAllThreadIds
+                continue;
+            }
+            int previous = threadIndex.get(threadIds[i]);
+            if (previous >= 0) {
+                nextNames[count] = threadNames[previous];
+                nextGroups[count] = threadGroups[previous];
+                deltas[count] = Math.max(0, bytes[i] - allocatedBytes[previous]);
+            } else {
+                newIds[newCount] = threadIds[i];
+                newSlots[newCount++] = count;
+                // a thread seen for the first time has allocated all of it since it started
+                deltas[count] = intervalNanos == 0 ? 0 : bytes[i];
+            }
+            nextBytes[count] = bytes[i];
+            nextIndex.put(threadIds[i], count);
+            threadIds[count] = threadIds[i];
+            count++;
+        }
+        if (newCount > 0) {
+            nameNewThreads(Arrays.copyOf(newIds, newCount), newSlots, nextNames, nextGroups);
+        }
+
+        double[] groupRates = new double[matches.length];
+        double totalRate = 0;
+        int topCount = 0;
+        int[] top = new int[Math.max(0, limit)];
+        if (intervalNanos > 0) {
+            double perSecond = 1e9 / intervalNanos;
+            for (int slot = 0; slot < count; slot++) {
+                double rate = deltas[slot] * perSecond;
+                totalRate += rate;
+                for (int group : nextGroups[slot]) {
+                    groupRates[group] += rate;
+                }
+                topCount = insertTop(top, topCount, deltas, slot);
+            }
+        }
+
+        LongIntHashMap swap = threadIndex;
+        threadIndex = nextIndex;
+        nextIndex = swap;
+        allocatedBytes = nextBytes;
+        threadNames = nextNames;
+        threadGroups = nextGroups;
+        previousSampleNanos = sampleNanos;
+
+        List<ThreadAllocation> topThreads = topCount == 0 ?
+                                            Collections.<ThreadAllocation>emptyList() :
+                                            getTopThreads(top, topCount, threadIds, deltas,
+                                                          intervalNanos);
+        return new AllocationSample(intervalNanos, totalRate, groupRates, topThreads);
+    }
+
+    private void nameNewThreads(long[] newIds, int[] newSlots, String[] names, int[][] groups) {
+        ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(newIds, 0);
+        for (int i = 0; i < newIds.length; i++) {
+            String threadName = threadInfos[i] == null ? null : threadInfos[i].getThreadName();
+            names[newSlots[i]] = threadName;
+            groups[newSlots[i]] = threadName == null ? NO_GROUPS : match(threadName);
+        }
+    }
+
+    private int[] match(String threadName) {
+        if (matches.length == 0) {
+            return NO_GROUPS;
+        }
+        Arrays.fill(matches, 0);
+        threadNameCounter.match(threadName, matches);
+        int matchCount = 0;
+        for (int match : matches) {
+            if (match > 0) {
+                matchCount++;
+            }
+        }
+        int[] groups = new int[matchCount];
+        matchCount = 0;
+        for (int pattern = 0; pattern < matches.length; pattern++) {
+            if (matches[pattern] > 0) {
+                groups[matchCount++] = pattern;
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Insert a slot into the slots with the largest deltas, kept in descending order.
+     */
+    private static int insertTop(int[] top, int topCount, long[] deltas, int slot) {
+        long delta = deltas[slot];
+        if (delta <= 0 || (topCount == top.length &&
+                           (topCount == 0 || delta <= deltas[top[topCount - 1]]))) {
+            return topCount;
+        }
+        int position = topCount < top.length ? topCount++ : topCount - 1;
+        while (position > 0 && deltas[top[position - 1]] < delta) {
+            top[position] = top[position - 1];
+            position--;
+        }
+        top[position] = slot;
+        return topCount;
+    }
+
+    private List<ThreadAllocation> getTopThreads(int[] top, int topCount, long[] threadIds,
+                                                 long[] deltas, long intervalNanos) {
+        long[] topIds = new long[topCount];
+        for (int i = 0; i < topCount; i++) {
+            topIds[i] = threadIds[top[i]];
+        }
+        ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(topIds, stackDepth);
+        List<ThreadAllocation> topThreads = new ArrayList<ThreadAllocation>(topCount);
+        for (int i = 0; i < topCount; i++) {
+            if (threadInfos[i] == null) {
+                // died before its stack was fetched
+                continue;
+            }
+            long delta = deltas[top[i]];
+            topThreads.add(new ThreadAllocation(topIds[i], threadInfos[i].getThreadName(),
+                                                threadInfos[i].getThreadState(), delta,
+                                                delta * 1e9 / intervalNanos,
+                                                threadInfos[i].getStackTrace()));
+        }
+        return topThreads;
+    }
+}
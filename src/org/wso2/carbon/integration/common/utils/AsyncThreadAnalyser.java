@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnector;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Non blocking counterpart of {@link MBeanHandler} and {@link ThreadAnalyser}: attaching,
+ * connecting and capturing return a <code>CompletableFuture</code> which fails with a
+ * <code>TimeoutException</code> when its stage takes longer than the timeout of the stage, and
+ * which can be cancelled. A monitor can watch many VMs with a small fixed number of threads and
+ * an unresponsive VM, often the one which needs to be diagnosed, never hangs its caller.
+ * <p/>
+ * Calls run on a fixed number of daemon threads fed by a bounded queue; a call submitted while
+ * the queue is full fails with a <code>RejectedExecutionException</code>. When a stage times out
+ * or is cancelled its thread is interrupted, but a remote call blocked on a socket may only
+ * return much later, so such threads are counted as stalled until they do. At most one call per
+ * target (process Id, connector address or ThreadMXBean) runs at a time: a call to a target
+ * whose previous call is still stalled fails straight away, so a sick VM can not take more than
+ * one thread. Connectors which finish connecting after their stage timed out are closed.
+ */
+public class AsyncThreadAnalyser {
+
+    public static final long DEFAULT_ATTACH_TIMEOUT_MILLIS = 10000;
+    public static final long DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+    public static final long DEFAULT_CAPTURE_TIMEOUT_MILLIS = 30000;
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int FINISHED = 2;
+    private static final int ABANDONED = 3;
+
+    private final MBeanHandler mBeanHandler = new MBeanHandler();
+    private final ThreadAnalyser threadAnalyser = new ThreadAnalyser();
+    private final ThreadPoolExecutor executor;
+    private final ScheduledThreadPoolExecutor timeoutExecutor;
+    private final Set<Object> busyTargets = ConcurrentHashMap.newKeySet();
+
+    private volatile long attachTimeoutMillis = DEFAULT_ATTACH_TIMEOUT_MILLIS;
+    private volatile long connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private volatile long captureTimeoutMillis = DEFAULT_CAPTURE_TIMEOUT_MILLIS;
+
+    private final AtomicLong timeoutCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicInteger stalledCount = new AtomicInteger();
+
+    /**
+     * @param threadCount   number of threads making remote calls.
+     * @param queueCapacity number of calls which may wait for a thread.
+     */
+    public AsyncThreadAnalyser(int threadCount, int queueCapacity) {
+        if (threadCount <= 0 || queueCapacity <= 0) {
+            throw new IllegalArgumentException("Thread count and queue capacity must be positive: " +
+                                               threadCount + ", " + queueCapacity);
+        }
+        executor = new ThreadPoolExecutor(threadCount, threadCount, 0, TimeUnit.MILLISECONDS,
+                                          new ArrayBlockingQueue<Runnable>(queueCapacity),
+                                          ThreadDumpSampler.daemonThreadFactory("async-thread-analyser"));
+        timeoutExecutor = new ScheduledThreadPoolExecutor(
+                1, ThreadDumpSampler.daemonThreadFactory("async-thread-analyser-timeout"));
+        timeoutExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    public void setAttachTimeoutMillis(long attachTimeoutMillis) {
+        this.attachTimeoutMillis = checkTimeout(attachTimeoutMillis);
+    }
+
+    public void setConnectTimeoutMillis(long connectTimeoutMillis) {
+        this.connectTimeoutMillis = checkTimeout(connectTimeoutMillis);
+    }
+
+    public void setCaptureTimeoutMillis(long captureTimeoutMillis) {
+        this.captureTimeoutMillis = checkTimeout(captureTimeoutMillis);
+    }
+
+    /**
+     * Resolve the connector address of a local java process through the attach API.
+     *
+     * @param pid Java process Id.
+     * @return future connector address.
+     */
+    public CompletableFuture<String> attach(final int pid) {
+        return submit("Attach to " + pid, "pid:" + pid, attachTimeoutMillis,
+                      new Callable<String>() {
+                          public String call() throws Exception {
+                              return mBeanHandler.getConnectorAddress(pid);
+                          }
+                      }, null);
+    }
+
+    /**
+     * Connect to a VM. The caller owns the connector and has to close it.
+     *
+     * @param connectorAddress JMX service URL of the VM.
+     * @return future connector.
+     * @throws IllegalArgumentException if the address is <code>null</code>.
+     */
+    public CompletableFuture<JMXConnector> connect(final String connectorAddress) {
+        if (connectorAddress == null) {
+            throw new IllegalArgumentException("Connector address cannot be null");
+        }
+        return submit("Connect to " + connectorAddress, connectorAddress, connectTimeoutMillis,
+                      new Callable<JMXConnector>() {
+                          public JMXConnector call() throws Exception {
+                              return mBeanHandler.getJMXConnector(connectorAddress);
+                          }
+                      }, new Consumer<JMXConnector>() {
+                          public void accept(JMXConnector jmxConnector) {
+                              closeQuietly(jmxConnector);
+                          }
+                      });
+    }
+
+    /**
+     * Capture the threads of a VM through an existing ThreadMXBean proxy.
+     *
+     * @param threadMXBean   ThreadMXBean object of remote VM.
+     * @param captureProfile data to fetch.
+     * @return future snapshot.
+     * @throws IllegalArgumentException if the ThreadMXBean is <code>null</code>.
+     */
+    public CompletableFuture<ThreadDumpSnapshot> capture(final ThreadMXBean threadMXBean,
+                                                         final CaptureProfile captureProfile) {
+        if (threadMXBean == null) {
+            throw new IllegalArgumentException("ThreadMXBean cannot be null");
+        }
+        return submit("Capture", threadMXBean, captureTimeoutMillis,
+                      new Callable<ThreadDumpSnapshot>() {
+                          public ThreadDumpSnapshot call() {
+                              return threadAnalyser.capture(threadMXBean, captureProfile);
+                          }
+                      }, null);
+    }
+
+    /**
+     * Attach to a local java process, connect to it, capture its threads and close the
+     * connection. Each stage has its own timeout, and cancelling the returned future cancels
+     * the stage which is running.
+     *
+     * @param pid            Java process Id.
+     * @param captureProfile data to fetch.
+     * @return future snapshot.
+     */
+    public CompletableFuture<ThreadDumpSnapshot> capture(final int pid, final CaptureProfile captureProfile) {
+        final CompletableFuture<ThreadDumpSnapshot> result = new CompletableFuture<ThreadDumpSnapshot>();
+        final AtomicReference<CompletableFuture<?>> stage = new AtomicReference<CompletableFuture<?>>();
+        final AtomicReference<JMXConnector> connector = new AtomicReference<JMXConnector>();
+
+        CompletableFuture<String> attached = attach(pid);
+        stage.set(attached);
+        attached.thenCompose(new Function<String, CompletionStage<JMXConnector>>() {
+            public CompletionStage<JMXConnector> apply(String connectorAddress) {
+                CompletableFuture<JMXConnector> connected = connect(connectorAddress);
+                stage.set(connected);
+                return connected;
+            }
+        }).thenCompose(new Function<JMXConnector, CompletionStage<ThreadDumpSnapshot>>() {
+            public CompletionStage<ThreadDumpSnapshot> apply(final JMXConnector jmxConnector) {
+                connector.set(jmxConnector);
+                CompletableFuture<ThreadDumpSnapshot> captured = submit(
+                        "Capture of " + pid, jmxConnector, captureTimeoutMillis,
+                        new Callable<ThreadDumpSnapshot>() {
+                            public ThreadDumpSnapshot call() throws Exception {
+                                ThreadMXBean threadMXBean = threadAnalyser.getThreadMXBeanObjects(
+                                        new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME),
+                                        jmxConnector.getMBeanServerConnection());
+                                return threadAnalyser.capture(threadMXBean, captureProfile);
+                            }
+                        }, null);
+                stage.set(captured);
+                if (result.isDone()) {
+                    captured.cancel(true);
+                }
+                return captured;
+            }
+        }).whenComplete(new BiConsumer<ThreadDumpSnapshot, Throwable>() {
+            public void accept(ThreadDumpSnapshot snapshot, Throwable failure) {
+                JMXConnector jmxConnector = connector.get();
+                if (jmxConnector != null) {
+                    close(jmxConnector);
+                }
+                if (failure == null) {
+                    result.complete(snapshot);
+                } else {
+                    result.completeExceptionally(unwrap(failure));
+                }
+            }
+        });
+        result.whenComplete(new BiConsumer<ThreadDumpSnapshot, Throwable>() {
+            public void accept(ThreadDumpSnapshot snapshot, Throwable failure) {
+                if (result.isCancelled()) {
+                    stage.get().cancel(true);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return number of stages which failed with a timeout.
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * @return number of calls refused because the queue was full.
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    /**
+     * @return number of threads still blocked in a call whose stage timed out or was cancelled.
+     */
+    public int getStalledCount() {
+        return stalledCount.get();
+    }
+
+    /**
+     * @return number of calls waiting for a thread.
+     */
+    public int getQueuedCount() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Interrupt the running calls and stop the threads. Pending futures are left as they are.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+        timeoutExecutor.shutdownNow();
+    }
+
+    //##############################################################################################
+
+    /**
+     * Run a call on the executor and complete the returned future with its outcome, unless its
+     * timeout or a cancellation completes the future first.
+     *
+     * @param stage          description of the call, used in failures.
+     * @param target         target which must not have another call running, never
+     *                       <code>null</code>.
+     * @param timeoutMillis  timeout of the call.
+     * @param call           remote call.
+     * @param lateResultSink receives results which arrive after the future was completed, to
+     *                       release them, or <code>null</code>.
+     */
+    private <T> CompletableFuture<T> submit(final String stage, final Object target,
+                                            final long timeoutMillis, final Callable<T> call,
+                                            final Consumer<T> lateResultSink) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        if (!busyTargets.add(target)) {
+            result.completeExceptionally(new IllegalStateException(
+                    stage + " refused: the previous call to the same target is still running"));
+            return result;
+        }
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+        final Future<?> task;
+        try {
+            task = executor.submit(new Runnable() {
+                public void run() {
+                    if (!state.compareAndSet(QUEUED, RUNNING)) {
+                        return;
+                    }
+                    T value = null;
+                    Throwable failure = null;
+                    try {
+                        value = call.call();
+                    } catch (Throwable e) {
+                        failure = e;
+                    }
+                    // finish before completing, so that the completion does not take this call
+                    // for a stalled one and interrupt its own thread
+                    busyTargets.remove(target);
+                    if (!state.compareAndSet(RUNNING, FINISHED)) {
+                        stalledCount.decrementAndGet();
+                    }
+                    if (failure != null) {
+                        result.completeExceptionally(failure);
+                    } else if (!result.complete(value) && lateResultSink != null) {
+                        lateResultSink.accept(value);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            busyTargets.remove(target);
+            rejectedCount.incrementAndGet();
+            result.completeExceptionally(new RejectedExecutionException(
+                    stage + " rejected: " + executor.getQueue().size() + " calls are already queued"));
+            return result;
+        }
+        final ScheduledFuture<?> timeout = timeoutExecutor.schedule(new Runnable() {
+            public void run() {
+                if (result.completeExceptionally(new TimeoutException(
+                        stage + " timed out after " + timeoutMillis + " ms"))) {
+                    timeoutCount.incrementAndGet();
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        result.whenComplete(new BiConsumer<T, Throwable>() {
+            public void accept(T value, Throwable failure) {
+                timeout.cancel(false);
+                if (failure == null) {
+                    return;
+                }
+                if (state.compareAndSet(QUEUED, ABANDONED)) {
+                    // never started, so nothing else releases the target
+                    task.cancel(false);
+                    busyTargets.remove(target);
+                } else if (state.compareAndSet(RUNNING, ABANDONED)) {
+                    stalledCount.incrementAndGet();
+                    task.cancel(true);
+                }
+            }
+        });
+        return result;
+    }
+
+    private void close(final JMXConnector jmxConnector) {
+        // closing can block on a sick target as well
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    closeQuietly(jmxConnector);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            closeQuietly(jmxConnector);
+        }
+    }
+
+    private static void closeQuietly(JMXConnector jmxConnector) {
+        try {
+            jmxConnector.close();
+        } catch (IOException ignored) {
+            // the connection is being dropped anyway
+        }
+    }
+
+    private static Throwable unwrap(Throwable failure) {
+        if (failure instanceof CompletionException && failure.getCause() != null) {
+            return failure.getCause();
+        }
+        return failure;
+    }
+
+    private static long checkTimeout(long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("Timeout must be positive: " + timeoutMillis);
+        }
+        return timeoutMillis;
+    }
+}
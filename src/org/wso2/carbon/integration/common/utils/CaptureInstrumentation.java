@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures what taking thread dumps costs, so sampling rates can be set against real numbers:
+ * <ul>
+ * <li>attach: attaching to a VM by process Id and reading or starting its local connector
+ * ({@link MBeanHandler#getConnectorAddress(int)})</li>
+ * <li>connect: opening a JMX connector ({@link MBeanHandler#getJMXConnector(String)})</li>
+ * <li>capture: the round trip of a <code>dumpAllThreads</code>, <code>getThreadInfo</code> or
+ * JSON thread dump capture through {@link ThreadAnalyser}, up to the built snapshot, with the
+ * threads and frames it carried as a measure of the payload</li>
+ * <li>write: rendering a dump and writing it through {@link ThreadDumpStore}, with the bytes
+ * written</li>
+ * </ul>
+ * Latencies go into {@link LatencyHistogram}s, so the tail is kept as well as the mean. The
+ * figures are exposed through the {@link CaptureInstrumentationMXBean} interface and, once per
+ * summary interval, as a single INFO line of the
+ * <code>org.wso2.carbon.integration.common.utils.CaptureInstrumentation</code> logger. The
+ * line is written by whichever thread records the first measurement after the interval has
+ * passed, so no thread of its own is needed and an idle analyser stays quiet.
+ * <p/>
+ * The analyser classes record into {@link #getDefault()} unless given another instance.
+ * Recording costs two <code>System.nanoTime()</code> calls and a few atomic increments.
+ */
+public class CaptureInstrumentation implements CaptureInstrumentationMXBean {
+
+    public static final String OBJECT_NAME = "org.wso2.carbon.integration.common.utils:type=CaptureInstrumentation";
+
+    private static final Logger log = Logger.getLogger(CaptureInstrumentation.class.getName());
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(10);
+    private static final int DEFAULT_SUMMARY_INTERVAL_SECONDS = 60;
+
+    private static CaptureInstrumentation defaultInstance;
+
+    private final LatencyHistogram attachLatency = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS);
+    private final LatencyHistogram connectLatency = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS);
+    private final LatencyHistogram captureLatency = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS);
+    private final LatencyHistogram writeLatency = new LatencyHistogram(HIGHEST_TRACKABLE_NANOS);
+    private final AtomicLong capturedThreads = new AtomicLong();
+    private final AtomicLong capturedFrames = new AtomicLong();
+    private final AtomicLong maxCapturedFrames = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong maxBytesWritten = new AtomicLong();
+    private final AtomicLong nextSummaryNanos;
+    private volatile int summaryIntervalSeconds = DEFAULT_SUMMARY_INTERVAL_SECONDS;
+
+    public CaptureInstrumentation() {
+        nextSummaryNanos = new AtomicLong(System.nanoTime() + TimeUnit.SECONDS.toNanos(summaryIntervalSeconds));
+    }
+
+    /**
+     * The instance the analyser classes record into by default. It is registered in the
+     * platform MBeanServer as {@link #OBJECT_NAME} when it is first used, unless another
+     * instance, of another class loader, already is.
+     *
+     * @return the process wide instance.
+     */
+    public static synchronized CaptureInstrumentation getDefault() {
+        if (defaultInstance == null) {
+            defaultInstance = new CaptureInstrumentation();
+            try {
+                MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+                ObjectName objectName = new ObjectName(OBJECT_NAME);
+                if (!mBeanServer.isRegistered(objectName)) {
+                    mBeanServer.registerMBean(defaultInstance, objectName);
+                }
+            } catch (JMException e) {
+                log.log(Level.FINE, "Can not register " + OBJECT_NAME, e);
+            } catch (SecurityException e) {
+                log.log(Level.FINE, "Can not register " + OBJECT_NAME, e);
+            }
+        }
+        return defaultInstance;
+    }
+
+    public LatencyHistogram.Summary getAttachLatency() {
+        return attachLatency.getSummary();
+    }
+
+    public LatencyHistogram.Summary getConnectLatency() {
+        return connectLatency.getSummary();
+    }
+
+    public LatencyHistogram.Summary getCaptureLatency() {
+        return captureLatency.getSummary();
+    }
+
+    public LatencyHistogram.Summary getWriteLatency() {
+        return writeLatency.getSummary();
+    }
+
+    public long getCapturedThreads() {
+        return capturedThreads.get();
+    }
+
+    public long getCapturedFrames() {
+        return capturedFrames.get();
+    }
+
+    public long getMaxCapturedFrames() {
+        return maxCapturedFrames.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getMaxBytesWritten() {
+        return maxBytesWritten.get();
+    }
+
+    public int getSummaryIntervalSeconds() {
+        return summaryIntervalSeconds;
+    }
+
+    /**
+     * @param summaryIntervalSeconds minimum time between two summary log lines, or
+     *                               <code>0</code> to log none.
+     */
+    public void setSummaryIntervalSeconds(int summaryIntervalSeconds) {
+        if (summaryIntervalSeconds < 0) {
+            throw new IllegalArgumentException("Summary interval can not be negative: " + summaryIntervalSeconds);
+        }
+        this.summaryIntervalSeconds = summaryIntervalSeconds;
+        nextSummaryNanos.set(System.nanoTime() + TimeUnit.SECONDS.toNanos(summaryIntervalSeconds));
+    }
+
+    /**
+     * @return the summary line, with every latency and the mean payload per capture and per
+     *         written dump.
+     */
+    public String getSummary() {
+        long captures = captureLatency.getCount();
+        long writes = writeLatency.getCount();
+        return "attach " + attachLatency.getSummary() +
+               ", connect " + connectLatency.getSummary() +
+               ", capture " + captureLatency.getSummary() +
+               " threads/capture=" + (captures == 0 ? 0 : capturedThreads.get() / captures) +
+               " frames/capture=" + (captures == 0 ? 0 : capturedFrames.get() / captures) +
+               ", write " + writeLatency.getSummary() +
+               " bytes/dump=" + (writes == 0 ? 0 : bytesWritten.get() / writes);
+    }
+
+    /**
+     * Forget every measurement.
+     */
+    public void reset() {
+        attachLatency.reset();
+        connectLatency.reset();
+        captureLatency.reset();
+        writeLatency.reset();
+        capturedThreads.set(0);
+        capturedFrames.set(0);
+        maxCapturedFrames.set(0);
+        bytesWritten.set(0);
+        maxBytesWritten.set(0);
+    }
+
+    void recordAttach(long startNanos) {
+        attachLatency.record(System.nanoTime() - startNanos);
+        logSummaryIfDue();
+    }
+
+    void recordConnect(long startNanos) {
+        connectLatency.record(System.nanoTime() - startNanos);
+        logSummaryIfDue();
+    }
+
+    void recordCapture(long startNanos, ThreadInfo[] allThreadInfo) {
+        long nanos = System.nanoTime() - startNanos;
+        int threads = 0;
+        long frames = 0;
+        for (ThreadInfo threadInfo : allThreadInfo) {
+            if (threadInfo != null) {
+                threads++;
+                frames += threadInfo.getStackTrace().length;
+            }
+        }
+        recordCapture(nanos, threads, frames);
+    }
+
+    void recordCapture(long startNanos, ThreadDumpSnapshot snapshot) {
+        long nanos = System.nanoTime() - startNanos;
+        long frames = 0;
+        for (int i = 0; i < snapshot.size(); i++) {
+            frames += snapshot.getStackDepth(i);
+        }
+        recordCapture(nanos, snapshot.size(), frames);
+    }
+
+    void recordWrite(long startNanos, long bytes) {
+        writeLatency.record(System.nanoTime() - startNanos);
+        bytesWritten.addAndGet(bytes);
+        updateMax(maxBytesWritten, bytes);
+        logSummaryIfDue();
+    }
+
+    //##############################################################################################
+
+    private void recordCapture(long nanos, int threads, long frames) {
+        captureLatency.record(nanos);
+        capturedThreads.addAndGet(threads);
+        capturedFrames.addAndGet(frames);
+        updateMax(maxCapturedFrames, frames);
+        logSummaryIfDue();
+    }
+
+    private void logSummaryIfDue() {
+        int interval = summaryIntervalSeconds;
+        if (interval == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        long due = nextSummaryNanos.get();
+        // only the thread which moves the deadline on writes the line
+        if (now - due >= 0 && nextSummaryNanos.compareAndSet(due, now + TimeUnit.SECONDS.toNanos(interval)) &&
+            log.isLoggable(Level.INFO)) {
+            log.info("Thread dump overhead: " + getSummary());
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+}
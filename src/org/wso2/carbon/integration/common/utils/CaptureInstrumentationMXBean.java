@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+/**
+ * Management interface of {@link CaptureInstrumentation}, registered as
+ * {@link CaptureInstrumentation#OBJECT_NAME}. Latencies are composite data with the count,
+ * mean, 50th, 90th, 99th and 99.9th percentiles and maximum in milliseconds; counters are
+ * totals since the last reset.
+ */
+public interface CaptureInstrumentationMXBean {
+
+    LatencyHistogram.Summary getAttachLatency();
+
+    LatencyHistogram.Summary getConnectLatency();
+
+    LatencyHistogram.Summary getCaptureLatency();
+
+    LatencyHistogram.Summary getWriteLatency();
+
+    long getCapturedThreads();
+
+    long getCapturedFrames();
+
+    long getMaxCapturedFrames();
+
+    long getBytesWritten();
+
+    long getMaxBytesWritten();
+
+    int getSummaryIntervalSeconds();
+
+    void setSummaryIntervalSeconds(int summaryIntervalSeconds);
+
+    String getSummary();
+
+    void reset();
+}
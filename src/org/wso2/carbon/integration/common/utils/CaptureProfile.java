@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+/**
+ * How much of each thread {@link ThreadAnalyser#capture} fetches from a remote VM. Each profile
+ * maps to the cheapest ThreadMXBean call which returns its data, so routine polls transfer a
+ * small fraction of a full dump, and full dumps, which make the remote VM walk every stack and
+ * every lock, are left for incidents.
+ */
+public enum CaptureProfile {
+
+    /**
+     * Thread Ids and names, for counting threads by name. Uses <code>getAllThreadIds</code> and
+     * <code>getThreadInfo(long[], 0)</code>, which walks no stacks and no locks.
+     */
+    NAMES,
+
+    /**
+     * Thread Ids, names and states, for state histograms. Uses the same calls as
+     * {@link #NAMES}, which already carry the state and the lock a thread is blocked on.
+     */
+    STATES,
+
+    /**
+     * The top frames of each stack, for grouping and sampling. Uses <code>getAllThreadIds</code>
+     * and <code>getThreadInfo(long[], maxDepth)</code>, without locked monitors and
+     * synchronizers.
+     */
+    TOP_FRAMES,
+
+    /**
+     * Whole stacks with locked monitors, locked synchronizers and CPU times, for deadlock and
+     * contention analysis. Uses <code>dumpAllThreads(true, true)</code>.
+     */
+    FULL;
+
+    /**
+     * Number of frames fetched by {@link #TOP_FRAMES} when no depth is given.
+     */
+    public static final int DEFAULT_DEPTH = 8;
+}
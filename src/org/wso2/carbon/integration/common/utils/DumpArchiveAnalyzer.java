@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Analyses a directory of dump files in parallel, to answer questions over weeks of dumps such
+ * as which files have hundreds of threads BLOCKED on one lock.
+ * <p/>
+ * The file list is split in halves recursively on a ForkJoinPool until each task holds one
+ * file, so idle workers steal whole files from busy ones and throughput grows with the number
+ * of cores as long as the disk keeps up. Each file is read on its own, with its own parser and
+ * thread name counter, into a {@link DumpFileSummary}, and the summaries are merged back up the
+ * task tree into a {@link DumpArchiveSummary}. Text dumps are read with
+ * {@link ThreadDumpParser} and binary snapshot files, recognised by their magic number, with
+ * {@link SnapshotFileReader}. A file which can not be read is recorded as failed and does not
+ * stop the analysis.
+ * <p/>
+ * Progress can be polled on the returned {@link Analysis} or followed with a
+ * {@link ProgressListener}, and an analysis can be cancelled; workers check for cancellation
+ * between dumps.
+ */
+public class DumpArchiveAnalyzer {
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final ForkJoinPool pool;
+    private final ThreadNameCounter threadNameCounter;
+    private final int stackDepth;
+    private final int topStackCount;
+    private volatile ProgressListener progressListener;
+
+    /**
+     * Receives the summary of each file as soon as it has been analysed. Called on the worker
+     * threads, possibly concurrently.
+     */
+    public interface ProgressListener {
+
+        void onFileAnalysed(DumpFileSummary file, int completedFileCount, int fileCount);
+    }
+
+    /**
+     * Analyse on all available processors, with the top 20 stacks grouped on 10 frames.
+     *
+     * @param threadNameCounter patterns thread names are counted against, or <code>null</code>.
+     */
+    public DumpArchiveAnalyzer(ThreadNameCounter threadNameCounter) {
+        this(threadNameCounter, Runtime.getRuntime().availableProcessors(), 10, 20);
+    }
+
+    /**
+     * @param threadNameCounter patterns thread names are counted against, or <code>null</code>.
+     *                          Each file is counted with a copy of it.
+     * @param parallelism       number of worker threads.
+     * @param stackDepth        number of top frames stacks are grouped on, or <code>0</code> for
+     *                          the whole stack.
+     * @param topStackCount     number of most common stacks kept per file and in the summary.
+     */
+    public DumpArchiveAnalyzer(ThreadNameCounter threadNameCounter, int parallelism, int stackDepth,
+                               int topStackCount) {
+        if (stackDepth < 0 || topStackCount < 0) {
+            throw new IllegalArgumentException("Stack depth and count can not be negative");
+        }
+        this.pool = new ForkJoinPool(parallelism);
+        this.threadNameCounter = threadNameCounter == null ? new ThreadNameCounter() :
+                                 threadNameCounter.copy();
+        this.stackDepth = stackDepth;
+        this.topStackCount = topStackCount;
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Analyse every dump file in a directory and its sub directories, and wait for the result.
+     *
+     * @param directory directory of dump files.
+     * @return merged summary.
+     * @throws IOException          if the directory can not be listed.
+     * @throws InterruptedException if the calling thread is interrupted while waiting.
+     */
+    public DumpArchiveSummary analyze(File directory) throws IOException, InterruptedException {
+        Analysis analysis = start(listFiles(directory));
+        try {
+            return analysis.get();
+        } catch (InterruptedException e) {
+            analysis.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Start analysing the given files without waiting for the result.
+     *
+     * @param files dump files.
+     * @return the running analysis.
+     */
+    public Analysis start(List<File> files) {
+        long totalBytes = 0;
+        for (File file : files) {
+            totalBytes += file.length();
+        }
+        Analysis analysis = new Analysis(new ArrayList<File>(files), totalBytes);
+        pool.execute(analysis.task);
+        return analysis;
+    }
+
+    /**
+     * Stop the worker threads once the running analyses are done.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    /**
+     * List the dump files of a directory tree, sorted by path. Temporary files left by
+     * {@link ThreadDumpStore} are skipped.
+     *
+     * @param directory directory of dump files.
+     * @return dump files.
+     * @throws IOException if the directory can not be listed.
+     */
+    public static List<File> listFiles(File directory) throws IOException {
+        final List<File> files = new ArrayList<File>();
+        Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile() && !file.toString().endsWith(TEMP_SUFFIX)) {
+                    files.add(file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Collections.sort(files);
+        return files;
+    }
+
+    private DumpFileSummary analyzeFile(File file, final Analysis analysis) {
+        final ThreadNameCounter counter = threadNameCounter.copy();
+        final StackTraceGrouper grouper = new StackTraceGrouper(stackDepth);
+        final DumpFileSummary summary = new DumpFileSummary(file, counter.getPatternCount());
+        SnapshotListener listener = new SnapshotListener() {
+            public void onSnapshot(ThreadDumpSnapshot snapshot) {
+                analysis.checkCancelled();
+                summary.add(snapshot, counter.count(snapshot), grouper.group(snapshot));
+            }
+        };
+        try {
+            if (isSnapshotFile(file)) {
+                try (SnapshotFileReader reader = new SnapshotFileReader(file.getPath())) {
+                    for (int i = 0; i < reader.size(); i++) {
+                        listener.onSnapshot(reader.read(i));
+                    }
+                }
+            } else {
+                new ThreadDumpParser().parse(file.getPath(), listener);
+            }
+        } catch (IOException e) {
+            summary.fail(e);
+        } catch (CancellationException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            // a malformed file fails alone instead of the whole analysis
+            summary.fail(e);
+        }
+        summary.finish(topStackCount);
+        return summary;
+    }
+
+    private static boolean isSnapshotFile(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) {
+                // read until the magic number is complete or the file ends
+            }
+            return !magic.hasRemaining() && magic.getInt(0) == SnapshotFormat.MAGIC;
+        }
+    }
+
+    /**
+     * An analysis started by {@link #start(List)}. Cancelling it stops the workers at the next
+     * dump, and {@link #get()} then throws a CancellationException.
+     */
+    public final class Analysis implements Future<DumpArchiveSummary> {
+
+        private final List<File> files;
+        private final long totalBytes;
+        private final AtomicInteger completedFileCount = new AtomicInteger();
+        private final AtomicLong completedBytes = new AtomicLong();
+        private final AnalysisTask task;
+        private volatile boolean cancelled;
+
+        private Analysis(List<File> files, long totalBytes) {
+            this.files = files;
+            this.totalBytes = totalBytes;
+            this.task = new AnalysisTask(this, 0, files.size());
+        }
+
+        public int getFileCount() {
+            return files.size();
+        }
+
+        public int getCompletedFileCount() {
+            return completedFileCount.get();
+        }
+
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        public long getCompletedBytes() {
+            return completedBytes.get();
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (task.isDone()) {
+                return false;
+            }
+            cancelled = true;
+            task.cancel(mayInterruptIfRunning);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isDone() {
+            return task.isDone();
+        }
+
+        public DumpArchiveSummary get() throws InterruptedException, ExecutionException {
+            try {
+                return task.get();
+            } catch (ExecutionException e) {
+                checkCancelled();
+                throw e;
+            }
+        }
+
+        public DumpArchiveSummary get(long timeout, TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            try {
+                return task.get(timeout, unit);
+            } catch (ExecutionException e) {
+                checkCancelled();
+                throw e;
+            }
+        }
+
+        private void checkCancelled() {
+            if (cancelled) {
+                throw new CancellationException("Dump archive analysis cancelled");
+            }
+        }
+
+        private void completed(DumpFileSummary summary) {
+            int completed = completedFileCount.incrementAndGet();
+            completedBytes.addAndGet(summary.getFile().length());
+            ProgressListener listener = progressListener;
+            if (listener != null) {
+                listener.onFileAnalysed(summary, completed, files.size());
+            }
+        }
+    }
+
+    private final class AnalysisTask extends RecursiveTask<DumpArchiveSummary> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Analysis analysis;
+        private final int from;
+        private final int to;
+
+        AnalysisTask(Analysis analysis, int from, int to) {
+            this.analysis = analysis;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected DumpArchiveSummary compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                AnalysisTask first = new AnalysisTask(analysis, from, middle);
+                first.fork();
+                DumpArchiveSummary second = new AnalysisTask(analysis, middle, to).compute();
+                return first.join().merge(second);
+            }
+            DumpArchiveSummary summary = new DumpArchiveSummary(threadNameCounter.getPatternCount(),
+                                                                topStackCount);
+            if (to > from) {
+                analysis.checkCancelled();
+                DumpFileSummary file = analyzeFile(analysis.files.get(from), analysis);
+                summary.add(file);
+                analysis.completed(file);
+            }
+            return summary;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Merged result of a {@link DumpArchiveAnalyzer} run: the summary of every file, in the order
+ * the files were given, totals over all of them and queries to find the files worth a closer
+ * look.
+ * <p/>
+ * Top stacks are merged from the top stacks of each file, so a stack only counts in the files
+ * where it was among the most common ones. For a stack which matters across the archive that
+ * is nearly all of its samples.
+ */
+public class DumpArchiveSummary {
+
+    private static final int STATE_COUNT = Thread.State.values().length;
+
+    private final List<DumpFileSummary> files = new ArrayList<DumpFileSummary>();
+    private final long[] stateCounts = new long[STATE_COUNT];
+    private final long[] threadNameCounts;
+    private final Map<StackCount, StackCount> stackCounts = new HashMap<StackCount, StackCount>();
+    private final int topStackCount;
+    private int dumpCount;
+    private long threadCount;
+
+    DumpArchiveSummary(int patternCount, int topStackCount) {
+        this.threadNameCounts = new long[patternCount];
+        this.topStackCount = topStackCount;
+    }
+
+    void add(DumpFileSummary file) {
+        files.add(file);
+        dumpCount += file.getDumpCount();
+        threadCount += file.getThreadCount();
+        add(stateCounts, file.getStateCounts());
+        add(threadNameCounts, file.getThreadNameCounts());
+        StackCount.addAll(stackCounts, file.getTopStacks());
+    }
+
+    /**
+     * Append the files of another summary after the files of this one.
+     *
+     * @param other summary of the files which follow the files of this summary.
+     * @return this summary.
+     */
+    DumpArchiveSummary merge(DumpArchiveSummary other) {
+        files.addAll(other.files);
+        dumpCount += other.dumpCount;
+        threadCount += other.threadCount;
+        add(stateCounts, other.stateCounts);
+        add(threadNameCounts, other.threadNameCounts);
+        StackCount.addAll(stackCounts, other.stackCounts.values());
+        return this;
+    }
+
+    /**
+     * @return summary of every file, in the order the files were given.
+     */
+    public List<DumpFileSummary> getFiles() {
+        return Collections.unmodifiableList(files);
+    }
+
+    /**
+     * @return summaries of the files which could not be read, or were only partly read.
+     */
+    public List<DumpFileSummary> getFailedFiles() {
+        List<DumpFileSummary> failed = new ArrayList<DumpFileSummary>();
+        for (DumpFileSummary file : files) {
+            if (file.getFailure() != null) {
+                failed.add(file);
+            }
+        }
+        return failed;
+    }
+
+    public int getDumpCount() {
+        return dumpCount;
+    }
+
+    /**
+     * @return number of threads summed over all dumps.
+     */
+    public long getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * @return number of threads in each state summed over all dumps, indexed by
+     *         <code>Thread.State.ordinal()</code>.
+     */
+    public long[] getStateCounts() {
+        return stateCounts.clone();
+    }
+
+    /**
+     * @return thread name counts summed over all dumps, one per pattern of the analyser's
+     *         {@link ThreadNameCounter}.
+     */
+    public long[] getThreadNameCounts() {
+        return threadNameCounts.clone();
+    }
+
+    /**
+     * @return most common stacks over all files, largest first.
+     */
+    public List<StackCount> getTopStacks() {
+        List<StackCount> stacks = new ArrayList<StackCount>(stackCounts.values());
+        Collections.sort(stacks, StackCount.LARGEST_FIRST);
+        return stacks.subList(0, Math.min(topStackCount, stacks.size()));
+    }
+
+    /**
+     * Find the files with a dump in which at least the given number of threads were BLOCKED on
+     * a single lock of a class.
+     *
+     * @param lockClassName class name of the lock, e.g. <code>java.lang.Object</code>.
+     * @param minThreads    minimum number of blocked threads.
+     * @return matching files, in the order the files were given.
+     */
+    public List<DumpFileSummary> getFilesWithBlockedThreads(String lockClassName, int minThreads) {
+        List<DumpFileSummary> matches = new ArrayList<DumpFileSummary>();
+        for (DumpFileSummary file : files) {
+            if (file.getMaxBlockedThreads(lockClassName) >= minThreads) {
+                matches.add(file);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Find the files with a dump in which at least the given number of threads were in a state.
+     *
+     * @param threadState thread state.
+     * @param minThreads  minimum number of threads in that state.
+     * @return matching files, in the order the files were given.
+     */
+    public List<DumpFileSummary> getFilesWithState(Thread.State threadState, int minThreads) {
+        List<DumpFileSummary> matches = new ArrayList<DumpFileSummary>();
+        for (DumpFileSummary file : files) {
+            if (file.getMaxStateCounts()[threadState.ordinal()] >= minThreads) {
+                matches.add(file);
+            }
+        }
+        return matches;
+    }
+
+    private static void add(long[] totals, long[] counts) {
+        for (int i = 0; i < totals.length; i++) {
+            totals[i] += counts[i];
+        }
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a {@link DumpArchiveAnalyzer} found in one dump file: the number of dumps, thread state
+ * histograms and thread name counts, both summed over the dumps and at their peak in a single
+ * dump, the peak number of threads blocked on one lock of each lock class, and the most common
+ * stacks.
+ * <p/>
+ * A file which can not be read, or whose content is malformed, has a failure and the counts of
+ * the dumps read before the error.
+ */
+public class DumpFileSummary {
+
+    private static final int STATE_COUNT = Thread.State.values().length;
+
+    private final File file;
+    private final long[] stateCounts = new long[STATE_COUNT];
+    private final int[] maxStateCounts = new int[STATE_COUNT];
+    private final long[] threadNameCounts;
+    private final int[] maxThreadNameCounts;
+    private final Map<String, Integer> maxBlockedThreads = new HashMap<String, Integer>();
+    private Map<StackCount, StackCount> stackCounts = new HashMap<StackCount, StackCount>();
+    private List<StackCount> topStacks = Collections.emptyList();
+    private int dumpCount;
+    private long threadCount;
+    private long firstTimestamp;
+    private long lastTimestamp;
+    private Exception failure;
+
+    DumpFileSummary(File file, int patternCount) {
+        this.file = file;
+        this.threadNameCounts = new long[patternCount];
+        this.maxThreadNameCounts = new int[patternCount];
+    }
+
+    void add(ThreadDumpSnapshot snapshot, int[] nameCounts, List<StackGroup> stackGroups) {
+        if (dumpCount++ == 0) {
+            firstTimestamp = snapshot.getTimestamp();
+        }
+        lastTimestamp = snapshot.getTimestamp();
+        threadCount += snapshot.size();
+
+        int[] counts = snapshot.getStateCounts();
+        for (int state = 0; state < STATE_COUNT; state++) {
+            stateCounts[state] += counts[state];
+            maxStateCounts[state] = Math.max(maxStateCounts[state], counts[state]);
+        }
+        for (int pattern = 0; pattern < nameCounts.length; pattern++) {
+            threadNameCounts[pattern] += nameCounts[pattern];
+            maxThreadNameCounts[pattern] = Math.max(maxThreadNameCounts[pattern], nameCounts[pattern]);
+        }
+
+        int[] blocked = new int[snapshot.getLockCount()];
+        for (int index = 0; index < snapshot.size(); index++) {
+            if (snapshot.getThreadState(index) == Thread.State.BLOCKED && snapshot.getLockId(index) >= 0) {
+                blocked[snapshot.getLockId(index)]++;
+            }
+        }
+        for (int lockId = 0; lockId < blocked.length; lockId++) {
+            if (blocked[lockId] > getMaxBlockedThreads(snapshot.getLockClassName(lockId))) {
+                maxBlockedThreads.put(snapshot.getLockClassName(lockId), blocked[lockId]);
+            }
+        }
+
+        for (StackGroup group : stackGroups) {
+            StackCount stack = new StackCount(group.getThreadState(), group.stackTrace(),
+                                              group.getThreadCount());
+            StackCount existing = stackCounts.get(stack);
+            if (existing == null) {
+                stackCounts.put(stack, stack);
+            } else {
+                existing.add(group.getThreadCount());
+            }
+        }
+    }
+
+    void fail(Exception failure) {
+        this.failure = failure;
+    }
+
+    /**
+     * Keep only the most common stacks, once every dump of the file has been added.
+     */
+    void finish(int topStackCount) {
+        List<StackCount> stacks = new ArrayList<StackCount>(stackCounts.values());
+        Collections.sort(stacks, StackCount.LARGEST_FIRST);
+        topStacks = Collections.unmodifiableList(
+                new ArrayList<StackCount>(stacks.subList(0, Math.min(topStackCount, stacks.size()))));
+        stackCounts = null;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return the error which stopped the file from being read or analysed, or <code>null</code>.
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+    public int getDumpCount() {
+        return dumpCount;
+    }
+
+    /**
+     * @return number of threads summed over the dumps of the file.
+     */
+    public long getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * @return timestamp of the first dump, or <code>0</code> if the file has no dumps.
+     */
+    public long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    /**
+     * @return timestamp of the last dump, or <code>0</code> if the file has no dumps.
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * @return number of threads in each state summed over the dumps, indexed by
+     *         <code>Thread.State.ordinal()</code>.
+     */
+    public long[] getStateCounts() {
+        return stateCounts.clone();
+    }
+
+    /**
+     * @return largest number of threads in each state in a single dump, indexed by
+     *         <code>Thread.State.ordinal()</code>.
+     */
+    public int[] getMaxStateCounts() {
+        return maxStateCounts.clone();
+    }
+
+    /**
+     * @return thread name counts summed over the dumps, one per pattern of the analyser's
+     *         {@link ThreadNameCounter}.
+     */
+    public long[] getThreadNameCounts() {
+        return threadNameCounts.clone();
+    }
+
+    /**
+     * @return largest thread name counts in a single dump, one per pattern of the analyser's
+     *         {@link ThreadNameCounter}.
+     */
+    public int[] getMaxThreadNameCounts() {
+        return maxThreadNameCounts.clone();
+    }
+
+    /**
+     * @param lockClassName class name of the lock, e.g. <code>java.lang.Object</code>.
+     * @return largest number of threads BLOCKED on a single lock of that class in one dump.
+     */
+    public int getMaxBlockedThreads(String lockClassName) {
+        Integer count = maxBlockedThreads.get(lockClassName);
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return largest number of threads BLOCKED on a single lock in one dump, by lock class name.
+     */
+    public Map<String, Integer> getMaxBlockedThreads() {
+        return Collections.unmodifiableMap(maxBlockedThreads);
+    }
+
+    /**
+     * @return most common stacks of the file, largest first.
+     */
+    public List<StackCount> getTopStacks() {
+        return topStacks;
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Ranks the threads of a remote VM by the CPU they used since the previous sample, to find the
+ * thread which is burning a core.
+ * <p/>
+ * A sample reads the thread Ids and the CPU times of all threads with two remote calls, using the
+ * bulk <code>long[]</code> variants of <code>com.sun.management.ThreadMXBean</code> when the proxy
+ * implements it (see {@link ThreadAnalyser#getThreadMXBeanObjects}). User times are read only when
+ * asked for, since on Linux they cost about ten times as much as CPU times. Only the hottest
+ * threads then have their stacks fetched, in one <code>getThreadInfo(long[], int)</code> call
+ * without lock information, right after their CPU times were read. The previous CPU times are kept
+ * in primitive maps which only hold the live threads, so memory stays flat however long the sampler
+ * runs. Without the bulk interface every thread costs one or two remote calls, which is only
+ * suitable for small VMs.
+ * <p/>
+ * The time spent in the remote calls of each sample is measured, and {@link #getOverhead()}
+ * relates it to the time the sampler has been running, as a bound on the share of a core the
+ * target spends answering the sampler.
+ */
+public class HotThreadSampler {
+
+    private final ThreadMXBean threadMXBean;
+    private final com.sun.management.ThreadMXBean bulkThreadMXBean;
+    private final int stackDepth;
+    private final boolean userTime;
+
+    private LongLongHashMap previousCpuTimes = new LongLongHashMap(256);
+    private LongLongHashMap previousUserTimes = new LongLongHashMap(256);
+    private LongLongHashMap cpuTimes = new LongLongHashMap(256);
+    private LongLongHashMap userTimes = new LongLongHashMap(256);
+    private long previousSampleNanos = -1;
+
+    private long firstSampleNanos = -1;
+    private long lastSampleEndNanos;
+    private long sampleCount;
+    private long lastSampleDurationNanos;
+    private long maxSampleDurationNanos;
+    private long totalSampleDurationNanos;
+
+    /**
+     * One thread of a ranking, with its share of a core over the last interval and the stack it
+     * had at the end of the interval.
+     */
+    public static final class HotThread {
+
+        private final long threadId;
+        private final String threadName;
+        private final Thread.State threadState;
+        private final long cpuTime;
+        private final long userTime;
+        private final double cpuPercent;
+        private final double userPercent;
+        private final StackTraceElement[] stackTrace;
+
+        HotThread(long threadId, String threadName, Thread.State threadState, long cpuTime,
+                  long userTime, double cpuPercent, double userPercent,
+                  StackTraceElement[] stackTrace) {
+            this.threadId = threadId;
+            this.threadName = threadName;
+            this.threadState = threadState;
+            this.cpuTime = cpuTime;
+            this.userTime = userTime;
+            this.cpuPercent = cpuPercent;
+            this.userPercent = userPercent;
+            this.stackTrace = stackTrace;
+        }
+
+        public long getThreadId() {
+            return threadId;
+        }
+
+        public String getThreadName() {
+            return threadName;
+        }
+
+        public Thread.State getThreadState() {
+            return threadState;
+        }
+
+        /**
+         * @return CPU time used over the interval, in nanoseconds.
+         */
+        public long getCpuTime() {
+            return cpuTime;
+        }
+
+        /**
+         * @return user mode CPU time used over the interval, in nanoseconds, or <code>-1</code>
+         *         if user times are not sampled.
+         */
+        public long getUserTime() {
+            return userTime;
+        }
+
+        /**
+         * @return CPU time over the interval as a percentage of one core.
+         */
+        public double getCpuPercent() {
+            return cpuPercent;
+        }
+
+        /**
+         * @return user mode CPU time over the interval as a percentage of one core, or
+         *         <code>-1</code> if user times are not sampled.
+         */
+        public double getUserPercent() {
+            return userPercent;
+        }
+
+        public StackTraceElement[] getStackTrace() {
+            return stackTrace.clone();
+        }
+    }
+
+    /**
+     * Sample CPU times only.
+     *
+     * @param threadMXBean ThreadMXBean object of remote VM, with CPU time measurement enabled.
+     * @param stackDepth   maximum number of frames fetched for each hot thread.
+     * @throws IllegalStateException if the VM does not measure thread CPU time.
+     */
+    public HotThreadSampler(ThreadMXBean threadMXBean, int stackDepth) {
+        this(threadMXBean, stackDepth, false);
+    }
+
+    /**
+     * @param threadMXBean ThreadMXBean object of remote VM, with CPU time measurement enabled.
+     * @param stackDepth   maximum number of frames fetched for each hot thread.
+     * @param userTime     <code>true</code> to also sample user mode CPU times.
+     * @throws IllegalStateException if the VM does not measure thread CPU time.
+     */
+    public HotThreadSampler(ThreadMXBean threadMXBean, int stackDepth, boolean userTime) {
+        if (!threadMXBean.isThreadCpuTimeSupported() || !threadMXBean.isThreadCpuTimeEnabled()) {
+            throw new IllegalStateException("Thread CPU time measurement is not enabled");
+        }
+        if (stackDepth < 0) {
+            throw new IllegalArgumentException("Depth can not be negative: " + stackDepth);
+        }
+        this.threadMXBean = threadMXBean;
+        this.bulkThreadMXBean = threadMXBean instanceof com.sun.management.ThreadMXBean ?
+                                (com.sun.management.ThreadMXBean) threadMXBean : null;
+        this.stackDepth = stackDepth;
+        this.userTime = userTime;
+    }
+
+    /**
+     * Read the CPU times of all threads and rank them by the CPU they used since the previous
+     * call. The first call only records the times and returns an empty ranking.
+     *
+     * @param limit maximum number of threads returned.
+     * @return hottest threads, highest CPU first. Threads which used no CPU are left out.
+     */
+    public synchronized List<HotThread> sample(int limit) {
+        long startNanos = System.nanoTime();
+        long[] threadIds = threadMXBean.getAllThreadIds();
+        long[] threadCpuTimes;
+        long[] threadUserTimes = null;
+        if (bulkThreadMXBean != null) {
+            threadCpuTimes = bulkThreadMXBean.getThreadCpuTime(threadIds);
+            if (userTime) {
+                threadUserTimes = bulkThreadMXBean.getThreadUserTime(threadIds);
+            }
+        } else {
+            threadCpuTimes = new long[threadIds.length];
+            threadUserTimes = userTime ? new long[threadIds.length] : null;
+            for (int i = 0; i < threadIds.length; i++) {
+                threadCpuTimes[i] = threadMXBean.getThreadCpuTime(threadIds[i]);
+                if (userTime) {
+                    threadUserTimes[i] = threadMXBean.getThreadUserTime(threadIds[i]);
+                }
+            }
+        }
+        long sampleNanos = System.nanoTime();
+        long intervalNanos = previousSampleNanos < 0 ? 0 : sampleNanos - previousSampleNanos;
+
+        // keep the hottest threads in descending order while the deltas are computed
+        int hotCount = 0;
+        long[] hotIds = new long[Math.max(0, limit)];
+        long[] hotCpuTimes = new long[hotIds.length];
+        long[] hotUserTimes = new long[hotIds.length];
+        cpuTimes.clear();
+        userTimes.clear();
+        for (int i = 0; i < threadIds.length; i++) {
+            if (threadCpuTimes[i] < 0) {
+                // the thread has died since getAllThreadIds
+                continue;
+            }
+            cpuTimes.put(threadIds[i], threadCpuTimes[i]);
+            if (userTime) {
+                userTimes.put(threadIds[i], Math.max(0, threadUserTimes[i]));
+            }
+            if (intervalNanos == 0) {
+                continue;
+            }
+            // a thread without a previous time has started since the previous sample
+            long cpuTime = threadCpuTimes[i] - Math.max(0, previousCpuTimes.get(threadIds[i]));
+            if (cpuTime <= 0 || (hotCount == hotIds.length &&
+                                 (hotCount == 0 || cpuTime <= hotCpuTimes[hotCount - 1]))) {
+                continue;
+            }
+            int position = hotCount < hotIds.length ? hotCount++ : hotCount - 1;
+            while (position > 0 && hotCpuTimes[position - 1] < cpuTime) {
+                hotIds[position] = hotIds[position - 1];
+                hotCpuTimes[position] = hotCpuTimes[position - 1];
+                hotUserTimes[position] = hotUserTimes[position - 1];
+                position--;
+            }
+            hotIds[position] = threadIds[i];
+            hotCpuTimes[position] = cpuTime;
+            // user time is read after CPU time and can run slightly ahead of it
+            hotUserTimes[position] = !userTime ? -1 :
+                                     Math.min(cpuTime, Math.max(0, threadUserTimes[i] -
+                                              Math.max(0, previousUserTimes.get(threadIds[i]))));
+        }
+        swapTimes();
+        previousSampleNanos = sampleNanos;
+
+        List<HotThread> hotThreads = hotCount == 0 ? Collections.<HotThread>emptyList() :
+                                     getHotThreads(Arrays.copyOf(hotIds, hotCount), hotCpuTimes,
+                                                   hotUserTimes, intervalNanos);
+        recordDuration(startNanos, System.nanoTime());
+        return hotThreads;
+    }
+
+    /**
+     * @return number of samples taken.
+     */
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @return time taken by the remote calls of the last sample, in nanoseconds.
+     */
+    public synchronized long getLastSampleDurationNanos() {
+        return lastSampleDurationNanos;
+    }
+
+    public synchronized long getMaxSampleDurationNanos() {
+        return maxSampleDurationNanos;
+    }
+
+    public synchronized long getAverageSampleDurationNanos() {
+        return sampleCount == 0 ? 0 : totalSampleDurationNanos / sampleCount;
+    }
+
+    /**
+     * @return time spent sampling as a fraction of the time since the first sample started, or
+     *         <code>0</code> before the second sample.
+     */
+    public synchronized double getOverhead() {
+        long elapsedNanos = lastSampleEndNanos - firstSampleNanos;
+        return sampleCount < 2 || elapsedNanos <= 0 ? 0 :
+               (double) totalSampleDurationNanos / elapsedNanos;
+    }
+
+    private List<HotThread> getHotThreads(long[] hotIds, long[] hotCpuTimes, long[] hotUserTimes,
+                                          long intervalNanos) {
+        ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(hotIds, stackDepth);
+        List<HotThread> hotThreads = new ArrayList<HotThread>(hotIds.length);
+        for (int i = 0; i < hotIds.length; i++) {
+            ThreadInfo threadInfo = threadInfos[i];
+            if (threadInfo == null) {
+                // died before its stack was fetched
+                continue;
+            }
+            hotThreads.add(new HotThread(hotIds[i], threadInfo.getThreadName(),
+                                         threadInfo.getThreadState(), hotCpuTimes[i],
+                                         hotUserTimes[i], 100.0 * hotCpuTimes[i] / intervalNanos,
+                                         userTime ? 100.0 * hotUserTimes[i] / intervalNanos : -1,
+                                         threadInfo.getStackTrace()));
+        }
+        return hotThreads;
+    }
+
+    private void swapTimes() {
+        LongLongHashMap swap = previousCpuTimes;
+        previousCpuTimes = cpuTimes;
+        cpuTimes = swap;
+        swap = previousUserTimes;
+        previousUserTimes = userTimes;
+        userTimes = swap;
+    }
+
+    private void recordDuration(long startNanos, long endNanos) {
+        if (firstSampleNanos < 0) {
+            firstSampleNanos = startNanos;
+        }
+        lastSampleEndNanos = endNanos;
+        lastSampleDurationNanos = endNanos - startNanos;
+        maxSampleDurationNanos = Math.max(maxSampleDurationNanos, lastSampleDurationNanos);
+        totalSampleDurationNanos += lastSampleDurationNanos;
+        sampleCount++;
+    }
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import com.sun.tools.attach.AgentInitializationException;
+import com.sun.tools.attach.AgentLoadException;
+import com.sun.tools.attach.AttachNotSupportedException;
+
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps one open JMX connector, MBean server connection and ThreadMXBean proxy per target VM, so
+ * repeated polling of the same VM does not attach, load the management agent or connect again on
+ * every call.
+ * <p/>
+ * Targets are keyed by connector address. When a target is requested by process Id, the attach
+ * API is used once to resolve the connector address, and the VM is detached straight away.
+ * Connections which have not been used for <code>idleTimeoutMillis</code> are closed by a
+ * background daemon thread. Every call through a connection or proxy handed out by the cache
+ * counts as use, so a sampler which keeps a ThreadMXBean proxy and polls it does not lose its
+ * connector. A connection which has not been used for <code>healthCheckIntervalMillis</code> is
+ * checked with a cheap remote call before it is handed out, and a connection which failed, had
+ * a call fail with an <code>IOException</code> or was closed by the server is reconnected on its
+ * next use.
+ * {@link #close()} closes every connector, so a long running monitor keeps a constant number of
+ * sockets and threads.
+ * <p/>
+ * No lock is held across a remote call. A connector is connected and checked without locking and
+ * published with a compare and set, and invalidated or idle connectors are closed on a background
+ * thread, so a target which hangs in connect, in a call or in close never blocks the callers of
+ * another target, nor the caller which gives up on it.
+ */
+public class JMXConnectionCache implements Closeable {
+
+    private final long idleTimeoutMillis;
+    private final long healthCheckIntervalMillis;
+    private final MBeanHandler mBeanHandler;
+    private final ThreadAnalyser threadAnalyser = new ThreadAnalyser();
+
+    private final ConcurrentMap<Integer, String> connectorAddresses =
+            new ConcurrentHashMap<Integer, String>();
+    private final ConcurrentMap<String, CachedConnection> connections =
+            new ConcurrentHashMap<String, CachedConnection>();
+
+    private ScheduledExecutorService evictionExecutor;
+    private ExecutorService closeExecutor;
+    private boolean closed;
+
+    /**
+     * @param idleTimeoutMillis         time after which an unused connection is closed.
+     * @param healthCheckIntervalMillis time after which an unused connection is checked before
+     *                                  it is used again.
+     */
+    public JMXConnectionCache(long idleTimeoutMillis, long healthCheckIntervalMillis) {
+        this(idleTimeoutMillis, healthCheckIntervalMillis, new MBeanHandler());
+    }
+
+    /**
+     * @param idleTimeoutMillis         time after which an unused connection is closed.
+     * @param healthCheckIntervalMillis time after which an unused connection is checked before
+     *                                  it is used again.
+     * @param mBeanHandler              handler used to attach and connect, which records the
+     *                                  attach and connect times.
+     */
+    JMXConnectionCache(long idleTimeoutMillis, long healthCheckIntervalMillis,
+                       MBeanHandler mBeanHandler) {
+        if (idleTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Idle timeout must be positive: " + idleTimeoutMillis);
+        }
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.healthCheckIntervalMillis = healthCheckIntervalMillis;
+        this.mBeanHandler = mBeanHandler;
+    }
+
+    /**
+     * Get the MBean server connection of a local java process, attaching to it only if its
+     * connector address is not known yet.
+     *
+     * @param pid Java process Id.
+     * @return MBean server connection.
+     * @throws java.io.IOException if attaching or connecting to the VM fails.
+     * @throws com.sun.tools.attach.AttachNotSupportedException  if attaching VM fails.
+     * @throws com.sun.tools.attach.AgentLoadException           if loading the management agent
+     *                                                           fails.
+     * @throws com.sun.tools.attach.AgentInitializationException if the management agent fails
+     *                                                           to start.
+     */
+    public MBeanServerConnection getMBeanServerConnection(int pid)
+            throws IOException, AttachNotSupportedException, AgentLoadException,
+                   AgentInitializationException {
+        return getConnection(pid).getMBeanServerConnection();
+    }
+
+    /**
+     * @param connectorAddress JMX service URL of the VM.
+     * @return MBean server connection.
+     * @throws java.io.IOException if connecting to the VM fails.
+     */
+    public MBeanServerConnection getMBeanServerConnection(String connectorAddress)
+            throws IOException {
+        return getConnection(connectorAddress).getMBeanServerConnection();
+    }
+
+    /**
+     * Get the ThreadMXBean proxy of a local java process. The proxy is created once per
+     * connection and reused.
+     *
+     * @param pid Java process Id.
+     * @return ThreadMXBean proxy.
+     * @throws java.io.IOException if attaching or connecting to the VM fails.
+     * @throws com.sun.tools.attach.AttachNotSupportedException  if attaching VM fails.
+     * @throws com.sun.tools.attach.AgentLoadException           if loading the management agent
+     *                                                           fails.
+     * @throws com.sun.tools.attach.AgentInitializationException if the management agent fails
+     *                                                           to start.
+     */
+    public ThreadMXBean getThreadMXBean(int pid)
+            throws IOException, AttachNotSupportedException, AgentLoadException,
+                   AgentInitializationException {
+        return getConnection(pid).getThreadMXBean();
+    }
+
+    /**
+     * @param connectorAddress JMX service URL of the VM.
+     * @return ThreadMXBean proxy, created once per connection and reused.
+     * @throws java.io.IOException if connecting to the VM fails.
+     */
+    public ThreadMXBean getThreadMXBean(String connectorAddress) throws IOException {
+        return getConnection(connectorAddress).getThreadMXBean();
+    }
+
+    /**
+     * Close the connection of a process and forget its connector address, for example after a
+     * call through it failed or timed out. The connector is closed on a background thread, which
+     * also fails a call still pending on it, so this never blocks.
+     *
+     * @param pid Java process Id.
+     */
+    public void invalidate(int pid) {
+        String connectorAddress = connectorAddresses.remove(pid);
+        if (connectorAddress != null) {
+            invalidate(connectorAddress);
+        }
+    }
+
+    /**
+     * Close the connection to a connector address, on a background thread. The next request
+     * reconnects.
+     *
+     * @param connectorAddress JMX service URL of the VM.
+     */
+    public void invalidate(String connectorAddress) {
+        CachedConnection connection = connections.remove(connectorAddress);
+        if (connection != null) {
+            closeInBackground(connection.detach());
+        }
+    }
+
+    /**
+     * Close the connections which have not been used for the idle timeout.
+     *
+     * @return number of connections closed.
+     */
+    public int evictIdle() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        for (Iterator<Map.Entry<String, CachedConnection>> iterator =
+                     connections.entrySet().iterator(); iterator.hasNext(); ) {
+            CachedConnection connection = iterator.next().getValue();
+            if (now - connection.getLastUsedMillis() > idleTimeoutMillis) {
+                iterator.remove();
+                closeInBackground(connection.detach());
+                evicted++;
+            }
+        }
+        if (evicted > 0) {
+            connectorAddresses.values().retainAll(connections.keySet());
+        }
+        return evicted;
+    }
+
+    /**
+     * @return number of open connections.
+     */
+    public int size() {
+        return connections.size();
+    }
+
+    /**
+     * Close every connection and stop the eviction thread. The cache cannot be used afterwards.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            if (evictionExecutor != null) {
+                evictionExecutor.shutdownNow();
+            }
+            if (closeExecutor != null) {
+                closeExecutor.shutdown();
+            }
+        }
+        for (CachedConnection connection : connections.values()) {
+            OpenConnector openConnector = connection.detach();
+            if (openConnector != null) {
+                openConnector.close();
+            }
+        }
+        connections.clear();
+        connectorAddresses.clear();
+    }
+
+    //##############################################################################################
+
+    private OpenConnector getConnection(int pid)
+            throws IOException, AttachNotSupportedException, AgentLoadException,
+                   AgentInitializationException {
+        String connectorAddress = connectorAddresses.get(pid);
+        if (connectorAddress == null) {
+            connectorAddress = mBeanHandler.getConnectorAddress(pid);
+            if (connectorAddress == null) {
+                throw new IOException("No JMX connector address for process " + pid);
+            }
+            connectorAddresses.put(pid, connectorAddress);
+        }
+        try {
+            return getConnection(connectorAddress);
+        } catch (IOException e) {
+            // the process may have restarted its management agent on a new address
+            connectorAddresses.remove(pid);
+            throw e;
+        }
+    }
+
+    private OpenConnector getConnection(String connectorAddress) throws IOException {
+        startEviction();
+        while (true) {
+            CachedConnection connection = connections.get(connectorAddress);
+            if (connection == null) {
+                CachedConnection created = new CachedConnection(connectorAddress);
+                connection = connections.putIfAbsent(connectorAddress, created);
+                if (connection == null) {
+                    connection = created;
+                }
+            }
+            OpenConnector openConnector = connection.connect();
+            if (connections.get(connectorAddress) == connection) {
+                return openConnector;
+            }
+            // evicted or invalidated while connecting, do not leak the new connector
+            closeInBackground(connection.detach());
+        }
+    }
+
+    private void closeInBackground(final OpenConnector openConnector) {
+        if (openConnector == null) {
+            return;
+        }
+        Runnable close = new Runnable() {
+            public void run() {
+                openConnector.close();
+            }
+        };
+        ExecutorService executor;
+        synchronized (this) {
+            if (closeExecutor == null && !closed) {
+                // threads are only kept while connectors are being closed
+                closeExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                                                       new SynchronousQueue<Runnable>(),
+                                                       ThreadDumpSampler.daemonThreadFactory("jmx-connection-closer"));
+            }
+            executor = closeExecutor;
+        }
+        try {
+            if (executor != null) {
+                executor.execute(close);
+                return;
+            }
+        } catch (RejectedExecutionException ignored) {
+            // the cache is closed, close here
+        }
+        close.run();
+    }
+
+    private synchronized void startEviction() {
+        if (closed) {
+            throw new IllegalStateException("Connection cache is closed");
+        }
+        if (evictionExecutor == null) {
+            evictionExecutor = Executors.newSingleThreadScheduledExecutor(
+                    ThreadDumpSampler.daemonThreadFactory("jmx-connection-eviction"));
+            long period = Math.max(1, idleTimeoutMillis / 2);
+            evictionExecutor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    evictIdle();
+                }
+            }, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * The connection of one target. Its connector is replaced as a whole with compare and set
+     * operations, never under a lock, so a slow target does not hold up the others nor the
+     * threads which close it.
+     */
+    private class CachedConnection {
+
+        private final String connectorAddress;
+        private final AtomicReference<OpenConnector> current = new AtomicReference<OpenConnector>();
+        private volatile long lastUsedMillis = System.currentTimeMillis();
+
+        CachedConnection(String connectorAddress) {
+            this.connectorAddress = connectorAddress;
+        }
+
+        OpenConnector connect() throws IOException {
+            OpenConnector openConnector = current.get();
+            if (openConnector != null && !openConnector.isBroken() &&
+                System.currentTimeMillis() - lastUsedMillis > healthCheckIntervalMillis) {
+                openConnector.check();
+            }
+            if (openConnector != null && openConnector.isBroken()) {
+                if (current.compareAndSet(openConnector, null)) {
+                    openConnector.close();
+                }
+                openConnector = null;
+            }
+            while (openConnector == null) {
+                OpenConnector created = new OpenConnector(this, mBeanHandler.getJMXConnector(connectorAddress));
+                if (current.compareAndSet(null, created)) {
+                    openConnector = created;
+                } else {
+                    // another thread connected first
+                    created.close();
+                    openConnector = current.get();
+                }
+            }
+            touch();
+            return openConnector;
+        }
+
+        void touch() {
+            lastUsedMillis = System.currentTimeMillis();
+        }
+
+        /**
+         * @return the open connector, which the caller has to close, or <code>null</code>.
+         */
+        OpenConnector detach() {
+            return current.getAndSet(null);
+        }
+
+        long getLastUsedMillis() {
+            return lastUsedMillis;
+        }
+    }
+
+    /**
+     * One connector with its connection and proxy. The connection handed out forwards every
+     * call to the connection of the connector, marking the cached connection as used and the
+     * connector as broken when a call fails with an <code>IOException</code>.
+     */
+    private class OpenConnector implements NotificationListener, InvocationHandler {
+
+        private final CachedConnection owner;
+        private final JMXConnector connector;
+        private final MBeanServerConnection remoteConnection;
+        private final MBeanServerConnection mBeanServerConnection;
+        private ThreadMXBean threadMXBean;
+        private volatile boolean broken;
+
+        OpenConnector(CachedConnection owner, JMXConnector connector) throws IOException {
+            this.owner = owner;
+            this.connector = connector;
+            connector.addConnectionNotificationListener(this, null, null);
+            try {
+                remoteConnection = connector.getMBeanServerConnection();
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+            mBeanServerConnection = (MBeanServerConnection) Proxy.newProxyInstance(
+                    JMXConnectionCache.class.getClassLoader(),
+                    new Class<?>[]{MBeanServerConnection.class}, this);
+        }
+
+        MBeanServerConnection getMBeanServerConnection() {
+            return mBeanServerConnection;
+        }
+
+        synchronized ThreadMXBean getThreadMXBean() throws IOException {
+            if (threadMXBean == null) {
+                try {
+                    threadMXBean = threadAnalyser.getThreadMXBeanObjects(
+                            new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME),
+                            mBeanServerConnection);
+                } catch (MalformedObjectNameException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return threadMXBean;
+        }
+
+        boolean isBroken() {
+            return broken;
+        }
+
+        void check() {
+            try {
+                remoteConnection.getMBeanCount();
+            } catch (IOException e) {
+                broken = true;
+            }
+        }
+
+        void close() {
+            broken = true;
+            try {
+                connector.removeConnectionNotificationListener(this);
+            } catch (Exception ignored) {
+                // the listener goes away with the connector anyway
+            }
+            try {
+                connector.close();
+            } catch (IOException ignored) {
+                // the connection is dropped either way
+            }
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            owner.touch();
+            try {
+                return method.invoke(remoteConnection, args);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException) {
+                    broken = true;
+                }
+                throw e.getCause();
+            }
+        }
+
+        public void handleNotification(Notification notification, Object handback) {
+            String type = notification.getType();
+            if (JMXConnectionNotification.FAILED.equals(type) ||
+                JMXConnectionNotification.CLOSED.equals(type)) {
+                broken = true;
+            }
+        }
+    }
+}
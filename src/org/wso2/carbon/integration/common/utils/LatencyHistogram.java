@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import javax.management.openmbean.CompositeData;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in nanoseconds, laid out like an HdrHistogram: values below 256 have
+ * a bucket each, and every higher power of two range is split into 128 buckets, so a recorded
+ * value is known to within 1% at any magnitude while the counts of values up to ten minutes fit
+ * in 4.5k longs. Percentiles are therefore exact to the bucket, instead of being averaged
+ * away, and the histogram never grows.
+ * <p/>
+ * Recording is lock free and can be done from many threads. Reads are not atomic with respect
+ * to concurrent recording, so a summary taken while values are recorded may miss the latest
+ * ones.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT >> 1;
+    private static final double NANOS_PER_MILLI = 1000000.0;
+
+    private final long highestTrackableValue;
+    private final AtomicLongArray counts;
+    private final AtomicLong totalCount = new AtomicLong();
+    private final AtomicLong totalValue = new AtomicLong();
+    private final AtomicLong maxValue = new AtomicLong();
+
+    /**
+     * @param highestTrackableValue highest latency, in nanoseconds, with its own bucket. Higher
+     *                              values are counted in the last bucket, but still reported
+     *                              as the maximum.
+     */
+    public LatencyHistogram(long highestTrackableValue) {
+        if (highestTrackableValue < SUB_BUCKET_COUNT) {
+            throw new IllegalArgumentException("Highest trackable value must be at least " +
+                                               SUB_BUCKET_COUNT + ": " + highestTrackableValue);
+        }
+        this.highestTrackableValue = highestTrackableValue;
+        this.counts = new AtomicLongArray(indexOf(highestTrackableValue) + 1);
+    }
+
+    /**
+     * @param nanos latency in nanoseconds. Negative values, which a clock that went backwards
+     *              can produce, are recorded as zero.
+     */
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(indexOf(Math.min(value, highestTrackableValue)));
+        totalCount.incrementAndGet();
+        totalValue.addAndGet(value);
+        long max = maxValue.get();
+        while (value > max && !maxValue.compareAndSet(max, value)) {
+            max = maxValue.get();
+        }
+    }
+
+    public long getCount() {
+        return totalCount.get();
+    }
+
+    public long getMaxNanos() {
+        return maxValue.get();
+    }
+
+    public double getMeanNanos() {
+        long count = totalCount.get();
+        return count == 0 ? 0 : (double) totalValue.get() / count;
+    }
+
+    /**
+     * @param percentile percentile, from 0 to 100.
+     * @return the highest latency of the bucket holding the percentile, in nanoseconds, never
+     *         more than the maximum, or <code>0</code> if nothing was recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100: " + percentile);
+        }
+        long count = totalCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int index = 0; index < counts.length(); index++) {
+            seen += counts.get(index);
+            if (seen >= target) {
+                return Math.min(highestValueAt(index), maxValue.get());
+            }
+        }
+        return maxValue.get();
+    }
+
+    /**
+     * @return count, mean and percentiles of the recorded latencies, in milliseconds.
+     */
+    public Summary getSummary() {
+        return new Summary(getCount(), getMeanNanos() / NANOS_PER_MILLI,
+                           getValueAtPercentile(50) / NANOS_PER_MILLI,
+                           getValueAtPercentile(90) / NANOS_PER_MILLI,
+                           getValueAtPercentile(99) / NANOS_PER_MILLI,
+                           getValueAtPercentile(99.9) / NANOS_PER_MILLI,
+                           getMaxNanos() / NANOS_PER_MILLI);
+    }
+
+    /**
+     * Forget every recorded latency.
+     */
+    public void reset() {
+        for (int index = 0; index < counts.length(); index++) {
+            counts.set(index, 0);
+        }
+        totalCount.set(0);
+        totalValue.set(0);
+        maxValue.set(0);
+    }
+
+    //##############################################################################################
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // value is in [2^k, 2^(k+1)), shifted down into the upper half of the sub buckets
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS + 1;
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT +
+               (int) (value >>> shift) - SUB_BUCKET_HALF_COUNT;
+    }
+
+    static long highestValueAt(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1;
+        long subBucket = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * Latencies of a histogram at one point in time, in milliseconds. Exposed over JMX as
+     * composite data.
+     */
+    public static class Summary {
+
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p90;
+        private final double p99;
+        private final double p999;
+        private final double max;
+
+        Summary(long count, double mean, double p50, double p90, double p99, double p999, double max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        /**
+         * Rebuild a summary read over JMX, which lets MXBean proxies return it.
+         *
+         * @param data composite data of a summary.
+         * @return the summary.
+         */
+        public static Summary from(CompositeData data) {
+            return new Summary((Long) data.get("count"), (Double) data.get("meanMillis"),
+                               (Double) data.get("p50Millis"), (Double) data.get("p90Millis"),
+                               (Double) data.get("p99Millis"), (Double) data.get("p999Millis"),
+                               (Double) data.get("maxMillis"));
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMillis() {
+            return mean;
+        }
+
+        public double getP50Millis() {
+            return p50;
+        }
+
+        public double getP90Millis() {
+            return p90;
+        }
+
+        public double getP99Millis() {
+            return p99;
+        }
+
+        public double getP999Millis() {
+            return p999;
+        }
+
+        public double getMaxMillis() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("n=%d mean=%.2fms p50=%.2fms p99=%.2fms max=%.2fms", count, mean, p50, p99, max);
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Waits-for graph of the threads of one snapshot: which thread each thread waits for, the
+ * cycles among them (deadlocks), and how many threads wait on each lock.
+ * <p/>
+ * Owners come from the lock owner recorded for each waiting thread and, for blocked threads
+ * whose owner was not reported, from the monitors and synchronizers locked by the other threads.
+ * Everything is derived from a single thread dump, so finding deadlocks and lock convoys costs
+ * one remote call instead of <code>findDeadlockedThreads()</code> followed by a dump. Each
+ * thread waits for at most one other thread, so the graph is built and walked in time linear in
+ * the number of threads and locks.
+ */
+public class LockGraph {
+
+    private final ThreadDumpSnapshot snapshot;
+
+    private final int[] waitsFor;
+    private final int[] lockOwners;
+    private final int[] waiterCounts;
+    private final int[] transitiveWaiterCounts;
+    private final boolean[] deadlocked;
+    private final List<int[]> cycles = new ArrayList<int[]>();
+
+    /**
+     * @param snapshot thread dump snapshot with locked monitors and synchronizers.
+     */
+    public LockGraph(ThreadDumpSnapshot snapshot) {
+        this.snapshot = snapshot;
+        int size = snapshot.size();
+
+        lockOwners = new int[snapshot.getLockCount()];
+        Arrays.fill(lockOwners, -1);
+        for (int index = 0; index < size; index++) {
+            for (int i = 0; i < snapshot.getLockedMonitorCount(index); i++) {
+                lockOwners[snapshot.getLockedMonitorId(index, i)] = index;
+            }
+            for (int i = 0; i < snapshot.getLockedSynchronizerCount(index); i++) {
+                lockOwners[snapshot.getLockedSynchronizerId(index, i)] = index;
+            }
+        }
+
+        waitsFor = new int[size];
+        waiterCounts = new int[lockOwners.length];
+        for (int index = 0; index < size; index++) {
+            waitsFor[index] = findOwner(index);
+            if (waitsFor[index] >= 0) {
+                int lockId = snapshot.getLockId(index);
+                waiterCounts[lockId]++;
+                if (lockOwners[lockId] < 0) {
+                    lockOwners[lockId] = waitsFor[index];
+                }
+            }
+        }
+
+        deadlocked = new boolean[size];
+        findCycles();
+        transitiveWaiterCounts = countTransitiveWaiters();
+    }
+
+    /**
+     * Build the graph of the threads of a thread dump taken with locked monitors and
+     * synchronizers.
+     *
+     * @param allThreadInfo Array of ThreadInfo objects.
+     * @return lock graph of the threads.
+     */
+    public static LockGraph fromThreadInfo(ThreadInfo[] allThreadInfo) {
+        return new LockGraph(ThreadDumpSnapshot.fromThreadInfo(allThreadInfo));
+    }
+
+    public ThreadDumpSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @param index index of the thread.
+     * @return index of the thread owning the lock this thread waits for, or <code>-1</code> if
+     *         it does not wait for another thread.
+     */
+    public int getWaitsFor(int index) {
+        return waitsFor[index];
+    }
+
+    /**
+     * Follow the owners from a thread until a thread which does not wait, or until the chain
+     * reaches a thread it already contains.
+     *
+     * @param index index of the first thread.
+     * @return indexes of the threads in the chain, starting with the given thread.
+     */
+    public int[] getWaitChain(int index) {
+        int[] chain = new int[4];
+        int length = 0;
+        boolean[] seen = new boolean[waitsFor.length];
+        for (int current = index; current >= 0 && !seen[current]; current = waitsFor[current]) {
+            seen[current] = true;
+            if (length == chain.length) {
+                chain = Arrays.copyOf(chain, length << 1);
+            }
+            chain[length++] = current;
+        }
+        return Arrays.copyOf(chain, length);
+    }
+
+    /**
+     * @return thread indexes of each waits-for cycle, in the order the threads wait for each
+     *         other.
+     */
+    public List<int[]> getCycles() {
+        List<int[]> copies = new ArrayList<int[]>(cycles.size());
+        for (int[] cycle : cycles) {
+            copies.add(cycle.clone());
+        }
+        return copies;
+    }
+
+    public boolean isDeadlocked(int index) {
+        return deadlocked[index];
+    }
+
+    /**
+     * @return Ids of the deadlocked threads or <code>null</code> if there is no deadlock.
+     */
+    public long[] getDeadlockedThreadIds() {
+        if (cycles.isEmpty()) {
+            return null;
+        }
+        long[] ids = new long[waitsFor.length];
+        int count = 0;
+        for (int index = 0; index < waitsFor.length; index++) {
+            if (deadlocked[index]) {
+                ids[count++] = snapshot.getThreadId(index);
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * @param lockId Id of the lock in the lock table of the snapshot.
+     * @return index of the thread holding the lock or <code>-1</code> if it is not known.
+     */
+    public int getLockOwner(int lockId) {
+        return lockOwners[lockId];
+    }
+
+    /**
+     * @param lockId Id of the lock in the lock table of the snapshot.
+     * @return number of threads waiting for another thread to release the lock.
+     */
+    public int getWaiterCount(int lockId) {
+        return waiterCounts[lockId];
+    }
+
+    /**
+     * @param index index of the thread.
+     * @return number of threads which directly or indirectly wait for this thread.
+     */
+    public int getTransitiveWaiterCount(int index) {
+        return transitiveWaiterCounts[index];
+    }
+
+    /**
+     * @param limit maximum number of locks returned.
+     * @return Ids of the locks with waiters, most waiters first.
+     */
+    public int[] getHottestLocks(int limit) {
+        return getContendedLocks(1, limit);
+    }
+
+    /**
+     * Find lock convoys, where many threads queue up behind the holder of a single lock.
+     *
+     * @param minWaiters minimum number of waiters of a lock.
+     * @return Ids of the locks with at least the given number of waiters, most waiters first.
+     */
+    public int[] getConvoyLocks(int minWaiters) {
+        return getContendedLocks(Math.max(minWaiters, 1), Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param lockId Id of the lock in the lock table of the snapshot.
+     * @return indexes of the threads waiting for another thread to release the lock.
+     */
+    public int[] getWaiters(int lockId) {
+        int[] waiters = new int[waiterCounts[lockId]];
+        int count = 0;
+        for (int index = 0; index < waitsFor.length && count < waiters.length; index++) {
+            if (waitsFor[index] >= 0 && snapshot.getLockId(index) == lockId) {
+                waiters[count++] = index;
+            }
+        }
+        return waiters;
+    }
+
+    private int findOwner(int index) {
+        int lockId = snapshot.getLockId(index);
+        if (lockId < 0) {
+            return -1;
+        }
+        long ownerId = snapshot.getLockOwnerId(index);
+        if (ownerId >= 0) {
+            return snapshot.indexOf(ownerId);
+        }
+        // a thread in Object.wait() has released the monitor, so only a blocked thread waits
+        // for whoever holds it
+        if (snapshot.getThreadState(index) == Thread.State.BLOCKED && lockOwners[lockId] != index) {
+            return lockOwners[lockId];
+        }
+        return -1;
+    }
+
+    private void findCycles() {
+        int[] visitedBy = new int[waitsFor.length];
+        for (int start = 0; start < waitsFor.length; start++) {
+            int walk = start + 1;
+            int current = start;
+            while (current >= 0 && visitedBy[current] == 0) {
+                visitedBy[current] = walk;
+                current = waitsFor[current];
+            }
+            if (current >= 0 && visitedBy[current] == walk) {
+                int length = 0;
+                int member = current;
+                do {
+                    length++;
+                    member = waitsFor[member];
+                } while (member != current);
+                int[] cycle = new int[length];
+                for (int i = 0; i < length; i++) {
+                    cycle[i] = member;
+                    deadlocked[member] = true;
+                    member = waitsFor[member];
+                }
+                cycles.add(cycle);
+            }
+        }
+    }
+
+    private int[] countTransitiveWaiters() {
+        // threads in a cycle wait for each other forever, so only chains ending in a running
+        // thread are counted; each thread adds one to every thread ahead of it in its chain
+        int size = waitsFor.length;
+        int[] counts = new int[size];
+        int[] pending = new int[size];
+        for (int index = 0; index < size; index++) {
+            if (waitsFor[index] >= 0) {
+                pending[waitsFor[index]]++;
+            }
+        }
+        int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+        for (int index = 0; index < size; index++) {
+            if (pending[index] == 0) {
+                queue[tail++] = index;
+            }
+        }
+        while (head < tail) {
+            int index = queue[head++];
+            int owner = waitsFor[index];
+            if (owner >= 0 && !deadlocked[owner]) {
+                counts[owner] += counts[index] + 1;
+                if (--pending[owner] == 0) {
+                    queue[tail++] = owner;
+                }
+            }
+        }
+        return counts;
+    }
+
+    private int[] getContendedLocks(int minWaiters, int limit) {
+        int count = 0;
+        Integer[] lockIds = new Integer[waiterCounts.length];
+        for (int lockId = 0; lockId < waiterCounts.length; lockId++) {
+            if (waiterCounts[lockId] >= minWaiters) {
+                lockIds[count++] = lockId;
+            }
+        }
+        Arrays.sort(lockIds, 0, count, new Comparator<Integer>() {
+            public int compare(Integer first, Integer second) {
+                return waiterCounts[second] - waiterCounts[first];
+            }
+        });
+        int[] hottest = new int[Math.min(count, limit)];
+        for (int i = 0; i < hottest.length; i++) {
+            hottest[i] = lockIds[i];
+        }
+        return hottest;
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing table of primitive <code>long</code> keys with linear probing, shared by the
+ * primitive maps. Subclasses keep their values in a parallel array of their own type, indexed
+ * by the slots this table returns, so no key or value is boxed and an <code>int</code> map does
+ * not pay for <code>long</code> values.
+ */
+abstract class LongKeyHashTable {
+
+    private long[] keys;
+    private boolean[] used;
+    private int size;
+    private int mask;
+
+    LongKeyHashTable(int expectedSize) {
+        int capacity = 8;
+        while (capacity * 3 < expectedSize * 4) {
+            capacity <<= 1;
+        }
+        keys = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    /**
+     * @return number of slots, which is the length the value array must have.
+     */
+    final int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @param key key.
+     * @return slot of the key or <code>-1</code> if it is missing.
+     */
+    final int find(long key) {
+        int slot = slot(key);
+        while (used[slot]) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the slot of a key, adding the key if it is missing. Adding may grow the table, which
+     * moves the values through {@link #moveValues(int[], int)} first.
+     *
+     * @param key key.
+     * @return slot of the key if it was present, or <code>~slot</code> if it was added.
+     */
+    final int insert(long key) {
+        int slot = find(key);
+        if (slot >= 0) {
+            return slot;
+        }
+        if ((size + 1) * 4 > keys.length * 3) {
+            rehash(keys.length << 1);
+        }
+        slot = freeSlot(key);
+        used[slot] = true;
+        keys[slot] = key;
+        size++;
+        return ~slot;
+    }
+
+    /**
+     * Move the values into a value array of the new capacity.
+     *
+     * @param movedTo  new slot of every old slot, or <code>-1</code> for unused slots.
+     * @param capacity new number of slots.
+     */
+    abstract void moveValues(int[] movedTo, int capacity);
+
+    //##############################################################################################
+
+    private int slot(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private int freeSlot(long key) {
+        int slot = slot(key);
+        while (used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        boolean[] oldUsed = used;
+        keys = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+        int[] movedTo = new int[oldKeys.length];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldUsed[i]) {
+                int slot = freeSlot(oldKeys[i]);
+                used[slot] = true;
+                keys[slot] = oldKeys[i];
+                movedTo[i] = slot;
+            } else {
+                movedTo[i] = -1;
+            }
+        }
+        moveValues(movedTo, capacity);
+    }
+}
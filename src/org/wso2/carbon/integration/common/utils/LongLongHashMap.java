@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+/**
+ * Open addressing hash map from primitive <code>long</code> keys to <code>long</code> values, used
+ * to keep per thread counters such as CPU times between samples without boxing. Lookups of
+ * missing keys return <code>-1</code>, so values are expected to be non negative.
+ */
+class LongLongHashMap extends LongKeyHashTable {
+
+    private static final long MISSING = -1;
+
+    private long[] values;
+
+    LongLongHashMap(int expectedSize) {
+        super(expectedSize);
+        values = new long[capacity()];
+    }
+
+    /**
+     * @param key key.
+     * @return value mapped to the key or <code>-1</code> if there is none.
+     */
+    long get(long key) {
+        int slot = find(key);
+        return slot < 0 ? MISSING : values[slot];
+    }
+
+    boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * @param key   key.
+     * @param value non negative value.
+     * @return previous value mapped to the key or <code>-1</code> if there was none.
+     */
+    long put(long key, long value) {
+        int slot = insert(key);
+        if (slot < 0) {
+            values[~slot] = value;
+            return MISSING;
+        }
+        long previous = values[slot];
+        values[slot] = value;
+        return previous;
+    }
+
+    @Override
+    void moveValues(int[] movedTo, int capacity) {
+        long[] oldValues = values;
+        values = new long[capacity];
+        for (int i = 0; i < movedTo.length; i++) {
+            if (movedTo[i] >= 0) {
+                values[movedTo[i]] = oldValues[i];
+            }
+        }
+    }
+}
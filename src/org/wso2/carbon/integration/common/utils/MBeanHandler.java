@@ -30,16 +30,29 @@ import javax.management.QueryExp;
 import javax.management.remote.JMXConnector;
 import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
-import java.io.File;
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.Set;
 
-public class MBeanHandler {
+public class MBeanHandler implements Closeable {
+
+    private static final long IDLE_TIMEOUT_MILLIS = 10 * 60 * 1000;
+    private static final long HEALTH_CHECK_INTERVAL_MILLIS = 30 * 1000;
 
     private final String LOCAL_CONNECTOR_ADDRESS;
+    private final CaptureInstrumentation instrumentation;
+    private JMXConnectionCache connectionCache;
 
     public MBeanHandler() {
+        this(CaptureInstrumentation.getDefault());
+    }
+
+    /**
+     * @param instrumentation records attach and connect times.
+     */
+    public MBeanHandler(CaptureInstrumentation instrumentation) {
         LOCAL_CONNECTOR_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
+        this.instrumentation = instrumentation;
     }
 
     /**
@@ -62,25 +75,29 @@ public class MBeanHandler {
     public String getConnectorAddress(int pid)
             throws IOException, AttachNotSupportedException, AgentLoadException,
                    AgentInitializationException {
+        long startNanos = System.nanoTime();
         VirtualMachine remoteVirtualMachine = VirtualMachine.attach(Integer.toString(pid));
-        String connectorAddress = remoteVirtualMachine.getAgentProperties().getProperty(LOCAL_CONNECTOR_ADDRESS);
+        try {
+            String connectorAddress = remoteVirtualMachine.getAgentProperties().getProperty(LOCAL_CONNECTOR_ADDRESS);
 
-        if (connectorAddress == null) {
+            if (connectorAddress == null) {
+                //management-agent.jar is gone since JDK 9, the VM starts the agent itself
+                connectorAddress = remoteVirtualMachine.startLocalManagementAgent();
+            }
 
-            final String JAVA_HOME = "java.home";
-            final String MANAGEMENT_AGENT_JAR = "management-agent.jar";
-            String LIBRARY = "lib";
-            String agent = remoteVirtualMachine.getSystemProperties().getProperty(JAVA_HOME) + File.separator + LIBRARY + File.separator + MANAGEMENT_AGENT_JAR;
-            remoteVirtualMachine.loadAgent(agent);
-            connectorAddress = remoteVirtualMachine.getAgentProperties().getProperty(LOCAL_CONNECTOR_ADDRESS);
+            return connectorAddress;
+        } finally {
+            remoteVirtualMachine.detach();
+            instrumentation.recordAttach(startNanos);
         }
-
-        return connectorAddress;
     }
 
     /**
      * Connects to the MBean server using connector address and return the connection if
-     * connected successfully. else it gives <tt>IOException</tt>.
+     * connected successfully. else it gives <tt>IOException</tt>. Connections are kept in a
+     * {@link JMXConnectionCache}, one per address, which checks them before reuse, reconnects
+     * broken ones and closes those unused for ten minutes, until
+     * {@link #closeConnection(String)} or {@link #close()} is called.
      *
      * @param connectorAddress Address of remote VM
      * @return MBean server connection
@@ -89,9 +106,56 @@ public class MBeanHandler {
      */
     public MBeanServerConnection getMBeanServerConnection(String connectorAddress)
             throws IOException {
+        return getConnectionCache().getMBeanServerConnection(connectorAddress);
+    }
+
+    /**
+     * Close the connector kept for an address, for example after a call through it failed,
+     * without waiting for it to close. The next {@link #getMBeanServerConnection(String)} for
+     * the address connects again.
+     *
+     * @param connectorAddress Address of remote VM
+     */
+    public void closeConnection(String connectorAddress) {
+        JMXConnectionCache cache;
+        synchronized (this) {
+            cache = connectionCache;
+        }
+        if (cache != null) {
+            cache.invalidate(connectorAddress);
+        }
+    }
+
+    /**
+     * Connects to the MBean server using connector address and return the connector. The
+     * caller owns the connector and has to close it.
+     *
+     * @param connectorAddress Address of remote VM
+     * @return connected JMX connector
+     * @throws java.io.IOException if fails to connect to server
+     *                     can be results in an <tt>IOException</tt>.
+     */
+    public JMXConnector getJMXConnector(String connectorAddress) throws IOException {
         JMXServiceURL serviceUrl = new JMXServiceURL(connectorAddress);
+        long startNanos = System.nanoTime();
         JMXConnector connector = JMXConnectorFactory.connect(serviceUrl);
-        return connector.getMBeanServerConnection();
+        instrumentation.recordConnect(startNanos);
+        return connector;
+    }
+
+    /**
+     * Close every connector opened by {@link #getMBeanServerConnection(String)}. The handler
+     * can still be used afterwards and connects again.
+     */
+    public void close() {
+        JMXConnectionCache cache;
+        synchronized (this) {
+            cache = connectionCache;
+            connectionCache = null;
+        }
+        if (cache != null) {
+            cache.close();
+        }
     }
 
     /**
@@ -137,4 +201,14 @@ public class MBeanHandler {
             return mBeanServerConnection.queryNames(objectName, query);
     }
 
+    //##############################################################################################
+
+    private synchronized JMXConnectionCache getConnectionCache() {
+        if (connectionCache == null) {
+            connectionCache = new JMXConnectionCache(IDLE_TIMEOUT_MILLIS, HEALTH_CHECK_INTERVAL_MILLIS,
+                                                     this);
+        }
+        return connectionCache;
+    }
+
 }
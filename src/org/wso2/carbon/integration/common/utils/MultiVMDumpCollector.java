@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import com.sun.tools.attach.VirtualMachine;
+import com.sun.tools.attach.VirtualMachineDescriptor;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Takes a thread dump of many local VMs at nearly the same moment.
+ * <p/>
+ * Collection runs in two phases, with one thread per target. First every target is attached and
+ * connected through the {@link JMXConnectionCache}. Then, once all the targets are connected (or
+ * the timeout has passed), all the threads are released together and capture their dump, so the
+ * slow part of reaching a VM does not spread the capture times. Each target has its own timeout
+ * for each phase: a target which does not answer in time is reported as timed out, its connection
+ * is closed on a background thread to unblock the pending call, and it does not hold up the
+ * others.
+ */
+public class MultiVMDumpCollector {
+
+    private final JMXConnectionCache connectionCache;
+    private final ThreadAnalyser threadAnalyser = new ThreadAnalyser();
+
+    /**
+     * @param connectionCache cache used to attach and connect to the targets.
+     */
+    public MultiVMDumpCollector(JMXConnectionCache connectionCache) {
+        this.connectionCache = connectionCache;
+    }
+
+    /**
+     * List the Ids of the java processes which can be attached to, except this one.
+     *
+     * @return process Ids.
+     */
+    public static List<Integer> discoverJavaProcesses() {
+        String ownPid = ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+        List<Integer> pids = new ArrayList<Integer>();
+        for (VirtualMachineDescriptor descriptor : VirtualMachine.list()) {
+            if (!descriptor.id().equals(ownPid)) {
+                try {
+                    pids.add(Integer.parseInt(descriptor.id()));
+                } catch (NumberFormatException ignored) {
+                    // not a process Id, can not be attached by pid
+                }
+            }
+        }
+        return pids;
+    }
+
+    /**
+     * Dump every attachable java process of this host.
+     *
+     * @param timeoutMillis time allowed to each target for connecting and for capturing.
+     * @return one result per target.
+     * @throws InterruptedException if interrupted while waiting for the targets.
+     */
+    public List<TargetDump> collectAll(long timeoutMillis) throws InterruptedException {
+        return collect(discoverJavaProcesses(), timeoutMillis);
+    }
+
+    /**
+     * Dump the given java processes in parallel.
+     *
+     * @param pids          Java process Ids.
+     * @param timeoutMillis time allowed to each target for connecting and for capturing.
+     * @return one result per target, in the order of <code>pids</code>.
+     * @throws InterruptedException if interrupted while waiting for the targets.
+     */
+    public List<TargetDump> collect(List<Integer> pids, long timeoutMillis)
+            throws InterruptedException {
+        List<TargetDump> results = new ArrayList<TargetDump>(pids.size());
+        if (pids.isEmpty()) {
+            return results;
+        }
+        final CountDownLatch connected = new CountDownLatch(pids.size());
+        final CountDownLatch startCapture = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(
+                pids.size(), ThreadDumpSampler.daemonThreadFactory("multi-vm-dump-collector"));
+        try {
+            List<Future<TargetDump>> futures = new ArrayList<Future<TargetDump>>(pids.size());
+            for (final Integer pid : pids) {
+                futures.add(executor.submit(new Callable<TargetDump>() {
+                    public TargetDump call() throws Exception {
+                        ThreadMXBean threadMXBean;
+                        try {
+                            threadMXBean = connectionCache.getThreadMXBean(pid);
+                        } finally {
+                            connected.countDown();
+                        }
+                        startCapture.await();
+                        long startNanos = System.nanoTime();
+                        ThreadDumpSnapshot snapshot = threadAnalyser.getSnapshot(threadMXBean);
+                        return new TargetDump(pid, snapshot, null, false, startNanos,
+                                              System.nanoTime());
+                    }
+                }));
+            }
+
+            connected.await(timeoutMillis, TimeUnit.MILLISECONDS);
+            startCapture.countDown();
+
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            for (int i = 0; i < pids.size(); i++) {
+                results.add(await(pids.get(i), futures.get(i), deadline));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    private TargetDump await(int pid, Future<TargetDump> future, long deadline)
+            throws InterruptedException {
+        try {
+            return future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (ExecutionException e) {
+            connectionCache.invalidate(pid);
+            return new TargetDump(pid, null, e.getCause(), false, 0, 0);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            // does not wait for the connector of the hung target to close
+            connectionCache.invalidate(pid);
+            return new TargetDump(pid, null, e, true, 0, 0);
+        }
+    }
+
+    /**
+     * @param dumps results of a collection.
+     * @return time between the first and the last capture start among the successful dumps, in
+     *         nanoseconds, or <code>0</code> if fewer than two dumps succeeded.
+     */
+    public static long getCaptureSpreadNanos(List<TargetDump> dumps) {
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        for (TargetDump dump : dumps) {
+            if (dump.getSnapshot() != null) {
+                first = Math.min(first, dump.getCaptureStartNanos());
+                last = Math.max(last, dump.getCaptureStartNanos());
+            }
+        }
+        return first < last ? last - first : 0;
+    }
+
+    /**
+     * Write the successful dumps of a collection, each in a file named after its process Id.
+     *
+     * @param dumps           results of a collection.
+     * @param threadDumpStore store the dumps are written to.
+     * @return the dump files, in the order of the successful dumps.
+     * @throws IOException if a file can not be written.
+     */
+    public static List<File> store(List<TargetDump> dumps, ThreadDumpStore threadDumpStore)
+            throws IOException {
+        List<File> files = new ArrayList<File>();
+        for (TargetDump dump : dumps) {
+            if (dump.getSnapshot() != null) {
+                files.add(threadDumpStore.store(Integer.toString(dump.getPid()), dump.getSnapshot()));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Result of dumping one target: either a snapshot or the failure which prevented it.
+     */
+    public static class TargetDump {
+
+        private final int pid;
+        private final ThreadDumpSnapshot snapshot;
+        private final Throwable failure;
+        private final boolean timedOut;
+        private final long captureStartNanos;
+        private final long captureEndNanos;
+
+        TargetDump(int pid, ThreadDumpSnapshot snapshot, Throwable failure, boolean timedOut,
+                   long captureStartNanos, long captureEndNanos) {
+            this.pid = pid;
+            this.snapshot = snapshot;
+            this.failure = failure;
+            this.timedOut = timedOut;
+            this.captureStartNanos = captureStartNanos;
+            this.captureEndNanos = captureEndNanos;
+        }
+
+        public int getPid() {
+            return pid;
+        }
+
+        /**
+         * @return snapshot of the target or <code>null</code> if the dump failed.
+         */
+        public ThreadDumpSnapshot getSnapshot() {
+            return snapshot;
+        }
+
+        /**
+         * @return failure which prevented the dump or <code>null</code> if it succeeded.
+         */
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * @return <code>System.nanoTime()</code> when the capture started.
+         */
+        public long getCaptureStartNanos() {
+            return captureStartNanos;
+        }
+
+        /**
+         * @return <code>System.nanoTime()</code> when the capture ended.
+         */
+        public long getCaptureEndNanos() {
+            return captureEndNanos;
+        }
+    }
+}
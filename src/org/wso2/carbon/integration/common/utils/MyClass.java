@@ -40,7 +40,7 @@ public class MyClass {
 //        MBeanServerConnection mBeanServerConnection = threadDumpMonitor.getMBeanServerConnection(connectorAddress);
 //        Set<ObjectName> mbeanObjects = threadDumpMonitor.getMbeanObjects(connectorAddress);
 //        ArrayList<ThreadMXBean> threadMXBeans = threadDumpMonitor.getThreadMXBeanObjects(mbeanObjects, mBeanServerConnection);
-//        threadDumpMonitor.createThreadDumpFile(threadMXBeans, "/home/buddhi/Desktop");
+//        threadDumpMonitor.createThreadDumpFile("15547", threadMXBeans, "/home/buddhi/Desktop");
 //        long[] ids = threadDumpMonitor.getAllThreadIds(threadMXBeans);
 //
 //        for (long l:ids){
@@ -53,7 +53,9 @@ public class MyClass {
 
         MBeanHandler myMBeanHandler = new MBeanHandler();
 
-        String connectorAddress = myMBeanHandler.getConnectorAddress(5048);
+        int pid = 5048;
+
+        String connectorAddress = myMBeanHandler.getConnectorAddress(pid);
 
         MBeanServerConnection mBeanServerConnection = myMBeanHandler.getMBeanServerConnection(connectorAddress);
 
@@ -63,9 +65,21 @@ public class MyClass {
 
         ThreadMXBean myThreadMXBean = myThreadAnalyser.getThreadMXBeanObjects(objectName, mBeanServerConnection);
 
+        ThreadDumpSnapshot names = myThreadAnalyser.capture(myThreadMXBean, CaptureProfile.NAMES);
+
+        System.out.println("Thread count using regex:  " + myThreadAnalyser.getThreadCountUsingRegex(names, "PassThrough"));
+
+        for (ThreadPoolAnalyzer.ThreadPool threadPool : myThreadAnalyser.getThreadPools(myThreadMXBean, 2)) {
+            System.out.println(threadPool);
+        }
+
         ThreadInfo[] myThreadInfo = myThreadAnalyser.getAllThreadInfo(myThreadMXBean);
 
-        myThreadAnalyser.createThreadDumpFile(myThreadInfo, "/home/buddhi/Desktop");
+        myThreadAnalyser.createThreadDumpFile(Integer.toString(pid), myThreadInfo, "/home/buddhi/Desktop");
+
+        System.out.println("Overhead:  " + CaptureInstrumentation.getDefault().getSummary());
+
+        myMBeanHandler.close();
 
         System.out.println("done....");
 
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the stacks of a remote VM at a fixed rate and aggregates them into a frame trie, from
+ * which collapsed stacks (the folded format of flame graph tools) are written.
+ * <p/>
+ * Stacks are taken without lock information, which is what makes full thread dumps expensive:
+ * with <code>dumpAllThreads(false, false)</code> when stacks are not cut, otherwise with
+ * <code>getAllThreadIds</code> and <code>getThreadInfo(long[], maxDepth)</code>, which also keeps
+ * the transferred stacks short. A cut stack loses its bottom frames, so it starts below the
+ * thread's real root in the flame graph.
+ * <p/>
+ * Frames are interned per method, <code>class.method</code>, so the lines of one method share a
+ * node. Stack trace elements are looked up in a map from element to frame Id, which allocates
+ * only for elements never seen before, and a trie node is found from its parent node and frame
+ * Id in a primitive hash map. Node data lives in parallel arrays, so after warm up adding a
+ * stack to the trie allocates nothing and costs one map lookup per frame, which keeps up with
+ * 50 to 100 samples per second. Memory grows with the number of distinct call paths, not with
+ * the number of samples.
+ */
+public class SamplingProfiler {
+
+    private static final int ROOT = 0;
+
+    private final ThreadMXBean threadMXBean;
+    private final long intervalNanos;
+    private final int maxDepth;
+    private final boolean runnableOnly;
+
+    // interned frames
+    private final Map<StackTraceElement, Integer> elementFrames = new HashMap<StackTraceElement, Integer>();
+    private final Map<String, Integer> frameIds = new HashMap<String, Integer>();
+    private String[] frameNames = new String[256];
+
+    // frame trie, node 0 is the root
+    private final LongIntHashMap children = new LongIntHashMap(1024);
+    private int[] parents = new int[1024];
+    private int[] frames = new int[1024];
+    private long[] selfCounts = new long[1024];
+    private int nodeCount = 1;
+
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> samplingTask;
+
+    private long sampleCount;
+    private long failedSampleCount;
+    private long stackCount;
+    private long lastCaptureNanos;
+    private long maxCaptureNanos;
+    private long totalCaptureNanos;
+
+    /**
+     * @param threadMXBean     ThreadMXBean object of remote VM.
+     * @param samplesPerSecond sampling rate.
+     * @param maxDepth         maximum number of frames taken from each stack, or <code>0</code>
+     *                         for whole stacks.
+     * @param runnableOnly     <code>true</code> to aggregate RUNNABLE threads only, which shows
+     *                         where CPU is spent rather than where threads wait.
+     */
+    public SamplingProfiler(ThreadMXBean threadMXBean, int samplesPerSecond, int maxDepth,
+                            boolean runnableOnly) {
+        if (samplesPerSecond <= 0 || samplesPerSecond > 1000) {
+            throw new IllegalArgumentException("Sampling rate must be between 1 and 1000: " +
+                                               samplesPerSecond);
+        }
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("Depth can not be negative: " + maxDepth);
+        }
+        this.threadMXBean = threadMXBean;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / samplesPerSecond;
+        this.maxDepth = maxDepth;
+        this.runnableOnly = runnableOnly;
+    }
+
+    /**
+     * Start sampling. The first sample is taken immediately.
+     *
+     * @throws IllegalStateException if the profiler is already running.
+     */
+    public synchronized void start() {
+        if (samplingTask != null) {
+            throw new IllegalStateException("Profiler is already running");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                ThreadDumpSampler.daemonThreadFactory("sampling-profiler"));
+        samplingTask = scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                sample();
+            }
+        }, 0, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stop sampling. The aggregated stacks are kept.
+     */
+    public synchronized void stop() {
+        if (samplingTask == null) {
+            return;
+        }
+        samplingTask.cancel(false);
+        scheduler.shutdown();
+        samplingTask = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return samplingTask != null;
+    }
+
+    /**
+     * Take one sample and add its stacks to the trie. Called by the sampling schedule, and can
+     * be called directly to sample at a custom pace.
+     */
+    public void sample() {
+        long sampleStartNanos = System.nanoTime();
+        ThreadInfo[] threadInfos;
+        try {
+            threadInfos = maxDepth == 0 ? threadMXBean.dumpAllThreads(false, false) :
+                          threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds(), maxDepth);
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                failedSampleCount++;
+            }
+            return;
+        }
+        long captureNanos = System.nanoTime() - sampleStartNanos;
+
+        synchronized (this) {
+            for (ThreadInfo threadInfo : threadInfos) {
+                if (threadInfo != null &&
+                    (!runnableOnly || threadInfo.getThreadState() == Thread.State.RUNNABLE)) {
+                    add(threadInfo.getStackTrace());
+                }
+            }
+            lastCaptureNanos = captureNanos;
+            maxCaptureNanos = Math.max(maxCaptureNanos, captureNanos);
+            totalCaptureNanos += captureNanos;
+            sampleCount++;
+        }
+    }
+
+    /**
+     * Write the aggregated stacks in the collapsed format read by flame graph tools, one line
+     * per distinct stack, root frame first:
+     * <pre>
+     * java.lang.Thread.run;org.example.Worker.run;java.util.HashMap.get 42
+     * </pre>
+     *
+     * @param writer destination, which is not closed.
+     * @throws IOException if writing fails.
+     */
+    public synchronized void writeFoldedStacks(Writer writer) throws IOException {
+        int[] path = new int[16];
+        StringBuilder line = new StringBuilder(256);
+        for (int node = 1; node < nodeCount; node++) {
+            if (selfCounts[node] == 0) {
+                continue;
+            }
+            int depth = 0;
+            for (int ancestor = node; ancestor != ROOT; ancestor = parents[ancestor]) {
+                if (depth == path.length) {
+                    path = Arrays.copyOf(path, depth << 1);
+                }
+                path[depth++] = frames[ancestor];
+            }
+            line.setLength(0);
+            for (int i = depth - 1; i >= 0; i--) {
+                line.append(frameNames[path[i]]);
+                line.append(i == 0 ? ' ' : ';');
+            }
+            line.append(selfCounts[node]).append('\n');
+            writer.write(line.toString());
+        }
+        writer.flush();
+    }
+
+    /**
+     * Drop the aggregated stacks and start counting again. Interned frames are kept.
+     */
+    public synchronized void reset() {
+        children.clear();
+        nodeCount = 1;
+        stackCount = 0;
+    }
+
+    private void add(StackTraceElement[] stackTrace) {
+        if (stackTrace.length == 0) {
+            return;
+        }
+        int node = ROOT;
+        for (int i = stackTrace.length - 1; i >= 0; i--) {
+            int frameId = intern(stackTrace[i]);
+            long key = ((long) node << 32) | frameId;
+            int child = children.get(key);
+            if (child < 0) {
+                child = addNode(node, frameId);
+                children.put(key, child);
+            }
+            node = child;
+        }
+        selfCounts[node]++;
+        stackCount++;
+    }
+
+    private int intern(StackTraceElement element) {
+        Integer frameId = elementFrames.get(element);
+        if (frameId == null) {
+            String frameName = element.getClassName() + '.' + element.getMethodName();
+            frameId = frameIds.get(frameName);
+            if (frameId == null) {
+                frameId = frameIds.size();
+                if (frameId == frameNames.length) {
+                    frameNames = Arrays.copyOf(frameNames, frameId << 1);
+                }
+                frameNames[frameId] = frameName;
+                frameIds.put(frameName, frameId);
+            }
+            elementFrames.put(element, frameId);
+        }
+        return frameId;
+    }
+
+    private int addNode(int parent, int frameId) {
+        if (nodeCount == parents.length) {
+            parents = Arrays.copyOf(parents, nodeCount << 1);
+            frames = Arrays.copyOf(frames, nodeCount << 1);
+            selfCounts = Arrays.copyOf(selfCounts, nodeCount << 1);
+        }
+        parents[nodeCount] = parent;
+        frames[nodeCount] = frameId;
+        selfCounts[nodeCount] = 0;
+        return nodeCount++;
+    }
+
+    //##############################################################################################
+
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    public synchronized long getFailedSampleCount() {
+        return failedSampleCount;
+    }
+
+    /**
+     * @return number of thread stacks aggregated since the last reset.
+     */
+    public synchronized long getStackCount() {
+        return stackCount;
+    }
+
+    /**
+     * @return number of nodes in the frame trie, the number of distinct call paths.
+     */
+    public synchronized int getNodeCount() {
+        return nodeCount - 1;
+    }
+
+    /**
+     * @return time taken to capture the last sample, in nanoseconds.
+     */
+    public synchronized long getLastCaptureNanos() {
+        return lastCaptureNanos;
+    }
+
+    public synchronized long getMaxCaptureNanos() {
+        return maxCaptureNanos;
+    }
+
+    public synchronized long getMeanCaptureNanos() {
+        return sampleCount == 0 ? 0 : totalCaptureNanos / sampleCount;
+    }
+
+    /**
+     * @return <code>true</code> if captures take longer on average than the sampling interval,
+     *         which means samples are taken late and the requested rate cannot be kept.
+     */
+    public synchronized boolean isFallingBehind() {
+        return getMeanCaptureNanos() > intervalNanos;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.util.Arrays;
+
+/**
+ * Differences between two snapshots of the same VM, matched by thread Id: threads which started
+ * or exited in between, threads which changed state, threads whose stack trace did not change,
+ * and how much each thread was blocked and waited in between.
+ * <p/>
+ * Both snapshots already index their threads by Id, so the comparison is a single pass over each
+ * snapshot, linear in the number of threads. Per thread values are indexed like the current
+ * snapshot and are <code>-1</code> for threads which are new or whose counters were not captured.
+ */
+public class SnapshotDiff {
+
+    private final ThreadDumpSnapshot previous;
+    private final ThreadDumpSnapshot current;
+
+    private final long[] newThreadIds;
+    private final long[] exitedThreadIds;
+    private final int[] changedStateIndexes;
+    private final boolean[] sameStack;
+    private final long[] blockedCountDeltas;
+    private final long[] blockedTimeDeltas;
+    private final long[] waitedCountDeltas;
+    private final long[] waitedTimeDeltas;
+
+    private SnapshotDiff(ThreadDumpSnapshot previous, ThreadDumpSnapshot current) {
+        this.previous = previous;
+        this.current = current;
+
+        int size = current.size();
+        sameStack = new boolean[size];
+        blockedCountDeltas = new long[size];
+        blockedTimeDeltas = new long[size];
+        waitedCountDeltas = new long[size];
+        waitedTimeDeltas = new long[size];
+
+        long[] started = new long[size];
+        int startedCount = 0;
+        int[] changed = new int[size];
+        int changedCount = 0;
+
+        for (int index = 0; index < size; index++) {
+            int previousIndex = previous.indexOf(current.getThreadId(index));
+            if (previousIndex < 0) {
+                started[startedCount++] = current.getThreadId(index);
+                blockedCountDeltas[index] = -1;
+                blockedTimeDeltas[index] = -1;
+                waitedCountDeltas[index] = -1;
+                waitedTimeDeltas[index] = -1;
+                continue;
+            }
+            if (current.getThreadState(index) != previous.getThreadState(previousIndex)) {
+                changed[changedCount++] = index;
+            }
+            sameStack[index] = current.getStackDepth(index) == previous.getStackDepth(previousIndex) &&
+                               current.getStackHash(index) == previous.getStackHash(previousIndex);
+            blockedCountDeltas[index] = delta(current.getBlockedCount(index),
+                                              previous.getBlockedCount(previousIndex));
+            blockedTimeDeltas[index] = delta(current.getBlockedTime(index),
+                                             previous.getBlockedTime(previousIndex));
+            waitedCountDeltas[index] = delta(current.getWaitedCount(index),
+                                             previous.getWaitedCount(previousIndex));
+            waitedTimeDeltas[index] = delta(current.getWaitedTime(index),
+                                            previous.getWaitedTime(previousIndex));
+        }
+
+        long[] exited = new long[previous.size()];
+        int exitedCount = 0;
+        for (int index = 0; index < previous.size(); index++) {
+            if (current.indexOf(previous.getThreadId(index)) < 0) {
+                exited[exitedCount++] = previous.getThreadId(index);
+            }
+        }
+
+        newThreadIds = Arrays.copyOf(started, startedCount);
+        exitedThreadIds = Arrays.copyOf(exited, exitedCount);
+        changedStateIndexes = Arrays.copyOf(changed, changedCount);
+    }
+
+    /**
+     * Compare two snapshots of the same VM.
+     *
+     * @param previous older snapshot.
+     * @param current  newer snapshot.
+     * @return differences between the snapshots.
+     */
+    public static SnapshotDiff compare(ThreadDumpSnapshot previous, ThreadDumpSnapshot current) {
+        return new SnapshotDiff(previous, current);
+    }
+
+    public ThreadDumpSnapshot getPrevious() {
+        return previous;
+    }
+
+    public ThreadDumpSnapshot getCurrent() {
+        return current;
+    }
+
+    /**
+     * @return Ids of the threads which are only in the current snapshot.
+     */
+    public long[] getNewThreadIds() {
+        return newThreadIds.clone();
+    }
+
+    /**
+     * @return Ids of the threads which are only in the previous snapshot.
+     */
+    public long[] getExitedThreadIds() {
+        return exitedThreadIds.clone();
+    }
+
+    /**
+     * @return indexes, in the current snapshot, of the threads whose state changed.
+     */
+    public int[] getChangedStateIndexes() {
+        return changedStateIndexes.clone();
+    }
+
+    /**
+     * @param index index of the thread in the current snapshot.
+     * @return state of the thread in the previous snapshot or <code>null</code> if it is new.
+     */
+    public Thread.State getPreviousState(int index) {
+        int previousIndex = previous.indexOf(current.getThreadId(index));
+        return previousIndex < 0 ? null : previous.getThreadState(previousIndex);
+    }
+
+    /**
+     * @param index index of the thread in the current snapshot.
+     * @return <code>true</code> if the thread has the same stack trace in both snapshots.
+     */
+    public boolean isSameStack(int index) {
+        return sameStack[index];
+    }
+
+    public long getBlockedCountDelta(int index) {
+        return blockedCountDeltas[index];
+    }
+
+    public long getBlockedTimeDelta(int index) {
+        return blockedTimeDeltas[index];
+    }
+
+    public long getWaitedCountDelta(int index) {
+        return waitedCountDeltas[index];
+    }
+
+    public long getWaitedTimeDelta(int index) {
+        return waitedTimeDeltas[index];
+    }
+
+    /**
+     * @return number of times all the threads present in both snapshots got blocked in between.
+     */
+    public long getTotalBlockedCountDelta() {
+        return sum(blockedCountDeltas);
+    }
+
+    public long getTotalBlockedTimeDelta() {
+        return sum(blockedTimeDeltas);
+    }
+
+    public long getTotalWaitedCountDelta() {
+        return sum(waitedCountDeltas);
+    }
+
+    public long getTotalWaitedTimeDelta() {
+        return sum(waitedTimeDeltas);
+    }
+
+    private static long delta(long currentValue, long previousValue) {
+        return currentValue < 0 || previousValue < 0 ? -1 : currentValue - previousValue;
+    }
+
+    private static long sum(long[] deltas) {
+        long total = 0;
+        for (long delta : deltas) {
+            if (delta > 0) {
+                total += delta;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the snapshots of a binary snapshot file written by {@link SnapshotFileWriter}.
+ * <p/>
+ * Records are memory mapped one at a time when first used. State histograms, thread Ids and
+ * thread states come from the uncompressed index of a record without inflating anything, a
+ * single thread is read by inflating the one block holding it, and only {@link #read(int)}
+ * decodes a whole snapshot. The dictionary of a record is inflated once and kept, softly so that
+ * reading a long file does not hold every dictionary on the heap, for the following reads of the
+ * same record; snapshots decoded from one record share its dictionary. Records appended after
+ * the reader was opened are not seen. Instances are not thread safe.
+ */
+public class SnapshotFileReader implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Thread.State[] STATES = Thread.State.values();
+
+    private final FileChannel channel;
+    private final long[] offsets;
+    private final ByteBuffer[] records;
+    private final DictionaryReference[] dictionaries;
+    private final Inflater inflater = new Inflater();
+
+    /**
+     * @param path snapshot file.
+     * @throws IOException if the file can not be opened or read.
+     */
+    public SnapshotFileReader(String path) throws IOException {
+        channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ);
+        offsets = SnapshotFormat.scan(channel);
+        records = new ByteBuffer[offsets.length - 1];
+        dictionaries = new DictionaryReference[records.length];
+    }
+
+    /**
+     * @return number of complete snapshots in the file.
+     */
+    public int size() {
+        return records.length;
+    }
+
+    public long getTimestamp(int snapshot) throws IOException {
+        return record(snapshot).getLong(SnapshotFormat.TIMESTAMP_OFFSET);
+    }
+
+    public int getThreadCount(int snapshot) throws IOException {
+        return record(snapshot).getInt(SnapshotFormat.THREAD_COUNT_OFFSET);
+    }
+
+    /**
+     * @param snapshot index of the snapshot in the file.
+     * @return number of threads in each state, indexed by <code>Thread.State.ordinal()</code>.
+     * @throws IOException if the record can not be mapped.
+     */
+    public int[] getStateCounts(int snapshot) throws IOException {
+        ByteBuffer record = record(snapshot);
+        int[] counts = new int[SnapshotFormat.STATE_COUNT];
+        for (int state = 0; state < counts.length; state++) {
+            counts[state] = record.getInt(SnapshotFormat.getStateCountsOffset() + state * 4);
+        }
+        return counts;
+    }
+
+    /**
+     * @param snapshot    index of the snapshot in the file.
+     * @param threadState state of the threads, or <code>null</code> for all the threads.
+     * @return Ids of the threads in the given state, in ascending order.
+     * @throws IOException if the record can not be mapped.
+     */
+    public long[] getThreadIds(int snapshot, Thread.State threadState) throws IOException {
+        ByteBuffer record = record(snapshot);
+        int threadCount = record.getInt(SnapshotFormat.THREAD_COUNT_OFFSET);
+        int indexOffset = SnapshotFormat.getIndexOffset(record.getInt(SnapshotFormat.BLOCK_COUNT_OFFSET));
+        long[] ids = new long[threadCount];
+        int count = 0;
+        for (int i = 0; i < threadCount; i++) {
+            int entry = indexOffset + i * SnapshotFormat.INDEX_ENTRY_SIZE;
+            if (threadState == null || record.get(entry + 14) == threadState.ordinal()) {
+                ids[count++] = record.getLong(entry);
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * @param snapshot index of the snapshot in the file.
+     * @param threadId thread Id.
+     * @return state of the thread or <code>null</code> if it is not in the snapshot.
+     * @throws IOException if the record can not be mapped.
+     */
+    public Thread.State getThreadState(int snapshot, long threadId) throws IOException {
+        ByteBuffer record = record(snapshot);
+        int entry = findEntry(record, threadId);
+        return entry < 0 ? null : STATES[record.get(entry + 14)];
+    }
+
+    /**
+     * Decode one thread of a snapshot, inflating only the block holding it and, on the first read
+     * of the snapshot, its dictionary.
+     *
+     * @param snapshot index of the snapshot in the file.
+     * @param threadId thread Id.
+     * @return snapshot with only the given thread or <code>null</code> if it is not in the
+     *         snapshot.
+     * @throws IOException if the record can not be mapped or is corrupt.
+     */
+    public ThreadDumpSnapshot readThread(int snapshot, long threadId) throws IOException {
+        ByteBuffer record = record(snapshot);
+        int entry = findEntry(record, threadId);
+        if (entry < 0) {
+            return null;
+        }
+        ByteBuffer block = inflateBlock(record, record.getChar(entry + 12));
+        ((Buffer) block).position(record.getInt(entry + 8));
+        // the Id is already known from the index, only its delta has to be skipped
+        SnapshotFormat.readSignedVarLong(block);
+        Decoder decoder = new Decoder(record, dictionary(snapshot), 1, 64);
+        decoder.decodeThread(block, 0, threadId);
+        return decoder.build();
+    }
+
+    /**
+     * Decode a whole snapshot.
+     *
+     * @param snapshot index of the snapshot in the file.
+     * @return the snapshot.
+     * @throws IOException if the record can not be mapped or is corrupt.
+     */
+    public ThreadDumpSnapshot read(int snapshot) throws IOException {
+        ByteBuffer record = record(snapshot);
+        int threadCount = record.getInt(SnapshotFormat.THREAD_COUNT_OFFSET);
+        int blockCount = record.getInt(SnapshotFormat.BLOCK_COUNT_OFFSET);
+        Decoder decoder = new Decoder(record, dictionary(snapshot), threadCount, threadCount * 16);
+        int index = 0;
+        for (int blockNumber = 0; blockNumber < blockCount; blockNumber++) {
+            ByteBuffer block = inflateBlock(record, blockNumber);
+            long threadId = 0;
+            while (block.hasRemaining()) {
+                threadId += SnapshotFormat.readSignedVarLong(block);
+                decoder.decodeThread(block, index++, threadId);
+            }
+        }
+        return decoder.build();
+    }
+
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private ByteBuffer record(int snapshot) throws IOException {
+        ByteBuffer record = records[snapshot];
+        if (record == null) {
+            record = channel.map(FileChannel.MapMode.READ_ONLY, offsets[snapshot],
+                                 offsets[snapshot + 1] - offsets[snapshot]);
+            records[snapshot] = record;
+        }
+        return record;
+    }
+
+    private Dictionary dictionary(int snapshot) throws IOException {
+        DictionaryReference reference = dictionaries[snapshot];
+        Dictionary dictionary = reference == null ? null : reference.get();
+        if (dictionary == null) {
+            dictionary = new Dictionary(inflater, record(snapshot));
+            dictionaries[snapshot] = new DictionaryReference(dictionary);
+        }
+        return dictionary;
+    }
+
+    /**
+     * Binary search of the thread index, which is sorted by thread Id.
+     */
+    private static int findEntry(ByteBuffer record, long threadId) {
+        int indexOffset = SnapshotFormat.getIndexOffset(record.getInt(SnapshotFormat.BLOCK_COUNT_OFFSET));
+        int low = 0;
+        int high = record.getInt(SnapshotFormat.THREAD_COUNT_OFFSET) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = indexOffset + middle * SnapshotFormat.INDEX_ENTRY_SIZE;
+            long id = record.getLong(entry);
+            if (id < threadId) {
+                low = middle + 1;
+            } else if (id > threadId) {
+                high = middle - 1;
+            } else {
+                return entry;
+            }
+        }
+        return -1;
+    }
+
+    private ByteBuffer inflateBlock(ByteBuffer record, int blockNumber) throws IOException {
+        int entry = SnapshotFormat.getBlockTableOffset() + blockNumber * SnapshotFormat.BLOCK_ENTRY_SIZE;
+        return SnapshotFormat.inflate(inflater, record, record.getInt(entry),
+                                      record.getInt(entry + 4), record.getInt(entry + 8));
+    }
+
+    /**
+     * Rebuilds the arrays of a snapshot from its dictionary and its threads.
+     */
+    private final class Decoder {
+
+        private final long timestamp;
+        private final int size;
+
+        private final long[] threadIds;
+        private final int[] threadNames;
+        private final byte[] threadStates;
+        private final byte[] flags;
+        private final long[] cpuTimes;
+        private final long[] blockedCounts;
+        private final long[] blockedTimes;
+        private final long[] waitedCounts;
+        private final long[] waitedTimes;
+        private final int[] lockIds;
+        private final long[] lockOwnerIds;
+        private final int[] stackOffsets;
+        private final int[] monitorOffsets;
+        private final int[] synchronizerOffsets;
+        private int[] stackFrames;
+        private int[] monitorLocks = new int[16];
+        private int[] monitorDepths = new int[16];
+        private int[] synchronizerLocks = new int[16];
+        private final Dictionary dictionary;
+
+        Decoder(ByteBuffer record, Dictionary dictionary, int size, int expectedFrames) {
+            this.timestamp = record.getLong(SnapshotFormat.TIMESTAMP_OFFSET);
+            this.dictionary = dictionary;
+            this.size = size;
+            threadIds = new long[size];
+            threadNames = new int[size];
+            threadStates = new byte[size];
+            flags = new byte[size];
+            cpuTimes = new long[size];
+            blockedCounts = new long[size];
+            blockedTimes = new long[size];
+            waitedCounts = new long[size];
+            waitedTimes = new long[size];
+            lockIds = new int[size];
+            lockOwnerIds = new long[size];
+            stackOffsets = new int[size + 1];
+            monitorOffsets = new int[size + 1];
+            synchronizerOffsets = new int[size + 1];
+            stackFrames = new int[Math.max(16, expectedFrames)];
+        }
+
+        /**
+         * Decode the thread at the position of the block, after its Id delta.
+         */
+        void decodeThread(ByteBuffer block, int index, long threadId) {
+            threadIds[index] = threadId;
+            threadNames[index] = SnapshotFormat.readVarInt(block);
+            threadStates[index] = block.get();
+            flags[index] = block.get();
+            cpuTimes[index] = SnapshotFormat.readVarLong(block) - 1;
+            blockedCounts[index] = SnapshotFormat.readVarLong(block) - 1;
+            blockedTimes[index] = SnapshotFormat.readVarLong(block) - 1;
+            waitedCounts[index] = SnapshotFormat.readVarLong(block) - 1;
+            waitedTimes[index] = SnapshotFormat.readVarLong(block) - 1;
+            lockIds[index] = SnapshotFormat.readVarInt(block) - 1;
+            lockOwnerIds[index] = SnapshotFormat.readVarLong(block) - 1;
+
+            int depth = SnapshotFormat.readVarInt(block);
+            int stackStart = stackOffsets[index];
+            if (stackStart + depth > stackFrames.length) {
+                stackFrames = Arrays.copyOf(stackFrames, Math.max(stackFrames.length << 1, stackStart + depth));
+            }
+            for (int i = 0; i < depth; i++) {
+                stackFrames[stackStart + i] = SnapshotFormat.readVarInt(block);
+            }
+            stackOffsets[index + 1] = stackStart + depth;
+
+            int monitorCount = SnapshotFormat.readVarInt(block);
+            int monitorStart = monitorOffsets[index];
+            if (monitorStart + monitorCount > monitorLocks.length) {
+                int length = Math.max(monitorLocks.length << 1, monitorStart + monitorCount);
+                monitorLocks = Arrays.copyOf(monitorLocks, length);
+                monitorDepths = Arrays.copyOf(monitorDepths, length);
+            }
+            for (int i = 0; i < monitorCount; i++) {
+                monitorLocks[monitorStart + i] = SnapshotFormat.readVarInt(block);
+                monitorDepths[monitorStart + i] = SnapshotFormat.readVarInt(block) - 1;
+            }
+            monitorOffsets[index + 1] = monitorStart + monitorCount;
+
+            int synchronizerCount = SnapshotFormat.readVarInt(block);
+            int synchronizerStart = synchronizerOffsets[index];
+            if (synchronizerStart + synchronizerCount > synchronizerLocks.length) {
+                synchronizerLocks = Arrays.copyOf(synchronizerLocks, Math.max(
+                        synchronizerLocks.length << 1, synchronizerStart + synchronizerCount));
+            }
+            for (int i = 0; i < synchronizerCount; i++) {
+                synchronizerLocks[synchronizerStart + i] = SnapshotFormat.readVarInt(block);
+            }
+            synchronizerOffsets[index + 1] = synchronizerStart + synchronizerCount;
+        }
+
+        ThreadDumpSnapshot build() {
+            return new ThreadDumpSnapshot(
+                    timestamp, size, threadIds, threadNames, threadStates, flags, cpuTimes,
+                    blockedCounts, blockedTimes, waitedCounts, waitedTimes, lockIds, lockOwnerIds,
+                    stackOffsets, Arrays.copyOf(stackFrames, stackOffsets[size]),
+                    monitorOffsets, Arrays.copyOf(monitorLocks, monitorOffsets[size]),
+                    Arrays.copyOf(monitorDepths, monitorOffsets[size]),
+                    synchronizerOffsets, Arrays.copyOf(synchronizerLocks, synchronizerOffsets[size]),
+                    dictionary.strings, dictionary.frameClassNames, dictionary.frameMethodNames,
+                    dictionary.frameFileNames, dictionary.frameLineNumbers,
+                    dictionary.lockClassNames, dictionary.lockIdentities);
+        }
+    }
+
+    /**
+     * Strings, frames and locks of a record, which its threads refer to by index.
+     */
+    private static final class Dictionary {
+
+        private final String[] strings;
+        private final int[] frameClassNames;
+        private final int[] frameMethodNames;
+        private final int[] frameFileNames;
+        private final int[] frameLineNumbers;
+        private final int[] lockClassNames;
+        private final int[] lockIdentities;
+
+        Dictionary(Inflater inflater, ByteBuffer record) throws IOException {
+            int blockCount = record.getInt(SnapshotFormat.BLOCK_COUNT_OFFSET);
+            int threadCount = record.getInt(SnapshotFormat.THREAD_COUNT_OFFSET);
+            ByteBuffer dictionary = SnapshotFormat.inflate(
+                    inflater, record, SnapshotFormat.getDictionaryOffset(blockCount, threadCount),
+                    record.getInt(SnapshotFormat.DICTIONARY_LENGTH_OFFSET),
+                    record.getInt(SnapshotFormat.DICTIONARY_RAW_LENGTH_OFFSET));
+
+            strings = new String[SnapshotFormat.readVarInt(dictionary)];
+            for (int i = 0; i < strings.length; i++) {
+                int length = SnapshotFormat.readVarInt(dictionary);
+                strings[i] = new String(dictionary.array(), dictionary.position(), length, UTF_8);
+                ((Buffer) dictionary).position(dictionary.position() + length);
+            }
+
+            int frameCount = SnapshotFormat.readVarInt(dictionary);
+            frameClassNames = new int[frameCount];
+            frameMethodNames = new int[frameCount];
+            frameFileNames = new int[frameCount];
+            frameLineNumbers = new int[frameCount];
+            for (int frameId = 0; frameId < frameCount; frameId++) {
+                frameClassNames[frameId] = SnapshotFormat.readVarInt(dictionary);
+                frameMethodNames[frameId] = SnapshotFormat.readVarInt(dictionary);
+                frameFileNames[frameId] = SnapshotFormat.readVarInt(dictionary) - 1;
+                frameLineNumbers[frameId] = (int) SnapshotFormat.readSignedVarLong(dictionary);
+            }
+
+            int lockCount = SnapshotFormat.readVarInt(dictionary);
+            lockClassNames = new int[lockCount];
+            lockIdentities = new int[lockCount];
+            for (int lockId = 0; lockId < lockCount; lockId++) {
+                lockClassNames[lockId] = SnapshotFormat.readVarInt(dictionary);
+                lockIdentities[lockId] = (int) SnapshotFormat.readVarLong(dictionary);
+            }
+        }
+    }
+
+    private static final class DictionaryReference extends SoftReference<Dictionary> {
+
+        DictionaryReference(Dictionary dictionary) {
+            super(dictionary);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Appends snapshots to a binary snapshot file, in the format described in
+ * {@link SnapshotFormat}. A snapshot takes a fraction of the size of its text dump and can be
+ * queried by {@link SnapshotFileReader} without decoding it as a whole.
+ * <p/>
+ * Each snapshot is encoded in memory and written with a single append, so a crash can at most
+ * leave a partial record at the end of the file, which is cut off the next time the file is
+ * opened for writing. When a maximum size is given, a file which would grow beyond it is moved
+ * to <code>&lt;file&gt;.1</code>, replacing the previous one, and a new file is started.
+ * Instances are not thread safe.
+ */
+public class SnapshotFileWriter implements Closeable, Flushable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Path file;
+    private final long maxBytes;
+    private final Deflater deflater;
+    private final SnapshotFormat.Encoder encoder = new SnapshotFormat.Encoder();
+
+    private FileChannel channel;
+    private long snapshotCount;
+
+    /**
+     * Append to a file without a size limit.
+     *
+     * @param path snapshot file, created if it does not exist.
+     * @throws IOException if the file can not be opened.
+     */
+    public SnapshotFileWriter(String path) throws IOException {
+        this(path, 0, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param path             snapshot file, created if it does not exist.
+     * @param maxBytes         size after which the file is rolled over, or <code>0</code> for no
+     *                         limit.
+     * @param compressionLevel Deflater compression level of the dictionary and the blocks.
+     * @throws IOException if the file can not be opened.
+     */
+    public SnapshotFileWriter(String path, long maxBytes, int compressionLevel) throws IOException {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Maximum size can not be negative: " + maxBytes);
+        }
+        this.file = new File(path).toPath();
+        this.maxBytes = maxBytes;
+        this.deflater = new Deflater(compressionLevel);
+        open();
+    }
+
+    /**
+     * Encode a snapshot and append it to the file.
+     *
+     * @param snapshot thread dump snapshot.
+     * @return number of bytes appended.
+     * @throws IOException if writing to the file fails.
+     */
+    public int append(ThreadDumpSnapshot snapshot) throws IOException {
+        ByteBuffer record = encode(snapshot);
+        if (maxBytes > 0 && channel.size() > 0 && channel.size() + record.remaining() > maxBytes) {
+            roll();
+        }
+        int length = record.remaining();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        snapshotCount++;
+        return length;
+    }
+
+    /**
+     * @return number of snapshots appended by this writer.
+     */
+    public long getSnapshotCount() {
+        return snapshotCount;
+    }
+
+    /**
+     * Force the appended snapshots to disk.
+     */
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    public void close() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+        long[] offsets = SnapshotFormat.scan(channel);
+        long end = offsets[offsets.length - 1];
+        if (end < channel.size()) {
+            channel.truncate(end);
+        }
+        channel.position(end);
+    }
+
+    private void roll() throws IOException {
+        channel.close();
+        Files.move(file, file.resolveSibling(file.getFileName() + ".1"),
+                   StandardCopyOption.REPLACE_EXISTING);
+        open();
+    }
+
+    private ByteBuffer encode(ThreadDumpSnapshot snapshot) {
+        int size = snapshot.size();
+        int blockCount = (size + SnapshotFormat.BLOCK_SIZE - 1) / SnapshotFormat.BLOCK_SIZE;
+
+        byte[] dictionary = SnapshotFormat.deflate(deflater, encodeDictionary(snapshot));
+        int dictionaryRawLength = encoder.length();
+
+        byte[][] blocks = new byte[blockCount][];
+        int[] blockRawLengths = new int[blockCount];
+        int[] threadOffsets = new int[size];
+        for (int block = 0; block < blockCount; block++) {
+            int start = block * SnapshotFormat.BLOCK_SIZE;
+            int end = Math.min(size, start + SnapshotFormat.BLOCK_SIZE);
+            encoder.reset();
+            long previousId = 0;
+            for (int index = start; index < end; index++) {
+                threadOffsets[index] = encoder.length();
+                encodeThread(snapshot, index, previousId);
+                previousId = snapshot.getThreadId(index);
+            }
+            blockRawLengths[block] = encoder.length();
+            blocks[block] = SnapshotFormat.deflate(deflater, encoder);
+        }
+
+        int dictionaryOffset = SnapshotFormat.getDictionaryOffset(blockCount, size);
+        int recordLength = dictionaryOffset + dictionary.length;
+        for (byte[] block : blocks) {
+            recordLength += block.length;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(recordLength);
+        record.putInt(SnapshotFormat.MAGIC);
+        record.putShort(SnapshotFormat.VERSION);
+        record.putShort((short) 0);
+        record.putLong(snapshot.getTimestamp());
+        record.putInt(size);
+        record.putInt(blockCount);
+        record.putInt(dictionary.length);
+        record.putInt(dictionaryRawLength);
+        record.putInt(recordLength);
+
+        int[] stateCounts = snapshot.getStateCounts();
+        for (int state = 0; state < SnapshotFormat.STATE_COUNT; state++) {
+            record.putInt(stateCounts[state]);
+        }
+
+        int blockOffset = dictionaryOffset + dictionary.length;
+        for (int block = 0; block < blockCount; block++) {
+            record.putInt(blockOffset);
+            record.putInt(blocks[block].length);
+            record.putInt(blockRawLengths[block]);
+            record.putInt(Math.min(SnapshotFormat.BLOCK_SIZE, size - block * SnapshotFormat.BLOCK_SIZE));
+            blockOffset += blocks[block].length;
+        }
+
+        for (int index : sortById(snapshot)) {
+            record.putLong(snapshot.getThreadId(index));
+            record.putInt(threadOffsets[index]);
+            record.putChar((char) (index / SnapshotFormat.BLOCK_SIZE));
+            record.put((byte) snapshot.getThreadState(index).ordinal());
+            record.put(snapshot.getFlags(index));
+        }
+
+        record.put(dictionary);
+        for (byte[] block : blocks) {
+            record.put(block);
+        }
+        ((Buffer) record).flip();
+        return record;
+    }
+
+    private SnapshotFormat.Encoder encodeDictionary(ThreadDumpSnapshot snapshot) {
+        encoder.reset();
+        encoder.writeVarLong(snapshot.getStringCount());
+        for (int i = 0; i < snapshot.getStringCount(); i++) {
+            byte[] bytes = snapshot.getString(i).getBytes(UTF_8);
+            encoder.writeVarLong(bytes.length);
+            encoder.writeBytes(bytes);
+        }
+        encoder.writeVarLong(snapshot.getFrameCount());
+        for (int frameId = 0; frameId < snapshot.getFrameCount(); frameId++) {
+            encoder.writeVarLong(snapshot.getFrameClassNameIndex(frameId));
+            encoder.writeVarLong(snapshot.getFrameMethodNameIndex(frameId));
+            encoder.writeVarLong(snapshot.getFrameFileNameIndex(frameId) + 1);
+            encoder.writeSignedVarLong(snapshot.getFrameLineNumber(frameId));
+        }
+        encoder.writeVarLong(snapshot.getLockCount());
+        for (int lockId = 0; lockId < snapshot.getLockCount(); lockId++) {
+            encoder.writeVarLong(snapshot.getLockClassNameIndex(lockId));
+            encoder.writeVarLong(snapshot.getLockIdentityHashCode(lockId) & 0xFFFFFFFFL);
+        }
+        return encoder;
+    }
+
+    private void encodeThread(ThreadDumpSnapshot snapshot, int index, long previousId) {
+        encoder.writeSignedVarLong(snapshot.getThreadId(index) - previousId);
+        encoder.writeVarLong(snapshot.getThreadNameIndex(index));
+        encoder.writeByte(snapshot.getThreadState(index).ordinal());
+        encoder.writeByte(snapshot.getFlags(index));
+        encoder.writeVarLong(snapshot.getCpuTime(index) + 1);
+        encoder.writeVarLong(snapshot.getBlockedCount(index) + 1);
+        encoder.writeVarLong(snapshot.getBlockedTime(index) + 1);
+        encoder.writeVarLong(snapshot.getWaitedCount(index) + 1);
+        encoder.writeVarLong(snapshot.getWaitedTime(index) + 1);
+        encoder.writeVarLong(snapshot.getLockId(index) + 1);
+        encoder.writeVarLong(snapshot.getLockOwnerId(index) + 1);
+
+        int depth = snapshot.getStackDepth(index);
+        encoder.writeVarLong(depth);
+        for (int i = 0; i < depth; i++) {
+            encoder.writeVarLong(snapshot.getFrameId(index, i));
+        }
+        int monitorCount = snapshot.getLockedMonitorCount(index);
+        encoder.writeVarLong(monitorCount);
+        for (int i = 0; i < monitorCount; i++) {
+            encoder.writeVarLong(snapshot.getLockedMonitorId(index, i));
+            encoder.writeVarLong(snapshot.getLockedMonitorDepth(index, i) + 1);
+        }
+        int synchronizerCount = snapshot.getLockedSynchronizerCount(index);
+        encoder.writeVarLong(synchronizerCount);
+        for (int i = 0; i < synchronizerCount; i++) {
+            encoder.writeVarLong(snapshot.getLockedSynchronizerId(index, i));
+        }
+    }
+
+    private static int[] sortById(ThreadDumpSnapshot snapshot) {
+        long[] keys = new long[snapshot.size()];
+        for (int index = 0; index < keys.length; index++) {
+            keys[index] = snapshot.getThreadId(index);
+        }
+        Arrays.sort(keys);
+        int[] order = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = snapshot.indexOf(keys[i]);
+        }
+        return order;
+    }
+}
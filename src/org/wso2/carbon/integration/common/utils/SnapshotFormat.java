@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Layout of the binary snapshot files written by {@link SnapshotFileWriter} and read by
+ * {@link SnapshotFileReader}. A file is a sequence of records, one per snapshot:
+ * <pre>
+ * header       magic, version, timestamp, thread count, block count,
+ *              dictionary length (compressed and raw), record length
+ * state counts one int per Thread.State
+ * block table  offset, compressed length, raw length and thread count of each block
+ * thread index thread Id, offset in block, block number, state and flags of each thread,
+ *              sorted by thread Id
+ * dictionary   deflated string table, frame pool and lock table
+ * blocks       deflated threads, BLOCK_SIZE threads per block
+ * </pre>
+ * Everything up to the dictionary is fixed width and uncompressed, so a reader can answer state
+ * histograms and thread Id queries straight from a mapped record, and find the block of a
+ * thread with a binary search. Inside the compressed parts, Ids, counts and lengths are
+ * varints and thread Ids are deltas from the previous thread, which keeps the common small
+ * values to one byte before compression.
+ */
+final class SnapshotFormat {
+
+    static final int MAGIC = 0x54445331;
+    static final short VERSION = 1;
+
+    static final int HEADER_SIZE = 36;
+    static final int STATE_COUNT = Thread.State.values().length;
+    static final int BLOCK_ENTRY_SIZE = 16;
+    static final int INDEX_ENTRY_SIZE = 16;
+    static final int BLOCK_SIZE = 256;
+
+    static final int TIMESTAMP_OFFSET = 8;
+    static final int THREAD_COUNT_OFFSET = 16;
+    static final int BLOCK_COUNT_OFFSET = 20;
+    static final int DICTIONARY_LENGTH_OFFSET = 24;
+    static final int DICTIONARY_RAW_LENGTH_OFFSET = 28;
+    static final int RECORD_LENGTH_OFFSET = 32;
+
+    private SnapshotFormat() {
+    }
+
+    static int getStateCountsOffset() {
+        return HEADER_SIZE;
+    }
+
+    static int getBlockTableOffset() {
+        return HEADER_SIZE + STATE_COUNT * 4;
+    }
+
+    static int getIndexOffset(int blockCount) {
+        return getBlockTableOffset() + blockCount * BLOCK_ENTRY_SIZE;
+    }
+
+    static int getDictionaryOffset(int blockCount, int threadCount) {
+        return getIndexOffset(blockCount) + threadCount * INDEX_ENTRY_SIZE;
+    }
+
+    /**
+     * Find the complete records of a file. A record cut short by a crash while it was appended
+     * ends the scan.
+     *
+     * @param channel snapshot file.
+     * @return start offsets of the records followed by the end of the last complete record.
+     * @throws IOException if the file can not be read.
+     */
+    static long[] scan(FileChannel channel) throws IOException {
+        long[] offsets = new long[16];
+        int count = 0;
+        long position = 0;
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+            ((Buffer) header).clear();
+            while (header.hasRemaining()) {
+                if (channel.read(header, position + header.position()) < 0) {
+                    break;
+                }
+            }
+            int recordLength = header.getInt(RECORD_LENGTH_OFFSET);
+            if (header.getInt(0) != MAGIC || recordLength < HEADER_SIZE ||
+                position + recordLength > size) {
+                break;
+            }
+            if (count + 1 == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count << 1);
+            }
+            offsets[count++] = position;
+            position += recordLength;
+        }
+        offsets[count] = position;
+        return Arrays.copyOf(offsets, count + 1);
+    }
+
+    static byte[] deflate(Deflater deflater, Encoder encoder) {
+        deflater.reset();
+        deflater.setInput(encoder.bytes, 0, encoder.length);
+        deflater.finish();
+        byte[] compressed = new byte[Math.max(64, encoder.length / 2)];
+        int length = 0;
+        while (!deflater.finished()) {
+            if (length == compressed.length) {
+                compressed = Arrays.copyOf(compressed, length << 1);
+            }
+            length += deflater.deflate(compressed, length, compressed.length - length);
+        }
+        return Arrays.copyOf(compressed, length);
+    }
+
+    static ByteBuffer inflate(Inflater inflater, ByteBuffer record, int offset, int length,
+                              int rawLength) throws IOException {
+        byte[] compressed = new byte[length];
+        ByteBuffer source = record.duplicate();
+        ((Buffer) source).position(offset);
+        source.get(compressed);
+        byte[] raw = new byte[rawLength];
+        inflater.reset();
+        inflater.setInput(compressed);
+        try {
+            int inflated = 0;
+            while (inflated < rawLength && !inflater.finished()) {
+                int count = inflater.inflate(raw, inflated, rawLength - inflated);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != rawLength) {
+                throw new IOException("Corrupt snapshot block: expected " + rawLength +
+                                      " bytes, inflated " + inflated);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt snapshot block", e);
+        }
+        return ByteBuffer.wrap(raw);
+    }
+
+    static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    static int readVarInt(ByteBuffer buffer) {
+        return (int) readVarLong(buffer);
+    }
+
+    static long readSignedVarLong(ByteBuffer buffer) {
+        long value = readVarLong(buffer);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Growable byte array with varint encoding, reused between records.
+     */
+    static final class Encoder {
+
+        private byte[] bytes = new byte[4096];
+        private int length;
+
+        void reset() {
+            length = 0;
+        }
+
+        int length() {
+            return length;
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            bytes[length++] = (byte) value;
+        }
+
+        void writeBytes(byte[] values) {
+            ensureCapacity(values.length);
+            System.arraycopy(values, 0, bytes, length, values.length);
+            length += values.length;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[length++] = (byte) value;
+        }
+
+        void writeSignedVarLong(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        private void ensureCapacity(int count) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length << 1, length + count));
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+/**
+ * Fixed size, thread safe buffer of the most recent snapshots. When the buffer is full, adding a
+ * snapshot evicts the oldest one, so memory stays bounded however long sampling runs.
+ */
+public class SnapshotRingBuffer {
+
+    private final ThreadDumpSnapshot[] snapshots;
+    private int head;
+    private int size;
+
+    /**
+     * @param capacity maximum number of snapshots kept.
+     */
+    public SnapshotRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        snapshots = new ThreadDumpSnapshot[capacity];
+    }
+
+    /**
+     * Add a snapshot, evicting the oldest one if the buffer is full.
+     *
+     * @param snapshot thread dump snapshot.
+     * @return evicted snapshot or <code>null</code> if nothing was evicted.
+     */
+    public synchronized ThreadDumpSnapshot add(ThreadDumpSnapshot snapshot) {
+        int tail = (head + size) % snapshots.length;
+        ThreadDumpSnapshot evicted = null;
+        if (size == snapshots.length) {
+            evicted = snapshots[head];
+            head = (head + 1) % snapshots.length;
+        } else {
+            size++;
+        }
+        snapshots[tail] = snapshot;
+        return evicted;
+    }
+
+    /**
+     * @return most recent snapshot or <code>null</code> if the buffer is empty.
+     */
+    public synchronized ThreadDumpSnapshot getLatest() {
+        return size == 0 ? null : snapshots[(head + size - 1) % snapshots.length];
+    }
+
+    /**
+     * @return snapshots currently kept, oldest first.
+     */
+    public synchronized ThreadDumpSnapshot[] toArray() {
+        ThreadDumpSnapshot[] copy = new ThreadDumpSnapshot[size];
+        for (int i = 0; i < size; i++) {
+            copy[i] = snapshots[(head + i) % snapshots.length];
+        }
+        return copy;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return snapshots.length;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < snapshots.length; i++) {
+            snapshots[i] = null;
+        }
+        head = 0;
+        size = 0;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Map;
+
+/**
+ * Number of threads seen with one state and stack trace over many thread dumps. A thread counts
+ * once for every dump it appears in, so the count is in thread samples. Two instances are equal
+ * when their state and stack trace are equal, whatever their counts.
+ */
+public class StackCount {
+
+    static final Comparator<StackCount> LARGEST_FIRST = new Comparator<StackCount>() {
+        public int compare(StackCount first, StackCount second) {
+            return first.threadCount < second.threadCount ? 1 :
+                   first.threadCount > second.threadCount ? -1 : 0;
+        }
+    };
+
+    private final Thread.State threadState;
+    private final StackTraceElement[] stackTrace;
+    private final int hash;
+    private long threadCount;
+
+    StackCount(Thread.State threadState, StackTraceElement[] stackTrace, long threadCount) {
+        this.threadState = threadState;
+        this.stackTrace = stackTrace;
+        this.hash = 31 * threadState.hashCode() + Arrays.hashCode(stackTrace);
+        this.threadCount = threadCount;
+    }
+
+    void add(long count) {
+        threadCount += count;
+    }
+
+    public Thread.State getThreadState() {
+        return threadState;
+    }
+
+    public StackTraceElement[] getStackTrace() {
+        return stackTrace.clone();
+    }
+
+    /**
+     * @return number of thread samples with this stack.
+     */
+    public long getThreadCount() {
+        return threadCount;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof StackCount)) {
+            return false;
+        }
+        StackCount that = (StackCount) other;
+        return hash == that.hash && threadState == that.threadState &&
+               Arrays.equals(stackTrace, that.stackTrace);
+    }
+
+    /**
+     * Add the counts of the given stacks to a map of stacks, copying the ones it does not have
+     * yet so that the given instances are never changed.
+     */
+    static void addAll(Map<StackCount, StackCount> stackCounts, Collection<StackCount> stacks) {
+        for (StackCount stack : stacks) {
+            StackCount existing = stackCounts.get(stack);
+            if (existing == null) {
+                stackCounts.put(stack, new StackCount(stack.threadState, stack.stackTrace,
+                                                      stack.threadCount));
+            } else {
+                existing.add(stack.threadCount);
+            }
+        }
+    }
+}
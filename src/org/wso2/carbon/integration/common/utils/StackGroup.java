@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Threads which are in the same state with the same stack trace, as found by
+ * {@link StackTraceGrouper}.
+ */
+public class StackGroup {
+
+    private final Thread.State threadState;
+    private final StackTraceElement[] stackTrace;
+    private final List<String> threadNames = new ArrayList<String>();
+    private long[] threadIds = new long[4];
+    private int threadCount;
+
+    StackGroup(Thread.State threadState, StackTraceElement[] stackTrace) {
+        this.threadState = threadState;
+        this.stackTrace = stackTrace;
+    }
+
+    void addThread(long threadId, String threadName) {
+        if (threadCount == threadIds.length) {
+            threadIds = Arrays.copyOf(threadIds, threadCount << 1);
+        }
+        threadIds[threadCount++] = threadId;
+        threadNames.add(threadName);
+    }
+
+    public Thread.State getThreadState() {
+        return threadState;
+    }
+
+    /**
+     * @return shared stack trace, cut to the depth the threads were grouped on.
+     */
+    public StackTraceElement[] getStackTrace() {
+        return stackTrace.clone();
+    }
+
+    /**
+     * @return number of threads sharing this stack.
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    public long[] getThreadIds() {
+        return Arrays.copyOf(threadIds, threadCount);
+    }
+
+    public List<String> getThreadNames() {
+        return Collections.unmodifiableList(threadNames);
+    }
+
+    StackTraceElement[] stackTrace() {
+        return stackTrace;
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Groups threads which share the same state and the same stack trace, so thousands of identical
+ * pool threads can be reported as one stack with the names of its threads.
+ * <p/>
+ * Frames are hash-consed: each distinct frame gets an integer Id the first time it is seen (a
+ * snapshot already has them in its frame pool), and a stack is keyed by its state and the Ids of
+ * its top frames. Looking a thread up costs one hash of a few integers, and a key is only copied
+ * when it starts a new group, so grouping time is dominated by the number of frames read and
+ * memory by the number of distinct stacks.
+ */
+public class StackTraceGrouper {
+
+    private static final Comparator<StackGroup> LARGEST_FIRST = new Comparator<StackGroup>() {
+        public int compare(StackGroup first, StackGroup second) {
+            return second.getThreadCount() - first.getThreadCount();
+        }
+    };
+
+    private final int maxDepth;
+
+    /**
+     * Group threads on their whole stack trace.
+     */
+    public StackTraceGrouper() {
+        this(0);
+    }
+
+    /**
+     * @param maxDepth number of top frames threads are grouped on, or <code>0</code> for the
+     *                 whole stack trace.
+     */
+    public StackTraceGrouper(int maxDepth) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("Depth can not be negative: " + maxDepth);
+        }
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Group the threads of a thread dump. <code>null</code> entries are skipped.
+     *
+     * @param allThreadInfo Array of ThreadInfo objects.
+     * @return groups, largest first.
+     */
+    public List<StackGroup> group(ThreadInfo[] allThreadInfo) {
+        Map<StackTraceElement, Integer> frameIds = new HashMap<StackTraceElement, Integer>();
+        Map<StackKey, StackGroup> groups = new HashMap<StackKey, StackGroup>();
+        StackKey probe = new StackKey();
+
+        for (ThreadInfo threadInfo : allThreadInfo) {
+            if (threadInfo == null) {
+                continue;
+            }
+            StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+            int depth = depth(stackTrace.length);
+            probe.reset(threadInfo.getThreadState(), depth);
+            for (int i = 0; i < depth; i++) {
+                Integer frameId = frameIds.get(stackTrace[i]);
+                if (frameId == null) {
+                    frameId = frameIds.size();
+                    frameIds.put(stackTrace[i], frameId);
+                }
+                probe.add(frameId);
+            }
+            StackGroup group = groups.get(probe.seal());
+            if (group == null) {
+                group = new StackGroup(threadInfo.getThreadState(),
+                                       Arrays.copyOf(stackTrace, depth));
+                groups.put(probe.copy(), group);
+            }
+            group.addThread(threadInfo.getThreadId(), threadInfo.getThreadName());
+        }
+        return sort(groups);
+    }
+
+    /**
+     * Group the threads of a snapshot, using the Ids of its frame pool.
+     *
+     * @param snapshot thread dump snapshot.
+     * @return groups, largest first.
+     */
+    public List<StackGroup> group(ThreadDumpSnapshot snapshot) {
+        Map<StackKey, StackGroup> groups = new HashMap<StackKey, StackGroup>();
+        StackKey probe = new StackKey();
+
+        for (int index = 0; index < snapshot.size(); index++) {
+            int depth = depth(snapshot.getStackDepth(index));
+            probe.reset(snapshot.getThreadState(index), depth);
+            for (int i = 0; i < depth; i++) {
+                probe.add(snapshot.getFrameId(index, i));
+            }
+            StackGroup group = groups.get(probe.seal());
+            if (group == null) {
+                StackTraceElement[] stackTrace = new StackTraceElement[depth];
+                for (int i = 0; i < depth; i++) {
+                    stackTrace[i] = snapshot.getFrame(snapshot.getFrameId(index, i));
+                }
+                group = new StackGroup(snapshot.getThreadState(index), stackTrace);
+                groups.put(probe.copy(), group);
+            }
+            group.addThread(snapshot.getThreadId(index), snapshot.getThreadName(index));
+        }
+        return sort(groups);
+    }
+
+    private int depth(int stackDepth) {
+        return maxDepth == 0 ? stackDepth : Math.min(maxDepth, stackDepth);
+    }
+
+    private static List<StackGroup> sort(Map<StackKey, StackGroup> groups) {
+        List<StackGroup> sorted = new ArrayList<StackGroup>(groups.values());
+        Collections.sort(sorted, LARGEST_FIRST);
+        return sorted;
+    }
+
+    /**
+     * Thread state and frame Ids of a stack. One instance is reused as the lookup probe and only
+     * copied when a new group is created.
+     */
+    private static final class StackKey {
+
+        private int state;
+        private int[] frames = new int[64];
+        private int length;
+        private int hash;
+
+        void reset(Thread.State threadState, int depth) {
+            state = threadState.ordinal();
+            length = 0;
+            if (frames.length < depth) {
+                frames = new int[depth];
+            }
+        }
+
+        void add(int frameId) {
+            frames[length++] = frameId;
+        }
+
+        StackKey seal() {
+            int h = state;
+            for (int i = 0; i < length; i++) {
+                h = 31 * h + frames[i];
+            }
+            hash = h;
+            return this;
+        }
+
+        StackKey copy() {
+            StackKey copy = new StackKey();
+            copy.state = state;
+            copy.frames = Arrays.copyOf(frames, length);
+            copy.length = length;
+            copy.hash = hash;
+            return copy;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof StackKey)) {
+                return false;
+            }
+            StackKey key = (StackKey) other;
+            if (key.hash != hash || key.state != state || key.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (key.frames[i] != frames[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
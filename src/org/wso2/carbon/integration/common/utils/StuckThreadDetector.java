@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.util.Arrays;
+
+/**
+ * Finds threads which keep the same state and the same stack trace over consecutive snapshots.
+ * Snapshots are fed in the order they were taken, for example as a {@link SnapshotListener} of a
+ * {@link ThreadDumpSampler}. A thread is reported as stuck once it has been unchanged for the
+ * given number of samples.
+ * <p/>
+ * Threads parked in <code>WAITING</code> or <code>TIMED_WAITING</code> are usually idle pool
+ * threads and are ignored unless asked for. Only the counters of the previous sample are kept,
+ * in primitive arrays indexed through a thread Id map, so each sample costs time linear in the
+ * number of threads.
+ */
+public class StuckThreadDetector implements SnapshotListener {
+
+    private final int threshold;
+    private final boolean includeWaiting;
+
+    private ThreadDumpSnapshot previous;
+    private int[] unchangedCounts = new int[0];
+
+    /**
+     * @param threshold      number of consecutive samples with the same stack after which a
+     *                       thread is stuck.
+     * @param includeWaiting <code>true</code> to also report waiting threads.
+     */
+    public StuckThreadDetector(int threshold, boolean includeWaiting) {
+        if (threshold < 2) {
+            throw new IllegalArgumentException("Threshold must be at least 2 samples: " + threshold);
+        }
+        this.threshold = threshold;
+        this.includeWaiting = includeWaiting;
+    }
+
+    public void onSnapshot(ThreadDumpSnapshot snapshot) {
+        update(snapshot);
+    }
+
+    /**
+     * Compare a snapshot with the previous one and update the unchanged counters.
+     *
+     * @param snapshot snapshot taken after the previous one.
+     */
+    public synchronized void update(ThreadDumpSnapshot snapshot) {
+        int[] counts = new int[snapshot.size()];
+        for (int index = 0; index < counts.length; index++) {
+            int previousIndex = previous == null ? -1 : previous.indexOf(snapshot.getThreadId(index));
+            if (previousIndex >= 0 &&
+                snapshot.getThreadState(index) == previous.getThreadState(previousIndex) &&
+                snapshot.getStackDepth(index) == previous.getStackDepth(previousIndex) &&
+                snapshot.getStackHash(index) == previous.getStackHash(previousIndex)) {
+                counts[index] = unchangedCounts[previousIndex] + 1;
+            } else {
+                counts[index] = 1;
+            }
+        }
+        previous = snapshot;
+        unchangedCounts = counts;
+    }
+
+    /**
+     * @return Ids of the threads which have been unchanged for at least the threshold, as of
+     *         the last snapshot.
+     */
+    public synchronized long[] getStuckThreadIds() {
+        if (previous == null) {
+            return new long[0];
+        }
+        long[] ids = new long[unchangedCounts.length];
+        int count = 0;
+        for (int index = 0; index < unchangedCounts.length; index++) {
+            if (unchangedCounts[index] >= threshold && isCandidate(previous.getThreadState(index))) {
+                ids[count++] = previous.getThreadId(index);
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * @param threadId thread Id.
+     * @return number of consecutive samples in which the thread was unchanged, or
+     *         <code>0</code> if it was not in the last snapshot.
+     */
+    public synchronized int getUnchangedCount(long threadId) {
+        int index = previous == null ? -1 : previous.indexOf(threadId);
+        return index < 0 ? 0 : unchangedCounts[index];
+    }
+
+    private boolean isCandidate(Thread.State state) {
+        return state == Thread.State.RUNNABLE || state == Thread.State.BLOCKED ||
+               (includeWaiting && (state == Thread.State.WAITING ||
+                                   state == Thread.State.TIMED_WAITING));
+    }
+}
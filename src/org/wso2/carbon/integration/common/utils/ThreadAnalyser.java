@@ -18,25 +18,42 @@
 
 package org.wso2.carbon.integration.common.utils;
 
+import javax.management.JMException;
 import javax.management.MBeanServerConnection;
 import javax.management.ObjectName;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
-import java.nio.charset.Charset;
-import java.sql.Timestamp;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.List;
 
 
 public class ThreadAnalyser {
 
+    private static final int MAX_HOT_THREAD_DEPTH = 32;
+    private static final String DIAGNOSTIC_COMMAND_MBEAN_NAME = "com.sun.management:type=DiagnosticCommand";
+    private static final String THREAD_DUMP_OPERATION = "threadDumpToFile";
+
+    private final CaptureInstrumentation instrumentation;
+
+    public ThreadAnalyser() {
+        this(CaptureInstrumentation.getDefault());
+    }
+
+    /**
+     * @param instrumentation records capture times and payloads, and write times of dump files.
+     */
+    public ThreadAnalyser(CaptureInstrumentation instrumentation) {
+        this.instrumentation = instrumentation;
+    }
+
     /**
      * Get ThreadMXBean object of the remote VM using Objectname object and server connection.
+     * When the remote VM provides it, the proxy implements
+     * <code>com.sun.management.ThreadMXBean</code>, whose bulk CPU time and allocation calls
+     * read all threads in one round trip.
      *
      * @param nameOfObject          registered name of MBean object in MBeanServer.
      * @param mBeanServerConnection MBeanServerConnection object.
@@ -48,7 +65,13 @@ public class ThreadAnalyser {
     public ThreadMXBean getThreadMXBeanObjects(ObjectName nameOfObject,
                                                MBeanServerConnection mBeanServerConnection)
             throws IOException {
-        return ManagementFactory.newPlatformMXBeanProxy(mBeanServerConnection, nameOfObject.toString(), ThreadMXBean.class);
+        try {
+            return ManagementFactory.newPlatformMXBeanProxy(mBeanServerConnection, nameOfObject.toString(),
+                                                            com.sun.management.ThreadMXBean.class);
+        } catch (IllegalArgumentException e) {
+            // not a HotSpot VM, only the standard interface is available
+            return ManagementFactory.newPlatformMXBeanProxy(mBeanServerConnection, nameOfObject.toString(), ThreadMXBean.class);
+        }
     }
 
     //##############################################################################################
@@ -81,7 +104,8 @@ public class ThreadAnalyser {
     /**
      * Get all the thread names which provide ThreadMXBean object and match with a given name and.
      * if match was found, it will increase the value of <code>count</code> variable and finally
-     * return that.
+     * return that. Thread names are fetched with a single remote call and threads which died
+     * before their names were read are not counted.
      *
      * @param threadMXBean ThreadMXBean object of remote VM.
      * @param allThreadIds Array of thread Ids which contains all the Thread Ids.
@@ -92,20 +116,29 @@ public class ThreadAnalyser {
      */
     public int getThreadCount(ThreadMXBean threadMXBean, long[] allThreadIds,
                               String threadName) throws IndexOutOfBoundsException {
-        int count = 0;
+        ThreadNameCounter threadNameCounter = new ThreadNameCounter();
+        threadNameCounter.addExactMatch(threadName);
+        return threadNameCounter.count(threadMXBean, allThreadIds)[0];
+    }
 
-        for (long allThreadId : allThreadIds) {
-            if (threadMXBean.getThreadInfo(allThreadId).getThreadName().equals(threadName)) {
-                count++;
-            }
-        }
-        return count;
+    /**
+     * Count the threads of an already taken thread dump whose name is equal to the given name.
+     *
+     * @param allThreadInfo Array of ThreadInfo objects.
+     * @param threadName    Thread name.
+     * @return Integer value which is the number of threads.
+     */
+    public int getThreadCount(ThreadInfo[] allThreadInfo, String threadName) {
+        ThreadNameCounter threadNameCounter = new ThreadNameCounter();
+        threadNameCounter.addExactMatch(threadName);
+        return threadNameCounter.count(allThreadInfo)[0];
     }
 
     /**
      * Get all the thread names which provide ThreadMXBean object and get given name as a sub string
      * and. find that sub string inside the thread name if match was found, it will increase the
-     * value of <code>count</code> variable and finally return that.
+     * value of <code>count</code> variable and finally return that. Thread names are fetched with
+     * a single remote call and threads which died before their names were read are not counted.
      *
      * @param threadMXBean ThreadMXBean object of remote VM.
      * @param allThreadIds Array of thread Ids which contains all the Thread Ids.
@@ -116,16 +149,37 @@ public class ThreadAnalyser {
      */
     public int getThreadCountUsingRegex(ThreadMXBean threadMXBean, long[] allThreadIds,
                                         String regex) throws IndexOutOfBoundsException {
-        int count = 0;
+        ThreadNameCounter threadNameCounter = new ThreadNameCounter();
+        threadNameCounter.addSubStringMatch(regex);
+        return threadNameCounter.count(threadMXBean, allThreadIds)[0];
+    }
 
-        for (long threadId : allThreadIds) {
-            String threadName = threadMXBean.getThreadInfo(threadId).getThreadName();
+    /**
+     * Count the threads of an already taken thread dump which contain the given sub string in
+     * their name.
+     *
+     * @param allThreadInfo Array of ThreadInfo objects.
+     * @param regex         sub string of thread name that wants to search.
+     * @return Integer value which is the number of threads.
+     */
+    public int getThreadCountUsingRegex(ThreadInfo[] allThreadInfo, String regex) {
+        ThreadNameCounter threadNameCounter = new ThreadNameCounter();
+        threadNameCounter.addSubStringMatch(regex);
+        return threadNameCounter.count(allThreadInfo)[0];
+    }
 
-            if (threadName.contains(regex)) {
-                count++;
-            }
-        }
-        return count;
+    /**
+     * Count thread names against all the patterns of a <code>ThreadNameCounter</code> with a
+     * single remote call and a single pass over the thread names.
+     *
+     * @param threadMXBean      ThreadMXBean object of remote VM.
+     * @param allThreadIds      Array of thread Ids which contains all the Thread Ids.
+     * @param threadNameCounter counter which holds the exact, sub string and regex patterns.
+     * @return one counter per pattern, in the order the patterns were added.
+     */
+    public int[] getThreadCounts(ThreadMXBean threadMXBean, long[] allThreadIds,
+                                 ThreadNameCounter threadNameCounter) {
+        return threadNameCounter.count(threadMXBean, allThreadIds);
     }
 
     //##############################################################################################
@@ -137,10 +191,259 @@ public class ThreadAnalyser {
      * @return Array of ThreadInfo objects
      */
     public ThreadInfo[] getAllThreadInfo(ThreadMXBean threadMXBean) {
+        long startNanos = System.nanoTime();
         ThreadInfo[] allThreadInfo = threadMXBean.dumpAllThreads(true, true);
+        instrumentation.recordCapture(startNanos, allThreadInfo);
         return allThreadInfo;
     }
 
+    /**
+     * Take a full thread dump with a single <code>dumpAllThreads(true, true)</code> call and keep
+     * it as a snapshot which can be analysed and compared later without going back to the
+     * remote VM. CPU times are added when the proxy is a
+     * <code>com.sun.management.ThreadMXBean</code> with CPU time measurement enabled.
+     *
+     * @param threadMXBean ThreadMXBean object of remote VM.
+     * @return snapshot of all threads.
+     */
+    public ThreadDumpSnapshot getSnapshot(ThreadMXBean threadMXBean) {
+        long timestamp = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        ThreadInfo[] allThreadInfo = threadMXBean.dumpAllThreads(true, true);
+        ThreadDumpSnapshot snapshot = ThreadDumpSnapshot.fromThreadInfo(
+                allThreadInfo, getThreadCpuTimes(threadMXBean, allThreadInfo), timestamp);
+        instrumentation.recordCapture(startNanos, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Capture the threads of the remote VM with the cheapest call which returns the data of a
+     * profile. {@link CaptureProfile#TOP_FRAMES} fetches
+     * <code>CaptureProfile.DEFAULT_DEPTH</code> frames.
+     *
+     * @param threadMXBean   ThreadMXBean object of remote VM.
+     * @param captureProfile data to fetch.
+     * @return snapshot holding what the profile fetches.
+     */
+    public ThreadDumpSnapshot capture(ThreadMXBean threadMXBean, CaptureProfile captureProfile) {
+        return capture(threadMXBean, captureProfile, CaptureProfile.DEFAULT_DEPTH);
+    }
+
+    /**
+     * Capture the threads of the remote VM with the cheapest call which returns the data of a
+     * profile.
+     *
+     * @param threadMXBean   ThreadMXBean object of remote VM.
+     * @param captureProfile data to fetch.
+     * @param maxDepth       number of frames fetched by {@link CaptureProfile#TOP_FRAMES}.
+     * @return snapshot holding what the profile fetches.
+     */
+    public ThreadDumpSnapshot capture(ThreadMXBean threadMXBean, CaptureProfile captureProfile,
+                                      int maxDepth) {
+        long timestamp = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        ThreadDumpSnapshot snapshot;
+        switch (captureProfile) {
+            case NAMES:
+            case STATES:
+                snapshot = ThreadDumpSnapshot.fromThreadInfo(
+                        threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds(), 0), null, timestamp);
+                break;
+            case TOP_FRAMES:
+                if (maxDepth <= 0) {
+                    throw new IllegalArgumentException("Depth must be positive: " + maxDepth);
+                }
+                snapshot = ThreadDumpSnapshot.fromThreadInfo(
+                        threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds(), maxDepth), null,
+                        timestamp);
+                break;
+            default:
+                return getSnapshot(threadMXBean);
+        }
+        instrumentation.recordCapture(startNanos, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Capture the threads of a VM with tens of thousands of threads, a chunk at a time. Each
+     * chunk of thread Ids is fetched with its own <code>getThreadInfo</code> call and added to
+     * the snapshot before the next one, so the remote payload and the ThreadInfo objects held
+     * at once are bounded by the chunk size, while the snapshot keeps each distinct frame and
+     * string once. Threads started after the Ids were listed are not captured, and threads
+     * which die on the way are skipped.
+     *
+     * @param threadMXBean ThreadMXBean object of remote VM.
+     * @param chunkSize    number of threads fetched per call.
+     * @param maxDepth     number of frames fetched per thread, or <code>-1</code> for full
+     *                     stacks with locked monitors, locked synchronizers and CPU times.
+     * @return snapshot of all threads.
+     */
+    public ThreadDumpSnapshot captureInChunks(ThreadMXBean threadMXBean, int chunkSize, int maxDepth) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive: " + chunkSize);
+        }
+        long startNanos = System.nanoTime();
+        long[] allThreadIds = threadMXBean.getAllThreadIds();
+        ThreadDumpSnapshotBuilder builder = new ThreadDumpSnapshotBuilder(System.currentTimeMillis());
+        long[] chunk = new long[Math.min(chunkSize, allThreadIds.length)];
+        for (int start = 0; start < allThreadIds.length; start += chunkSize) {
+            int length = Math.min(chunkSize, allThreadIds.length - start);
+            if (length != chunk.length) {
+                chunk = new long[length];
+            }
+            System.arraycopy(allThreadIds, start, chunk, 0, length);
+            if (maxDepth < 0) {
+                ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(chunk, true, true);
+                builder.addThreadInfo(threadInfos, getThreadCpuTimes(threadMXBean, threadInfos));
+            } else {
+                builder.addThreadInfo(threadMXBean.getThreadInfo(chunk, maxDepth), null);
+            }
+        }
+        ThreadDumpSnapshot snapshot = builder.build();
+        instrumentation.recordCapture(startNanos, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Make the VM write its JSON thread dump, which unlike ThreadMXBean also lists virtual
+     * threads, through the <code>Thread.dump_to_file</code> diagnostic command, and parse it.
+     * The file is written by the VM itself, so the path must be on its host, as it is for a
+     * connection made through {@link MBeanHandler#getConnectorAddress(int)}. An existing file at
+     * the path is deleted first, so a dump left by an earlier run is never read instead of the
+     * new one. Needs JDK 21 or later in the VM.
+     *
+     * @param mBeanServerConnection MBean server connection of the VM.
+     * @param path                  file the VM writes the dump to, deleted first if it exists.
+     * @return snapshot of all platform and virtual threads.
+     * @throws IOException if the command is not available or fails, or the dump can not be read.
+     */
+    public ThreadDumpSnapshot getJsonThreadDump(MBeanServerConnection mBeanServerConnection, String path)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        File file = new File(path);
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Could not delete the earlier dump " + path);
+        }
+        Object output;
+        try {
+            output = mBeanServerConnection.invoke(new ObjectName(DIAGNOSTIC_COMMAND_MBEAN_NAME),
+                                                  THREAD_DUMP_OPERATION,
+                                                  new Object[]{new String[]{"-overwrite", "-format=json", path}},
+                                                  new String[]{String[].class.getName()});
+        } catch (JMException e) {
+            throw new IOException("Thread.dump_to_file failed on the VM", e);
+        }
+        if (!file.isFile()) {
+            throw new IOException("Thread.dump_to_file did not write " + path + ": " + output);
+        }
+        ThreadDumpSnapshot snapshot = new ThreadDumpJsonParser().parse(path);
+        instrumentation.recordCapture(startNanos, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Count the threads of a snapshot whose name is equal to the given name.
+     *
+     * @param snapshot   thread dump snapshot.
+     * @param threadName Thread name.
+     * @return Integer value which is the number of threads.
+     */
+    public int getThreadCount(ThreadDumpSnapshot snapshot, String threadName) {
+        ThreadNameCounter threadNameCounter = new ThreadNameCounter();
+        threadNameCounter.addExactMatch(threadName);
+        return threadNameCounter.count(snapshot)[0];
+    }
+
+    /**
+     * Count the threads of a snapshot which contain the given sub string in their name.
+     *
+     * @param snapshot thread dump snapshot.
+     * @param regex    sub string of thread name that wants to search.
+     * @return Integer value which is the number of threads.
+     */
+    public int getThreadCountUsingRegex(ThreadDumpSnapshot snapshot, String regex) {
+        ThreadNameCounter threadNameCounter = new ThreadNameCounter();
+        threadNameCounter.addSubStringMatch(regex);
+        return threadNameCounter.count(snapshot)[0];
+    }
+
+    /**
+     * find deadlocked threads of a snapshot through its {@link LockGraph}.
+     *
+     * @param snapshot thread dump snapshot.
+     * @return Ids of deadlocked threads or <code>null</code> if there is no deadlock.
+     */
+    public long[] getDeadlockedThreads(ThreadDumpSnapshot snapshot) {
+        return snapshot.findDeadlockedThreads();
+    }
+
+    /**
+     * Build the lock graph of the remote VM from a single thread dump, to find deadlocks, wait
+     * chains and contended locks without calling <code>findDeadlockedThreads()</code> first.
+     *
+     * @param threadMXBean ThreadMXBean object of remote VM.
+     * @return lock graph of all threads.
+     */
+    public LockGraph getLockGraph(ThreadMXBean threadMXBean) {
+        return LockGraph.fromThreadInfo(threadMXBean.dumpAllThreads(true, true));
+    }
+
+    /**
+     * Find the threads of the remote VM which use the most CPU, by sampling CPU times twice.
+     * Use a {@link HotThreadSampler} directly to keep ranking at a fixed rate.
+     *
+     * @param threadMXBean   ThreadMXBean object of remote VM.
+     * @param intervalMillis time between the two samples, in milliseconds.
+     * @param limit          maximum number of threads returned.
+     * @return hottest threads over the interval, highest CPU first.
+     * @throws InterruptedException if interrupted between the samples.
+     */
+    public List<HotThreadSampler.HotThread> getHotThreads(ThreadMXBean threadMXBean,
+                                                          long intervalMillis, int limit)
+            throws InterruptedException {
+        HotThreadSampler hotThreadSampler = new HotThreadSampler(threadMXBean, MAX_HOT_THREAD_DEPTH);
+        hotThreadSampler.sample(limit);
+        Thread.sleep(intervalMillis);
+        return hotThreadSampler.sample(limit);
+    }
+
+    /**
+     * Measure the allocation rate of the threads of the remote VM over an interval.
+     * Use an {@link AllocationSampler} directly to keep measuring at a fixed rate.
+     *
+     * @param threadMXBean      ThreadMXBean object of remote VM.
+     * @param threadNameCounter thread name groups rates are summed for, or <code>null</code>.
+     * @param intervalMillis    time between the two samples, in milliseconds.
+     * @param limit             maximum number of top allocators returned.
+     * @return allocation rates over the interval.
+     * @throws InterruptedException if interrupted between the samples.
+     */
+    public AllocationSampler.AllocationSample getAllocationRates(ThreadMXBean threadMXBean,
+                                                                 ThreadNameCounter threadNameCounter,
+                                                                 long intervalMillis, int limit)
+            throws InterruptedException {
+        AllocationSampler allocationSampler = new AllocationSampler(threadMXBean, threadNameCounter,
+                                                                    MAX_HOT_THREAD_DEPTH);
+        allocationSampler.sample(limit);
+        Thread.sleep(intervalMillis);
+        return allocationSampler.sample(limit);
+    }
+
+    /**
+     * Find the thread pools of the remote VM and how many of their threads are busy, from one
+     * capture of the top frames of every thread. Use a {@link ThreadPoolAnalyzer} directly to
+     * follow utilization and saturation over time.
+     *
+     * @param threadMXBean ThreadMXBean object of remote VM.
+     * @param minThreads   minimum number of threads of a pool.
+     * @return thread pools, most busy threads first.
+     */
+    public List<ThreadPoolAnalyzer.ThreadPool> getThreadPools(ThreadMXBean threadMXBean, int minThreads) {
+        ThreadPoolAnalyzer threadPoolAnalyzer = new ThreadPoolAnalyzer();
+        threadPoolAnalyzer.update(capture(threadMXBean, CaptureProfile.TOP_FRAMES));
+        return threadPoolAnalyzer.getThreadPools(minThreads);
+    }
+
     /**
      * find deadlocked threads and return ThreadInfo
      *
@@ -157,71 +460,132 @@ public class ThreadAnalyser {
     }
 
     /**
-     * write thread dump into a file
+     * write thread dump of this VM into a new file, named after the time, this VM and a sequence
+     * number, which appears atomically once it is complete
      *
-     * @param allThreadInfo ArrayList of ThreadMXBean objects.
+     * @param allThreadInfo Array of ThreadInfo objects.
      * @param path          path, that wants to create new file.
      * @throws java.io.IOException if create new file failure
      *                     can be results in an <tt>IOException</tt>.
      */
     public void createThreadDumpFile(ThreadInfo[] allThreadInfo, String path)
             throws IOException {
+        createThreadDumpFile(null, allThreadInfo, path);
+    }
 
-        Timestamp timeStamp = new Timestamp(new Date().getTime());
-
-        StringBuilder absoluteFilePathBuilder = new StringBuilder();
-
-        absoluteFilePathBuilder.append(path);
-        absoluteFilePathBuilder.append(File.separator);
-        absoluteFilePathBuilder.append(timeStamp);
-        absoluteFilePathBuilder.append(".txt");
-
-        File threadDumpFile = new File(absoluteFilePathBuilder.toString());
+    /**
+     * write thread dump into a new file, named after the time, the VM the threads belong to and
+     * a sequence number, which appears atomically once it is complete
+     *
+     * @param targetId      process Id or other Id of the VM the threads belong to, or
+     *                      <code>null</code> for this VM.
+     * @param allThreadInfo Array of ThreadInfo objects.
+     * @param path          path, that wants to create new file.
+     * @throws java.io.IOException if create new file failure
+     *                     can be results in an <tt>IOException</tt>.
+     */
+    public void createThreadDumpFile(String targetId, ThreadInfo[] allThreadInfo, String path)
+            throws IOException {
 
-        if (!threadDumpFile.exists()) {
-            if (!threadDumpFile.createNewFile()) {
-                return;
-            }
+        if (allThreadInfo == null) {
+            return;
         }
 
-        BufferedWriter bufferedWriter =
-                new BufferedWriter(new OutputStreamWriter(new FileOutputStream(threadDumpFile),
-                                                          Charset.defaultCharset()));
-        try {
-            if (allThreadInfo != null) {
-                for (ThreadInfo threadInfo : allThreadInfo) {
-                    StringBuilder dump = new StringBuilder();
-                    dump.append("Thread name:");
-                    dump.append('"');
-                    dump.append(threadInfo.getThreadName());
-                    dump.append("\" ");
+        new ThreadDumpStore(path, 0, 0, false, instrumentation).store(targetId, allThreadInfo);
+    }
+
+    /**
+     * write thread dump of this VM into a file with threads sharing the same state and stack
+     * trace grouped together, so each distinct stack is written once with the names of its
+     * threads.
+     *
+     * @param allThreadInfo Array of ThreadInfo objects.
+     * @param path          path, that wants to create new file.
+     * @throws java.io.IOException if create new file failure
+     *                     can be results in an <tt>IOException</tt>.
+     */
+    public void createGroupedThreadDumpFile(ThreadInfo[] allThreadInfo, String path)
+            throws IOException {
+        createGroupedThreadDumpFile(null, allThreadInfo, path);
+    }
 
-                    final Thread.State state = threadInfo.getThreadState();
+    /**
+     * write grouped thread dump of a VM into a file named after that VM
+     *
+     * @param targetId      process Id or other Id of the VM the threads belong to, or
+     *                      <code>null</code> for this VM.
+     * @param allThreadInfo Array of ThreadInfo objects.
+     * @param path          path, that wants to create new file.
+     * @throws java.io.IOException if create new file failure
+     *                     can be results in an <tt>IOException</tt>.
+     */
+    public void createGroupedThreadDumpFile(String targetId, ThreadInfo[] allThreadInfo, String path)
+            throws IOException {
 
-                    dump.append("\n\tjava.lang.Thread.State: ");
-                    dump.append(state);
+        if (allThreadInfo == null) {
+            return;
+        }
 
-                    final StackTraceElement[] stackTraceElements = threadInfo.getStackTrace();
+        new ThreadDumpStore(path, 0, 0, false, instrumentation)
+                .store(targetId, new StackTraceGrouper().group(allThreadInfo));
+    }
 
-                    for (final StackTraceElement stackTraceElement : stackTraceElements) {
-                        dump.append("\n\t\tat ");
-                        dump.append(stackTraceElement);
-                    }
+    /**
+     * write thread dump of a snapshot into a file
+     *
+     * @param snapshot thread dump snapshot.
+     * @param path     path, that wants to create new file.
+     * @throws java.io.IOException if create new file failure
+     *                     can be results in an <tt>IOException</tt>.
+     */
+    public void createThreadDumpFile(ThreadDumpSnapshot snapshot, String path)
+            throws IOException {
+        createThreadDumpFile(null, snapshot, path);
+    }
 
-                    dump.append("\n\n");
-                    bufferedWriter.write(dump.toString());
-                    bufferedWriter.newLine();
-                }
-            } else {
-                if(!threadDumpFile.delete()){
+    /**
+     * write thread dump of a snapshot of another VM into a file named after that VM
+     *
+     * @param targetId process Id or other Id of the VM the snapshot was taken from, or
+     *                 <code>null</code> for this VM.
+     * @param snapshot thread dump snapshot.
+     * @param path     path, that wants to create new file.
+     * @throws java.io.IOException if create new file failure
+     *                     can be results in an <tt>IOException</tt>.
+     */
+    public void createThreadDumpFile(String targetId, ThreadDumpSnapshot snapshot, String path)
+            throws IOException {
+        new ThreadDumpStore(path, 0, 0, false, instrumentation).store(targetId, snapshot);
+    }
 
-                }
+    /**
+     * Read CPU times of the threads of a dump with one bulk call, when the proxy supports it.
+     *
+     * @param threadMXBean  ThreadMXBean object of remote VM.
+     * @param allThreadInfo Array of ThreadInfo objects.
+     * @return CPU times in the same order as <code>allThreadInfo</code> or <code>null</code>.
+     */
+    private long[] getThreadCpuTimes(ThreadMXBean threadMXBean, ThreadInfo[] allThreadInfo) {
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean) ||
+            !threadMXBean.isThreadCpuTimeEnabled()) {
+            return null;
+        }
+        long[] ids = new long[allThreadInfo.length];
+        int count = 0;
+        for (ThreadInfo threadInfo : allThreadInfo) {
+            if (threadInfo != null) {
+                ids[count++] = threadInfo.getThreadId();
             }
-        }finally{
-            bufferedWriter.close();
         }
+        long[] cpuTimes = ((com.sun.management.ThreadMXBean) threadMXBean)
+                .getThreadCpuTime(Arrays.copyOf(ids, count));
 
-
+        long[] allCpuTimes = new long[allThreadInfo.length];
+        count = 0;
+        for (int i = 0; i < allThreadInfo.length; i++) {
+            allCpuTimes[i] = allThreadInfo[i] != null ? cpuTimes[count++] : -1;
+        }
+        return allCpuTimes;
     }
 
 }
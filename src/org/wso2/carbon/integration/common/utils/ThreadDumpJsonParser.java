@@ -0,0 +1,549 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+/**
+ * Parses the JSON thread dump written by <code>jcmd &lt;pid&gt; Thread.dump_to_file -format=json
+ * &lt;file&gt;</code> into a snapshot. Unlike ThreadMXBean, this dump lists virtual threads,
+ * grouped into thread containers (executors, structured task scopes) next to the platform
+ * threads, so it is the only way to see the threads of services built on virtual threads.
+ * <pre>
+ * {"threadDump": {"time": "...", "threadContainers": [
+ *   {"container": "&lt;root&gt;", "threads": [
+ *     {"tid": "1", "name": "main", "stack": ["java.base/java.lang.Thread.sleep0(Native Method)", ...]},
+ *     ...]},
+ *   ...]}}
+ * </pre>
+ * The input is read through a fixed size buffer and each thread is added to the snapshot as it
+ * is parsed, so memory is bounded by the snapshot, which keeps every distinct frame once, and
+ * not by the size of the file. Fields this parser does not know are skipped.
+ * <p/>
+ * Dumps of JDK 21 carry neither thread states nor a virtual thread marker. Threads are then
+ * virtual when their stack starts in <code>java.lang.VirtualThread.run</code>, and their state
+ * is inferred from the top frames: sleeping threads are <code>TIMED_WAITING</code>, threads in
+ * <code>Object.wait</code> or parked are <code>WAITING</code> (<code>TIMED_WAITING</code> with a
+ * timeout), any other thread is <code>RUNNABLE</code>. Newer dumps which carry a
+ * <code>state</code>, <code>virtual</code> or <code>blockedOn</code>/<code>waitingOn</code>
+ * field are taken as they are. Instances are not thread safe.
+ */
+public class ThreadDumpJsonParser {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int STATE_FRAMES = 4;
+    private static final String NATIVE_METHOD = "Native Method";
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss");
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private final StringBuilder text = new StringBuilder();
+
+    private Reader reader;
+    private int position;
+    private int limit;
+    private long offset;
+
+    // current dump
+    private ThreadDumpSnapshotBuilder builder;
+    private long timestamp;
+
+    // current thread
+    private long threadId;
+    private String threadName;
+    private String threadState;
+    private Boolean virtual;
+    private String lock;
+    private StackTraceElement[] frames = new StackTraceElement[64];
+    private int depth;
+
+    public ThreadDumpJsonParser() {
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    }
+
+    /**
+     * Parse a JSON thread dump file.
+     *
+     * @param path thread dump file.
+     * @return snapshot of every thread in the file.
+     * @throws IOException if the file can not be read or is not a JSON thread dump.
+     */
+    public ThreadDumpSnapshot parse(String path) throws IOException {
+        File file = new File(path);
+        try (Reader fileReader = new InputStreamReader(new FileInputStream(file), UTF_8)) {
+            return parse(fileReader, file.lastModified());
+        }
+    }
+
+    /**
+     * Parse a JSON thread dump.
+     *
+     * @param input            JSON thread dump, read to the end of the dump but not closed.
+     * @param defaultTimestamp time used when the dump has no <code>time</code>, in milliseconds
+     *                         since the epoch.
+     * @return snapshot of every thread in the dump.
+     * @throws IOException if reading fails or the input is not a JSON thread dump.
+     */
+    public ThreadDumpSnapshot parse(Reader input, long defaultTimestamp) throws IOException {
+        reader = input;
+        position = 0;
+        limit = 0;
+        offset = 0;
+        timestamp = defaultTimestamp;
+        builder = null;
+        try {
+            boolean found = false;
+            expect('{');
+            if (!tryConsume('}')) {
+                do {
+                    if ("threadDump".equals(readString()) && expectColon() && peek() == '{') {
+                        parseThreadDump();
+                        found = true;
+                    } else {
+                        skipValue();
+                    }
+                } while (tryConsume(','));
+                expect('}');
+            }
+            if (!found) {
+                throw new IOException("Not a JSON thread dump: no threadDump object");
+            }
+            ThreadDumpSnapshot snapshot = builder.build();
+            builder = null;
+            return snapshot;
+        } finally {
+            reader = null;
+        }
+    }
+
+    //##############################################################################################
+
+    private void parseThreadDump() throws IOException {
+        // the time comes before the threads, but the builder only needs it when it is created
+        expect('{');
+        if (tryConsume('}')) {
+            ensureBuilder();
+            return;
+        }
+        do {
+            String key = readString();
+            expectColon();
+            if ("time".equals(key) && peek() == '"') {
+                parseTime(readString());
+            } else if ("threadContainers".equals(key) && peek() == '[') {
+                ensureBuilder();
+                expect('[');
+                if (!tryConsume(']')) {
+                    do {
+                        parseContainer();
+                    } while (tryConsume(','));
+                    expect(']');
+                }
+            } else {
+                skipValue();
+            }
+        } while (tryConsume(','));
+        expect('}');
+        ensureBuilder();
+    }
+
+    private void parseContainer() throws IOException {
+        if (peek() != '{') {
+            skipValue();
+            return;
+        }
+        expect('{');
+        if (tryConsume('}')) {
+            return;
+        }
+        do {
+            String key = readString();
+            expectColon();
+            if ("threads".equals(key) && peek() == '[') {
+                expect('[');
+                if (!tryConsume(']')) {
+                    do {
+                        parseThread();
+                    } while (tryConsume(','));
+                    expect(']');
+                }
+            } else {
+                skipValue();
+            }
+        } while (tryConsume(','));
+        expect('}');
+    }
+
+    private void parseThread() throws IOException {
+        if (peek() != '{') {
+            skipValue();
+            return;
+        }
+        threadId = -1;
+        threadName = "";
+        threadState = null;
+        virtual = null;
+        lock = null;
+        depth = 0;
+        expect('{');
+        if (!tryConsume('}')) {
+            do {
+                String key = readString();
+                expectColon();
+                if ("tid".equals(key)) {
+                    threadId = readLong();
+                } else if ("name".equals(key) && peek() == '"') {
+                    threadName = readString();
+                } else if ("state".equals(key) && peek() == '"') {
+                    threadState = readString();
+                } else if ("virtual".equals(key) && peek() != '{' && peek() != '[') {
+                    virtual = Boolean.valueOf(readScalar());
+                } else if (("blockedOn".equals(key) || "waitingOn".equals(key)) && peek() == '"') {
+                    lock = readString();
+                } else if ("stack".equals(key) && peek() == '[') {
+                    parseStack();
+                } else {
+                    skipValue();
+                }
+            } while (tryConsume(','));
+            expect('}');
+        }
+        if (threadId < 0) {
+            return;
+        }
+        builder.beginThread(threadId, threadName, getThreadState());
+        builder.setVirtual(virtual != null ? virtual : isVirtualThreadStack());
+        if (depth > 0) {
+            builder.setInNative(frames[0].isNativeMethod());
+        }
+        int at = lock == null ? -1 : lock.lastIndexOf('@');
+        if (at > 0) {
+            try {
+                builder.setLock(lock.substring(0, at), (int) Long.parseLong(lock.substring(at + 1), 16), -1);
+            } catch (NumberFormatException ignored) {
+                // not a lock description this parser understands
+            }
+        }
+        for (int i = 0; i < depth; i++) {
+            builder.addFrame(frames[i]);
+        }
+    }
+
+    private void parseStack() throws IOException {
+        expect('[');
+        if (tryConsume(']')) {
+            return;
+        }
+        do {
+            if (peek() == '"') {
+                StackTraceElement frame = parseFrame(readString());
+                if (frame != null) {
+                    if (depth == frames.length) {
+                        StackTraceElement[] grown = new StackTraceElement[depth << 1];
+                        System.arraycopy(frames, 0, grown, 0, depth);
+                        frames = grown;
+                    }
+                    frames[depth++] = frame;
+                }
+            } else {
+                skipValue();
+            }
+        } while (tryConsume(','));
+        expect(']');
+    }
+
+    /**
+     * <code>java.base/java.lang.Thread.sleep(Thread.java:509)</code>, where the class loader and
+     * module prefix, the file and the line number are all optional.
+     */
+    private static StackTraceElement parseFrame(String frame) {
+        int open = frame.lastIndexOf('(');
+        int end = open < 0 ? frame.length() : open;
+        int start = frame.lastIndexOf('/', end - 1) + 1;
+        int dot = frame.lastIndexOf('.', end - 1);
+        if (dot < start) {
+            return null;
+        }
+        String className = frame.substring(start, dot);
+        String methodName = frame.substring(dot + 1, end);
+        String fileName = null;
+        int lineNumber = -1;
+        if (open >= 0) {
+            int close = frame.indexOf(')', open);
+            String location = frame.substring(open + 1, close < 0 ? frame.length() : close);
+            if (NATIVE_METHOD.equals(location)) {
+                lineNumber = -2;
+            } else if (!location.isEmpty() && !"Unknown Source".equals(location)) {
+                int colon = location.lastIndexOf(':');
+                fileName = colon < 0 ? location : location.substring(0, colon);
+                if (colon >= 0) {
+                    try {
+                        lineNumber = Integer.parseInt(location.substring(colon + 1));
+                    } catch (NumberFormatException ignored) {
+                        lineNumber = -1;
+                    }
+                }
+            }
+        }
+        return new StackTraceElement(className, methodName, fileName, lineNumber);
+    }
+
+    private Thread.State getThreadState() {
+        if (threadState != null) {
+            try {
+                return Thread.State.valueOf(threadState);
+            } catch (IllegalArgumentException ignored) {
+                // states this version of Thread.State does not have are inferred
+            }
+        }
+        boolean parked = false;
+        for (int i = 0; i < depth && i < STATE_FRAMES; i++) {
+            String className = frames[i].getClassName();
+            String methodName = frames[i].getMethodName();
+            if (("java.lang.Thread".equals(className) || "java.lang.VirtualThread".equals(className)) &&
+                methodName.startsWith("sleep")) {
+                return Thread.State.TIMED_WAITING;
+            }
+            if ("java.lang.Object".equals(className) && methodName.startsWith("wait")) {
+                return Thread.State.WAITING;
+            }
+            if ("java.util.concurrent.locks.LockSupport".equals(className) ||
+                "java.lang.VirtualThread".equals(className)) {
+                if ("parkNanos".equals(methodName) || "parkUntil".equals(methodName)) {
+                    return Thread.State.TIMED_WAITING;
+                }
+                if ("park".equals(methodName) && "java.util.concurrent.locks.LockSupport".equals(className)) {
+                    return Thread.State.WAITING;
+                }
+            }
+            // Unsafe.park and VirtualThread.park are above the LockSupport frame telling the timeout
+            parked |= "park".equals(methodName);
+        }
+        return parked ? Thread.State.WAITING : Thread.State.RUNNABLE;
+    }
+
+    private boolean isVirtualThreadStack() {
+        return depth > 0 && "java.lang.VirtualThread".equals(frames[depth - 1].getClassName()) &&
+               "run".equals(frames[depth - 1].getMethodName());
+    }
+
+    private void parseTime(String time) {
+        if (time.length() < 19) {
+            return;
+        }
+        try {
+            long millis = dateFormat.parse(time.substring(0, 19)).getTime();
+            if (time.length() > 20 && time.charAt(19) == '.') {
+                int fractionEnd = 20;
+                while (fractionEnd < time.length() && fractionEnd < 23 &&
+                       Character.isDigit(time.charAt(fractionEnd))) {
+                    fractionEnd++;
+                }
+                String fraction = (time.substring(20, fractionEnd) + "00").substring(0, 3);
+                millis += Integer.parseInt(fraction);
+            }
+            timestamp = millis;
+        } catch (ParseException ignored) {
+            // keep the default timestamp
+        } catch (NumberFormatException ignored) {
+            // keep the default timestamp
+        }
+    }
+
+    private void ensureBuilder() {
+        if (builder == null) {
+            builder = new ThreadDumpSnapshotBuilder(timestamp);
+        }
+    }
+
+    //##############################################################################################
+
+    private String readString() throws IOException {
+        expect('"');
+        text.setLength(0);
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return text.toString();
+            }
+            if (c != '\\') {
+                text.append(c);
+                continue;
+            }
+            c = next();
+            switch (c) {
+                case 'b':
+                    text.append('\b');
+                    break;
+                case 'f':
+                    text.append('\f');
+                    break;
+                case 'n':
+                    text.append('\n');
+                    break;
+                case 'r':
+                    text.append('\r');
+                    break;
+                case 't':
+                    text.append('\t');
+                    break;
+                case 'u':
+                    int value = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(next(), 16);
+                        if (digit < 0) {
+                            throw error("Malformed unicode escape");
+                        }
+                        value = (value << 4) | digit;
+                    }
+                    text.append((char) value);
+                    break;
+                default:
+                    text.append(c);
+            }
+        }
+    }
+
+    /**
+     * Read a number, <code>true</code>, <code>false</code> or <code>null</code>.
+     */
+    private String readScalar() throws IOException {
+        if (peek() == '"') {
+            return readString();
+        }
+        text.setLength(0);
+        while (true) {
+            if (position == limit && !fill()) {
+                break;
+            }
+            char c = buffer[position];
+            if (c == ',' || c == '}' || c == ']' || Character.isWhitespace(c)) {
+                break;
+            }
+            text.append(c);
+            position++;
+        }
+        if (text.length() == 0) {
+            throw error("Value expected");
+        }
+        return text.toString();
+    }
+
+    /**
+     * Thread Ids are strings in the dumps written by the JDK and numbers in hand written ones.
+     */
+    private long readLong() throws IOException {
+        String value = readScalar();
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw error("Thread Id expected: " + value);
+        }
+    }
+
+    private void skipValue() throws IOException {
+        char c = peek();
+        if (c == '"') {
+            readString();
+        } else if (c == '{' || c == '[') {
+            char close = c == '{' ? '}' : ']';
+            expect(c);
+            if (tryConsume(close)) {
+                return;
+            }
+            do {
+                if (c == '{') {
+                    readString();
+                    expectColon();
+                }
+                skipValue();
+            } while (tryConsume(','));
+            expect(close);
+        } else {
+            readScalar();
+        }
+    }
+
+    private boolean expectColon() throws IOException {
+        expect(':');
+        return true;
+    }
+
+    private void expect(char expected) throws IOException {
+        if (peek() != expected) {
+            throw error("'" + expected + "' expected");
+        }
+        position++;
+    }
+
+    private boolean tryConsume(char expected) throws IOException {
+        if (peek() == expected) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return next character which is not white space, without consuming it.
+     */
+    private char peek() throws IOException {
+        while (true) {
+            if (position == limit && !fill()) {
+                throw error("Unexpected end of input");
+            }
+            char c = buffer[position];
+            if (!Character.isWhitespace(c)) {
+                return c;
+            }
+            position++;
+        }
+    }
+
+    private char next() throws IOException {
+        if (position == limit && !fill()) {
+            throw error("Unexpected end of input");
+        }
+        return buffer[position++];
+    }
+
+    private boolean fill() throws IOException {
+        offset += limit;
+        position = 0;
+        limit = 0;
+        int count = reader.read(buffer, 0, buffer.length);
+        if (count <= 0) {
+            return false;
+        }
+        limit = count;
+        return true;
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at character " + (offset + position));
+    }
+}
@@ -24,75 +24,73 @@ import com.sun.tools.attach.VirtualMachine;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
 import javax.management.ObjectName;
-import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
-import javax.management.remote.JMXServiceURL;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
 
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
 
 
-public class ThreadDumpMonitor {
+public class ThreadDumpMonitor implements Closeable {
 
     private final String LOCAL_CONNECTOR_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
-    private final String JAVA_HOME = "java.home";
-    private final String LIBRARY = "lib";
-    private final String MANAGEMENT_AGENT_JAR = "management-agent.jar";
-    private final String DEADLOCK = "DEADLOCK";
+    private final int CONTENDED_LOCK_LIMIT = 10;
+    private final ThreadAnalyser threadAnalyser = new ThreadAnalyser();
+    private final MBeanHandler mBeanHandler = new MBeanHandler();
 
     //get connector address using java process Id
     public String getConnectorAddress(String pid)
             throws IOException, AttachNotSupportedException, AgentLoadException,
                    AgentInitializationException {
         VirtualMachine remoteVirtualMachine = VirtualMachine.attach(pid);
-        String connectorAddress = remoteVirtualMachine.getAgentProperties().getProperty(LOCAL_CONNECTOR_ADDRESS);
+        try {
+            String connectorAddress = remoteVirtualMachine.getAgentProperties().getProperty(LOCAL_CONNECTOR_ADDRESS);
 
-        if (connectorAddress == null) {
-            String agent = remoteVirtualMachine.getSystemProperties().getProperty(JAVA_HOME) + File.separator + LIBRARY + File.separator + MANAGEMENT_AGENT_JAR;
-            remoteVirtualMachine.loadAgent(agent);
-            connectorAddress = remoteVirtualMachine.getAgentProperties().getProperty(LOCAL_CONNECTOR_ADDRESS);
-        }
+            if (connectorAddress == null) {
+                //management-agent.jar is gone since JDK 9, the VM starts the agent itself
+                connectorAddress = remoteVirtualMachine.startLocalManagementAgent();
+            }
 
-        return connectorAddress;
+            return connectorAddress;
+        } finally {
+            remoteVirtualMachine.detach();
+        }
     }
 
-    //create connection to the MBean server
+    //get the connection to the MBean server, one connector being kept per address until close
     public MBeanServerConnection getMBeanServerConnection(String connectorAddress)
             throws IOException {
-        JMXServiceURL serviceUrl = new JMXServiceURL(connectorAddress);
-        JMXConnector connector = JMXConnectorFactory.connect(serviceUrl);
-        return connector.getMBeanServerConnection();
+        return mBeanHandler.getMBeanServerConnection(connectorAddress);
     }
 
-    //get all MBean objects in remote VM
+    //get all MBean objects in remote VM through the kept connection
     public Set<ObjectName> getMbeanObjects(String connectorAddress)
             throws IOException, MalformedObjectNameException {
         ObjectName objectName = new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME);
-        MBeanServerConnection mBeanServerConnection = getMBeanServerConnection(connectorAddress);
-        return mBeanServerConnection.queryNames(objectName, null);
+        return getMBeanServerConnection(connectorAddress).queryNames(objectName, null);
+    }
+
+    //close the connections kept for the addresses used so far
+    public void close() {
+        mBeanHandler.close();
     }
 
 
-    //filter ThreadMXBean objects
+    //filter ThreadMXBean objects, as com.sun.management.ThreadMXBean proxies when the remote VM
+    //provides them so that dumps carry CPU times
     public ArrayList<ThreadMXBean> getThreadMXBeanObjects(Set<ObjectName> mBeans,
                                                           MBeanServerConnection mBeanServerConnection)
             throws IOException {
         ArrayList<ThreadMXBean> threadMXBeans = new ArrayList<ThreadMXBean>();
 
         for (ObjectName name : mBeans) {
-            threadMXBeans.add(ManagementFactory.newPlatformMXBeanProxy(mBeanServerConnection, name.toString(), ThreadMXBean.class));
+            threadMXBeans.add(threadAnalyser.getThreadMXBeanObjects(name, mBeanServerConnection));
         }
 
         return threadMXBeans;
@@ -116,115 +114,45 @@ public class ThreadDumpMonitor {
         return requestedThreadList;
     }
 
+    //count threads by exact name, fetching all the names with one remote call
     public int getThreadCount(ArrayList<ThreadMXBean> threadMXBeans,long[] allThreadIds, String name)throws NullPointerException{
-        int count = 0;
-
-        for (int i = 0; i < allThreadIds.length; i++) {
-            if(threadMXBeans.get(0).getThreadInfo(allThreadIds[i]).getThreadName().equals(name)){
-                count++;
-            }
-        }
-        return count;
+        ThreadNameCounter threadNameCounter = new ThreadNameCounter();
+        threadNameCounter.addExactMatch(name);
+        return threadNameCounter.count(threadMXBeans.get(0), allThreadIds)[0];
     }
 
+    //count threads whose name matches the given regex, compiled once for all the threads
     public int getThreadCountUsingRegex(ArrayList<ThreadMXBean> threadMXBeans,long[] allThreadIds, String subString)throws NullPointerException{
-        int count = 0;
-
-
-        for (int i = 0; i < allThreadIds.length; i++) {
-            String threadName = threadMXBeans.get(0).getThreadInfo(allThreadIds[i]).getThreadName();
-
-            int indicator = threadName.split(subString).length;
-
-            if(indicator>1){
-                count++;
-            }
-        }
-        return count;
+        ThreadNameCounter threadNameCounter = new ThreadNameCounter();
+        threadNameCounter.addRegexMatch(subString);
+        return threadNameCounter.count(threadMXBeans.get(0), allThreadIds)[0];
     }
 
     //##############################################################################################
 
-    //to get default thread dump, set threadInfoType to null
-    private String getThreadDump(ThreadMXBean threadMXBean, String threadInfoType) throws NullPointerException {
-
-        ThreadInfo[] threadInfos = null;
-
-        if(threadInfoType == null){
-            threadInfos = threadMXBean.dumpAllThreads(true, true);
-        }else if(threadInfoType.equals(DEADLOCK)){
-            threadInfos = getDeadlockedThreads(threadMXBean);
-        }
-
-          final StringBuilder dump = new StringBuilder();
-
-        if(threadInfos != null) {
-            for (ThreadInfo threadInfo : threadInfos) {
-                dump.append("Thread name:");
-                dump.append('"');
-                dump.append(threadInfo.getThreadName());
-                dump.append("\" ");
-
-                final Thread.State state = threadInfo.getThreadState();
-
-                dump.append("\n\tjava.lang.Thread.State: ");
-                dump.append(state);
-
-                final StackTraceElement[] stackTraceElements = threadInfo.getStackTrace();
+    //write the dumps of all the VMs of the process pid into one new file, named after the time,
+    //the process Id and a sequence number, which appears atomically once it is complete
+    public void createThreadDumpFile(String pid, final ArrayList<ThreadMXBean> threadMXBeans,String path)
+            throws IOException {
 
-                for (final StackTraceElement stackTraceElement : stackTraceElements) {
-                    dump.append("\n\t\tat ");
-                    dump.append(stackTraceElement);
+        new ThreadDumpStore(path).store(pid, System.currentTimeMillis(), new ThreadDumpStore.Content() {
+            public void writeTo(ThreadDumpWriter threadDumpWriter) throws IOException {
+                for (ThreadMXBean threadMXBean : threadMXBeans) {
+                    //deadlocks and contention are found in the same dump, without a second remote call
+                    ThreadDumpSnapshot snapshot = threadAnalyser.getSnapshot(threadMXBean);
+                    threadDumpWriter.writeReport(snapshot, CONTENDED_LOCK_LIMIT);
                 }
-
-                dump.append("\n\n");
             }
-        }
-
-        return dump.toString();
+        });
     }
 
-    private ThreadInfo[] getDeadlockedThreads(ThreadMXBean threadMXBean) {
-        ThreadInfo[] deadlockedThreadInfos = null;
-        long[] deadlockedThreads = threadMXBean.findDeadlockedThreads();
-        if(deadlockedThreads != null) {
-            deadlockedThreadInfos = threadMXBean.getThreadInfo(deadlockedThreads);
-        }
-        return deadlockedThreadInfos;
-    }
-
-    public void createThreadDumpFile(ArrayList<ThreadMXBean> threadMXBeans,String path)
-            throws IOException {
-
-        String absolutePath = path+File.separator+"threadDumpFile.txt";
-
-        File threadDumpFile = new File(absolutePath);
-        //FileOutputStream fileOutputStream = new FileOutputStream(threadDumpFile);
-
-        if(!threadDumpFile.exists()) {
-            if(!threadDumpFile.createNewFile()){
-                return;
-            }
-        }
-
-        BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(threadDumpFile), Charset.defaultCharset()));
-
-        for (ThreadMXBean threadMXBean : threadMXBeans) {
-            String threadDump = getThreadDump(threadMXBean,null);
-            String deadlockThreadDump = getThreadDump(threadMXBean, DEADLOCK);
-
-            String fullThreadDump = threadDump;
-
-            if(null!=deadlockThreadDump){
-                fullThreadDump = fullThreadDump+"\n\n#Deadlocked Threads\n\n"+deadlockThreadDump;
-            }
-
-            bufferedWriter.write(fullThreadDump);
-            bufferedWriter.newLine();
-
-        }
-
-        bufferedWriter.close();
+    //take a thread dump every intervalMillis through the same connection, keeping the latest
+    //capacity dumps in memory and writing them into path in the background if path is not null
+    public ThreadDumpSampler startSampling(ArrayList<ThreadMXBean> threadMXBeans, long intervalMillis,
+                                           int capacity, String path) {
+        ThreadDumpSampler threadDumpSampler = new ThreadDumpSampler(threadMXBeans.get(0), intervalMillis, capacity, path);
+        threadDumpSampler.start();
+        return threadDumpSampler;
     }
 
 }
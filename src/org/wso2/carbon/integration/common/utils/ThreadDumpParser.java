@@ -0,0 +1,572 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Parses text thread dumps into snapshots, so thread counts, stack grouping and lock analysis
+ * also work on dumps which were not taken through a live ThreadMXBean.
+ * <p/>
+ * Two formats are understood: the HotSpot format printed by jstack and by <code>kill -3</code>
+ * (with or without <code>-l</code>), and the format written by {@link ThreadDumpWriter}. Any
+ * number of dumps may follow each other in the same input, mixed with unrelated log lines, and
+ * each dump is handed to the listener as soon as it ends. The input is read line by line
+ * through a fixed size buffer, so memory is bounded by the largest single dump, not by the size
+ * of the file.
+ * <p/>
+ * HotSpot dumps print lock addresses instead of identity hash codes and do not print the owner
+ * of a lock next to its waiters. Addresses are folded into the identity hash code of each lock,
+ * and owners are filled in from the monitors and synchronizers held by the other threads once
+ * the dump is complete, as ThreadMXBean would report them. Threads without a Java thread state,
+ * such as GC and compiler threads, are skipped. Instances are not thread safe.
+ */
+public class ThreadDumpParser {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_LINE_LENGTH = 64 * 1024;
+    private static final Pattern DATE_LINE = Pattern.compile("\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2}");
+
+    private static final String FULL_THREAD_DUMP = "Full thread dump";
+    private static final String THREAD_NAME = "Thread name:\"";
+    private static final String THREAD_ID = "\" Id=";
+    private static final String THREAD_STATE = "java.lang.Thread.State: ";
+    private static final String LOCKED_SYNCHRONIZERS = "Locked ownable synchronizers:";
+    private static final String OWNED_BY = " owned by \"";
+    private static final String DEADLOCKED_THREADS = "#Deadlocked Threads";
+
+    private static final byte NO_WAIT = 0;
+    private static final byte MONITOR_WAIT = 1;
+    private static final byte SYNCHRONIZER_WAIT = 2;
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+    private SnapshotListener listener;
+    private int dumpCount;
+    private long pendingTimestamp;
+
+    // current dump
+    private ThreadDumpSnapshotBuilder builder;
+    private boolean skipping;
+    private boolean listingSection;
+    private int lastListedIndex;
+    private long[] threadIds = new long[64];
+    private long[] waitKeys = new long[64];
+    private byte[] waitKinds = new byte[64];
+    private LongIntHashMap threadIndex = new LongIntHashMap(64);
+    private LongIntHashMap monitorOwners = new LongIntHashMap(64);
+    private LongIntHashMap synchronizerOwners = new LongIntHashMap(64);
+
+    // current thread
+    private boolean threadPending;
+    private String threadName;
+    private long threadId;
+    private long nativeId;
+    private long cpuTime;
+    private boolean hotSpotFormat;
+    private boolean inNative;
+    private boolean suspended;
+    private boolean virtual;
+    private int threadIndexInDump;
+    private Thread.State threadState;
+    private int depth;
+    private boolean topFrameNative;
+    private boolean hasLock;
+    private boolean inObjectWait;
+    private boolean inSynchronizers;
+
+    // last lock reference parsed
+    private String lockClassName;
+    private long lockKey;
+    private long lockOwnerId;
+
+    /**
+     * Parse every dump of a file.
+     *
+     * @param path     thread dump file.
+     * @param listener receives each dump as a snapshot, in file order.
+     * @return number of dumps found.
+     * @throws IOException if the file can not be read.
+     */
+    public int parse(String path, SnapshotListener listener) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(path).toPath(), StandardOpenOption.READ)) {
+            return parse(channel, listener);
+        }
+    }
+
+    /**
+     * Parse every dump read from a channel. The channel is not closed.
+     *
+     * @param channel  channel to read UTF-8 text from.
+     * @param listener receives each dump as a snapshot, in input order.
+     * @return number of dumps found.
+     * @throws IOException if reading from the channel fails.
+     */
+    public int parse(ReadableByteChannel channel, SnapshotListener listener) throws IOException {
+        this.listener = listener;
+        dumpCount = 0;
+        pendingTimestamp = 0;
+        builder = null;
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] line = new byte[256];
+        int length = 0;
+        while (channel.read(buffer) >= 0) {
+            ((Buffer) buffer).flip();
+            byte[] bytes = buffer.array();
+            for (int i = buffer.position(); i < buffer.limit(); i++) {
+                byte b = bytes[i];
+                if (b == '\n') {
+                    parseLine(decode(line, length));
+                    length = 0;
+                } else if (length < MAX_LINE_LENGTH) {
+                    if (length == line.length) {
+                        line = Arrays.copyOf(line, length << 1);
+                    }
+                    line[length++] = b;
+                }
+            }
+            ((Buffer) buffer).clear();
+        }
+        if (length > 0) {
+            parseLine(decode(line, length));
+        }
+        endDump();
+        this.listener = null;
+        return dumpCount;
+    }
+
+    private static String decode(byte[] line, int length) {
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        return new String(line, 0, length, UTF_8);
+    }
+
+    private void parseLine(String line) {
+        if (line.startsWith(THREAD_NAME)) {
+            parseThreadName(line);
+            return;
+        }
+        if (line.startsWith(FULL_THREAD_DUMP)) {
+            endDump();
+            beginDump();
+            return;
+        }
+        if (line.length() == 19 && DATE_LINE.matcher(line).matches()) {
+            endDump();
+            try {
+                pendingTimestamp = dateFormat.parse(line).getTime();
+            } catch (ParseException e) {
+                pendingTimestamp = 0;
+            }
+            return;
+        }
+        if (skipping) {
+            return;
+        }
+        if (line.startsWith("\"")) {
+            parseHotSpotHeader(line);
+            return;
+        }
+        if (line.startsWith("#") || line.startsWith("Found ") || line.startsWith("JNI global") ||
+            line.equals("Heap")) {
+            // deadlock listings and summaries repeat threads which were already read
+            endThread();
+            skipping = true;
+            listingSection = line.equals(DEADLOCKED_THREADS);
+            lastListedIndex = -1;
+            return;
+        }
+
+        String trimmed = line.trim();
+        if (trimmed.startsWith(THREAD_STATE)) {
+            parseThreadState(trimmed);
+        } else if (threadIndexInDump < 0) {
+            return;
+        } else if (trimmed.startsWith("at ")) {
+            parseFrame(trimmed);
+        } else if (trimmed.startsWith("- ")) {
+            parseLock(trimmed.substring(2));
+        } else if (trimmed.equals(LOCKED_SYNCHRONIZERS)) {
+            inSynchronizers = true;
+        }
+    }
+
+    //##############################################################################################
+
+    private void beginDump() {
+        builder = new ThreadDumpSnapshotBuilder(pendingTimestamp);
+        pendingTimestamp = 0;
+        skipping = false;
+        threadIndex = new LongIntHashMap(64);
+        monitorOwners = new LongIntHashMap(64);
+        synchronizerOwners = new LongIntHashMap(64);
+        threadPending = false;
+        threadIndexInDump = -1;
+    }
+
+    private void endDump() {
+        if (builder == null) {
+            return;
+        }
+        endThread();
+        for (int index = 0; index < builder.size(); index++) {
+            int owner = -1;
+            if (waitKinds[index] == MONITOR_WAIT) {
+                owner = monitorOwners.get(waitKeys[index]);
+            } else if (waitKinds[index] == SYNCHRONIZER_WAIT) {
+                owner = synchronizerOwners.get(waitKeys[index]);
+            }
+            if (owner >= 0 && owner != index) {
+                builder.setLockOwnerId(index, threadIds[owner]);
+            }
+        }
+        ThreadDumpSnapshot snapshot = builder.build();
+        builder = null;
+        if (snapshot.size() > 0) {
+            dumpCount++;
+            listener.onSnapshot(snapshot);
+        }
+    }
+
+    private void beginThread(String name, long id, long nid) {
+        endThread();
+        threadPending = true;
+        threadName = name;
+        threadId = id;
+        nativeId = nid;
+        hotSpotFormat = false;
+        cpuTime = -1;
+        inNative = false;
+        suspended = false;
+        virtual = false;
+        threadIndexInDump = -1;
+        depth = 0;
+        topFrameNative = false;
+        hasLock = false;
+        inObjectWait = false;
+        inSynchronizers = false;
+    }
+
+    private void endThread() {
+        if (threadIndexInDump >= 0 && hotSpotFormat && topFrameNative &&
+            threadState == Thread.State.RUNNABLE) {
+            // HotSpot dumps do not say it, but a runnable thread in a native frame is in native
+            builder.setInNative(true);
+        }
+        threadPending = false;
+        threadIndexInDump = -1;
+    }
+
+    //##############################################################################################
+
+    /**
+     * <code>Thread name:"worker-1" Id=12 (in native) (suspended)</code>
+     */
+    private void parseThreadName(String line) {
+        int idStart = line.lastIndexOf(THREAD_ID);
+        if (idStart < THREAD_NAME.length()) {
+            return;
+        }
+        int idEnd = idStart + THREAD_ID.length();
+        while (idEnd < line.length() && Character.isDigit(line.charAt(idEnd))) {
+            idEnd++;
+        }
+        long id;
+        try {
+            id = Long.parseLong(line.substring(idStart + THREAD_ID.length(), idEnd));
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        // a thread seen before either belongs to the deadlocked threads section of this dump,
+        // which lists threads in dump order, or starts the next dump when several dumps were
+        // written one after the other
+        int index = builder == null ? -1 : threadIndex.get(id);
+        if (index >= 0 && skipping && listingSection && index > lastListedIndex) {
+            lastListedIndex = index;
+            endThread();
+            return;
+        }
+        if (index >= 0 || (builder != null && skipping)) {
+            endDump();
+        }
+        if (builder == null) {
+            beginDump();
+        }
+        beginThread(line.substring(THREAD_NAME.length(), idStart), id, -1);
+        inNative = line.indexOf(" (in native)", idEnd) >= 0;
+        suspended = line.indexOf(" (suspended)", idEnd) >= 0;
+        virtual = line.indexOf(" (virtual)", idEnd) >= 0;
+    }
+
+    /**
+     * <code>"worker-1" #12 daemon prio=5 os_prio=0 cpu=1.52ms elapsed=9.1s tid=0x... nid=0x2c03
+     * waiting on condition [0x...]</code>
+     */
+    private void parseHotSpotHeader(String line) {
+        int nameEnd = line.lastIndexOf('"');
+        if (nameEnd <= 0) {
+            return;
+        }
+        if (builder == null) {
+            beginDump();
+        }
+        long id = -1;
+        long nid = -1;
+        double cpuMillis = -1;
+        for (String token : line.substring(nameEnd + 1).trim().split(" +")) {
+            try {
+                if (token.startsWith("#")) {
+                    id = Long.parseLong(token.substring(1));
+                } else if (token.startsWith("nid=0x")) {
+                    nid = Long.parseLong(token.substring(6), 16);
+                } else if (token.startsWith("nid=")) {
+                    nid = Long.parseLong(token.substring(4));
+                } else if (token.startsWith("cpu=") && token.endsWith("ms")) {
+                    cpuMillis = Double.parseDouble(token.substring(4, token.length() - 2));
+                }
+            } catch (NumberFormatException ignored) {
+                // fields this parser does not depend on
+            }
+        }
+        beginThread(line.substring(1, nameEnd), id, nid);
+        hotSpotFormat = true;
+        if (cpuMillis >= 0) {
+            cpuTime = (long) (cpuMillis * 1000000);
+        }
+    }
+
+    /**
+     * <code>java.lang.Thread.State: TIMED_WAITING (sleeping)</code>
+     */
+    private void parseThreadState(String trimmed) {
+        if (!threadPending || threadIndexInDump >= 0) {
+            return;
+        }
+        int end = trimmed.indexOf(' ', THREAD_STATE.length());
+        Thread.State state;
+        try {
+            state = Thread.State.valueOf(
+                    trimmed.substring(THREAD_STATE.length(), end < 0 ? trimmed.length() : end));
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        long id = threadId >= 0 ? threadId : nativeId;
+        if (threadIndex.containsKey(id)) {
+            return;
+        }
+        int index = builder.beginThread(id, threadName, state);
+        if (index == threadIds.length) {
+            int capacity = index << 1;
+            threadIds = Arrays.copyOf(threadIds, capacity);
+            waitKeys = Arrays.copyOf(waitKeys, capacity);
+            waitKinds = Arrays.copyOf(waitKinds, capacity);
+        }
+        threadIds[index] = id;
+        waitKinds[index] = NO_WAIT;
+        threadIndex.put(id, index);
+        threadIndexInDump = index;
+        threadState = state;
+        builder.setInNative(inNative);
+        builder.setSuspended(suspended);
+        builder.setVirtual(virtual);
+        builder.setCpuTime(cpuTime);
+    }
+
+    /**
+     * <code>at java.base@11.0.2/java.lang.Thread.sleep(Native Method)</code>
+     */
+    private void parseFrame(String trimmed) {
+        int open = trimmed.indexOf('(');
+        int close = trimmed.lastIndexOf(')');
+        if (open < 0 || close < open) {
+            return;
+        }
+        String method = trimmed.substring(3, open);
+        // drop the class loader and module prefix of newer VMs
+        method = method.substring(method.lastIndexOf('/') + 1);
+        int dot = method.lastIndexOf('.');
+        if (dot <= 0) {
+            return;
+        }
+        String source = trimmed.substring(open + 1, close);
+        source = source.substring(source.lastIndexOf('/') + 1);
+        String fileName = null;
+        int lineNumber = -1;
+        if (source.equals("Native Method")) {
+            lineNumber = -2;
+        } else if (!source.equals("Unknown Source")) {
+            int colon = source.lastIndexOf(':');
+            fileName = source;
+            if (colon > 0) {
+                try {
+                    lineNumber = Integer.parseInt(source.substring(colon + 1));
+                    fileName = source.substring(0, colon);
+                } catch (NumberFormatException ignored) {
+                    // a file name with a colon in it
+                }
+            }
+        }
+        if (depth == 0) {
+            topFrameNative = lineNumber == -2;
+        }
+        builder.addFrame(new StackTraceElement(method.substring(0, dot), method.substring(dot + 1),
+                                               fileName, lineNumber));
+        depth++;
+    }
+
+    /**
+     * Lock lines of both formats, without the leading <code>"- "</code>.
+     */
+    private void parseLock(String text) {
+        if (inSynchronizers) {
+            if (parseLockReference(text)) {
+                builder.addLockedSynchronizer(lockClassName, identity(lockKey));
+                synchronizerOwners.put(lockKey, threadIndexInDump);
+            }
+            return;
+        }
+        if (text.startsWith("locked ")) {
+            // HotSpot also lists the monitor a thread released in Object.wait(), which
+            // ThreadMXBean does not report as locked
+            if (parseLockReference(text.substring(7)) &&
+                !(inObjectWait && lockKey == waitKeys[threadIndexInDump])) {
+                builder.addLockedMonitor(lockClassName, identity(lockKey), depth - 1);
+                monitorOwners.put(lockKey, threadIndexInDump);
+            }
+            return;
+        }
+
+        byte waitKind;
+        String reference;
+        if (text.startsWith("waiting to lock ")) {
+            waitKind = MONITOR_WAIT;
+            reference = text.substring(16);
+        } else if (text.startsWith("waiting to re-lock in wait() ")) {
+            waitKind = MONITOR_WAIT;
+            reference = text.substring(29);
+        } else if (text.startsWith("blocked on ")) {
+            waitKind = MONITOR_WAIT;
+            reference = text.substring(11);
+        } else if (text.startsWith("parking to wait for ")) {
+            waitKind = SYNCHRONIZER_WAIT;
+            reference = text.substring(20).trim();
+        } else if (text.startsWith("waiting on ")) {
+            waitKind = NO_WAIT;
+            reference = text.substring(11);
+        } else {
+            return;
+        }
+        if (hasLock || !parseLockReference(reference)) {
+            return;
+        }
+        hasLock = true;
+        inObjectWait = text.startsWith("waiting on ") && threadState != Thread.State.BLOCKED;
+        builder.setLock(lockClassName, identity(lockKey), lockOwnerId);
+        waitKeys[threadIndexInDump] = lockKey;
+        waitKinds[threadIndexInDump] = lockOwnerId >= 0 ? NO_WAIT : waitKind;
+    }
+
+    /**
+     * Parse <code>&lt;0x000000076ab62208&gt; (a java.lang.Object)</code> or
+     * <code>java.lang.Object@1b6d3586 owned by "worker-2" Id=13</code> into the lock fields.
+     *
+     * @return <code>false</code> if the text is not a lock reference.
+     */
+    private boolean parseLockReference(String text) {
+        lockOwnerId = -1;
+        int open = text.indexOf('<');
+        if (open >= 0) {
+            int close = text.indexOf('>', open);
+            int classStart = text.indexOf("(a ", close);
+            if (close < 0 || classStart < 0) {
+                return false;
+            }
+            int classEnd = text.indexOf(')', classStart);
+            String className = text.substring(classStart + 3, classEnd < 0 ? text.length() : classEnd);
+            int qualifier = className.indexOf(" for ");
+            lockClassName = qualifier < 0 ? className : className.substring(0, qualifier);
+            lockKey = parseHex(text, open + 1, close);
+            return lockKey >= 0;
+        }
+
+        int ownedBy = text.indexOf(OWNED_BY);
+        String reference = ownedBy < 0 ? text : text.substring(0, ownedBy);
+        int at = reference.lastIndexOf('@');
+        lockKey = at <= 0 ? -1 : parseHex(reference, at + 1, reference.length());
+        if (lockKey < 0) {
+            return false;
+        }
+        lockClassName = reference.substring(0, at);
+        if (ownedBy >= 0) {
+            int idStart = text.lastIndexOf(THREAD_ID);
+            if (idStart > ownedBy) {
+                try {
+                    lockOwnerId = Long.parseLong(text.substring(idStart + THREAD_ID.length()).trim());
+                } catch (NumberFormatException ignored) {
+                    lockOwnerId = -1;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the value of the hex digits or <code>-1</code> if they are not a lock address or
+     *         identity hash code.
+     */
+    private static long parseHex(String text, int start, int end) {
+        if (text.startsWith("0x", start)) {
+            start += 2;
+        }
+        if (start >= end || end - start > 16) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = Character.digit(text.charAt(i), 16);
+            if (digit < 0) {
+                return -1;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * Identity hash codes fit in an int; HotSpot addresses are folded into one.
+     */
+    private static int identity(long key) {
+        return (int) (key ^ (key >>> 32));
+    }
+}
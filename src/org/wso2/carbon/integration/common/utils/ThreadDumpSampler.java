@@ -0,0 +1,305 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.io.IOException;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes a thread dump of a remote VM at a fixed rate through one ThreadMXBean proxy, so every
+ * sample reuses the same MBean server connection. The most recent snapshots are kept in a
+ * {@link SnapshotRingBuffer} and, when a dump directory is given, written to disk by a separate
+ * writer thread, so a slow disk never delays the sampling schedule. If the writer falls behind
+ * by more than <code>WRITE_QUEUE_SIZE</code> dumps, new dumps are not written and are counted as
+ * dropped writes instead.
+ * <p/>
+ * The sampler measures how late each sample starts compared with its schedule (jitter) and how
+ * long each capture takes, which shows whether the remote VM can keep up with the requested
+ * interval.
+ */
+public class ThreadDumpSampler {
+
+    private static final int WRITE_QUEUE_SIZE = 16;
+
+    private final ThreadMXBean threadMXBean;
+    private final String targetId;
+    private final long intervalNanos;
+    private final ThreadDumpStore threadDumpStore;
+    private final SnapshotRingBuffer snapshots;
+    private final ThreadAnalyser threadAnalyser = new ThreadAnalyser();
+    private final CopyOnWriteArrayList<SnapshotListener> listeners =
+            new CopyOnWriteArrayList<SnapshotListener>();
+
+    private ScheduledExecutorService scheduler;
+    private ThreadPoolExecutor writer;
+    private ScheduledFuture<?> samplingTask;
+
+    private long sampleCount;
+    private long failedSampleCount;
+    private long droppedWriteCount;
+    private long failedWriteCount;
+    private long lastJitterNanos;
+    private long maxJitterNanos;
+    private long totalJitterNanos;
+    private long lastCaptureNanos;
+    private long maxCaptureNanos;
+    private long totalCaptureNanos;
+
+    /**
+     * @param threadMXBean   ThreadMXBean object of remote VM.
+     * @param intervalMillis time between two samples, in milliseconds.
+     * @param capacity       number of snapshots kept in memory.
+     * @param path           directory dumps are written to or <code>null</code> to keep them in
+     *                       memory only.
+     */
+    public ThreadDumpSampler(ThreadMXBean threadMXBean, long intervalMillis, int capacity,
+                             String path) {
+        this(threadMXBean, intervalMillis, capacity, path == null ? null : new ThreadDumpStore(path));
+    }
+
+    /**
+     * @param threadMXBean    ThreadMXBean object of remote VM.
+     * @param intervalMillis  time between two samples, in milliseconds.
+     * @param capacity        number of snapshots kept in memory.
+     * @param threadDumpStore store dumps are written to, with its own retention limits, or
+     *                        <code>null</code> to keep them in memory only.
+     */
+    public ThreadDumpSampler(ThreadMXBean threadMXBean, long intervalMillis, int capacity,
+                             ThreadDumpStore threadDumpStore) {
+        this(threadMXBean, null, intervalMillis, capacity, threadDumpStore);
+    }
+
+    /**
+     * @param threadMXBean    ThreadMXBean object of remote VM.
+     * @param targetId        process Id or other Id of the remote VM, which names its dump files,
+     *                        or <code>null</code> if it is this VM.
+     * @param intervalMillis  time between two samples, in milliseconds.
+     * @param capacity        number of snapshots kept in memory.
+     * @param threadDumpStore store dumps are written to, with its own retention limits, or
+     *                        <code>null</code> to keep them in memory only.
+     */
+    public ThreadDumpSampler(ThreadMXBean threadMXBean, String targetId, long intervalMillis,
+                             int capacity, ThreadDumpStore threadDumpStore) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Interval must be positive: " + intervalMillis);
+        }
+        this.threadMXBean = threadMXBean;
+        this.targetId = targetId;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.threadDumpStore = threadDumpStore;
+        this.snapshots = new SnapshotRingBuffer(capacity);
+    }
+
+    public void addSnapshotListener(SnapshotListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeSnapshotListener(SnapshotListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start sampling. The first sample is taken immediately.
+     *
+     * @throws IllegalStateException if the sampler is already running.
+     */
+    public synchronized void start() {
+        if (samplingTask != null) {
+            throw new IllegalStateException("Sampler is already running");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(daemonThreadFactory("thread-dump-sampler"));
+        if (threadDumpStore != null) {
+            writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                                            new ArrayBlockingQueue<Runnable>(WRITE_QUEUE_SIZE),
+                                            daemonThreadFactory("thread-dump-writer"));
+        }
+        final long startNanos = System.nanoTime();
+        samplingTask = scheduler.scheduleAtFixedRate(new Runnable() {
+
+            // executions of one task never overlap, and a restart schedules a new task, so
+            // the schedule of each run starts from its own start time
+            private long executionCount;
+
+            public void run() {
+                long expectedStartNanos = startNanos + executionCount++ * intervalNanos;
+                try {
+                    sample(expectedStartNanos);
+                } catch (Throwable e) {
+                    // anything escaping would silently cancel the schedule
+                    synchronized (ThreadDumpSampler.this) {
+                        failedSampleCount++;
+                    }
+                }
+            }
+        }, 0, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stop sampling. Dumps which are already queued are still written to disk.
+     */
+    public synchronized void stop() {
+        if (samplingTask == null) {
+            return;
+        }
+        samplingTask.cancel(false);
+        scheduler.shutdown();
+        if (writer != null) {
+            writer.shutdown();
+        }
+        samplingTask = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return samplingTask != null;
+    }
+
+    /**
+     * @return snapshots taken so far, limited to the capacity of the sampler.
+     */
+    public SnapshotRingBuffer getSnapshots() {
+        return snapshots;
+    }
+
+    private void sample(long expectedStartNanos) {
+        long sampleStartNanos = System.nanoTime();
+        ThreadDumpSnapshot snapshot = threadAnalyser.getSnapshot(threadMXBean);
+        long captureNanos = System.nanoTime() - sampleStartNanos;
+
+        synchronized (this) {
+            lastJitterNanos = Math.max(0, sampleStartNanos - expectedStartNanos);
+            maxJitterNanos = Math.max(maxJitterNanos, lastJitterNanos);
+            totalJitterNanos += lastJitterNanos;
+            lastCaptureNanos = captureNanos;
+            maxCaptureNanos = Math.max(maxCaptureNanos, captureNanos);
+            totalCaptureNanos += captureNanos;
+            sampleCount++;
+        }
+
+        snapshots.add(snapshot);
+        if (writer != null) {
+            write(snapshot);
+        }
+        for (SnapshotListener listener : listeners) {
+            try {
+                listener.onSnapshot(snapshot);
+            } catch (Throwable ignored) {
+                // a failing listener must not cancel the sampling schedule
+            }
+        }
+    }
+
+    private void write(final ThreadDumpSnapshot snapshot) {
+        try {
+            writer.execute(new Runnable() {
+                public void run() {
+                    try {
+                        threadDumpStore.store(targetId, snapshot);
+                    } catch (IOException e) {
+                        synchronized (ThreadDumpSampler.this) {
+                            failedWriteCount++;
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                droppedWriteCount++;
+            }
+        }
+    }
+
+    //##############################################################################################
+
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    public synchronized long getFailedSampleCount() {
+        return failedSampleCount;
+    }
+
+    /**
+     * @return number of dumps which were not written because the writer was falling behind.
+     */
+    public synchronized long getDroppedWriteCount() {
+        return droppedWriteCount;
+    }
+
+    public synchronized long getFailedWriteCount() {
+        return failedWriteCount;
+    }
+
+    /**
+     * @return delay between the scheduled and the actual start of the last sample, in
+     *         nanoseconds.
+     */
+    public synchronized long getLastJitterNanos() {
+        return lastJitterNanos;
+    }
+
+    public synchronized long getMaxJitterNanos() {
+        return maxJitterNanos;
+    }
+
+    public synchronized long getMeanJitterNanos() {
+        return sampleCount == 0 ? 0 : totalJitterNanos / sampleCount;
+    }
+
+    /**
+     * @return time taken to capture the last sample, in nanoseconds.
+     */
+    public synchronized long getLastCaptureNanos() {
+        return lastCaptureNanos;
+    }
+
+    public synchronized long getMaxCaptureNanos() {
+        return maxCaptureNanos;
+    }
+
+    public synchronized long getMeanCaptureNanos() {
+        return sampleCount == 0 ? 0 : totalCaptureNanos / sampleCount;
+    }
+
+    /**
+     * @return <code>true</code> if captures take longer on average than the sampling interval,
+     *         which means samples are taken late and the requested rate cannot be kept.
+     */
+    public synchronized boolean isFallingBehind() {
+        return getMeanCaptureNanos() > intervalNanos;
+    }
+
+    static ThreadFactory daemonThreadFactory(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,495 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.lang.management.ThreadInfo;
+import java.util.Arrays;
+
+/**
+ * Immutable thread dump, captured once and analysed as many times as needed without going back
+ * to the remote VM.
+ * <p/>
+ * Threads are stored by index in parallel primitive arrays (Id, state, CPU time, lock owner Id,
+ * ...). Thread names, class names, method names and file names are kept once each in a string
+ * table, stack frames are kept once each in a frame pool, and the stack trace of a thread is a
+ * run of frame Ids in a shared array. Locks are interned the same way, so a lock which many
+ * threads wait for is a single entry of the lock table. Values which were not captured are
+ * <code>-1</code>.
+ */
+public final class ThreadDumpSnapshot {
+
+    static final byte IN_NATIVE = 1;
+    static final byte SUSPENDED = 2;
+    static final byte VIRTUAL = 4;
+
+    private static final Thread.State[] STATES = Thread.State.values();
+
+    private final long timestamp;
+    private final int size;
+
+    private final long[] threadIds;
+    private final int[] threadNames;
+    private final byte[] threadStates;
+    private final byte[] flags;
+    private final long[] cpuTimes;
+    private final long[] blockedCounts;
+    private final long[] blockedTimes;
+    private final long[] waitedCounts;
+    private final long[] waitedTimes;
+    private final int[] lockIds;
+    private final long[] lockOwnerIds;
+
+    private final int[] stackOffsets;
+    private final int[] stackFrames;
+    private final int[] monitorOffsets;
+    private final int[] monitorLocks;
+    private final int[] monitorDepths;
+    private final int[] synchronizerOffsets;
+    private final int[] synchronizerLocks;
+
+    private final String[] strings;
+    private final int[] frameClassNames;
+    private final int[] frameMethodNames;
+    private final int[] frameFileNames;
+    private final int[] frameLineNumbers;
+    private final int[] lockClassNames;
+    private final int[] lockIdentities;
+
+    private final LongIntHashMap threadIndex;
+    private volatile long[] stackHashes;
+
+    ThreadDumpSnapshot(long timestamp, int size, long[] threadIds, int[] threadNames,
+                       byte[] threadStates, byte[] flags, long[] cpuTimes,
+                       long[] blockedCounts, long[] blockedTimes,
+                       long[] waitedCounts, long[] waitedTimes,
+                       int[] lockIds, long[] lockOwnerIds,
+                       int[] stackOffsets, int[] stackFrames,
+                       int[] monitorOffsets, int[] monitorLocks, int[] monitorDepths,
+                       int[] synchronizerOffsets, int[] synchronizerLocks,
+                       String[] strings, int[] frameClassNames, int[] frameMethodNames,
+                       int[] frameFileNames, int[] frameLineNumbers,
+                       int[] lockClassNames, int[] lockIdentities) {
+        this.timestamp = timestamp;
+        this.size = size;
+        this.threadIds = threadIds;
+        this.threadNames = threadNames;
+        this.threadStates = threadStates;
+        this.flags = flags;
+        this.cpuTimes = cpuTimes;
+        this.blockedCounts = blockedCounts;
+        this.blockedTimes = blockedTimes;
+        this.waitedCounts = waitedCounts;
+        this.waitedTimes = waitedTimes;
+        this.lockIds = lockIds;
+        this.lockOwnerIds = lockOwnerIds;
+        this.stackOffsets = stackOffsets;
+        this.stackFrames = stackFrames;
+        this.monitorOffsets = monitorOffsets;
+        this.monitorLocks = monitorLocks;
+        this.monitorDepths = monitorDepths;
+        this.synchronizerOffsets = synchronizerOffsets;
+        this.synchronizerLocks = synchronizerLocks;
+        this.strings = strings;
+        this.frameClassNames = frameClassNames;
+        this.frameMethodNames = frameMethodNames;
+        this.frameFileNames = frameFileNames;
+        this.frameLineNumbers = frameLineNumbers;
+        this.lockClassNames = lockClassNames;
+        this.lockIdentities = lockIdentities;
+
+        threadIndex = new LongIntHashMap(size);
+        for (int i = 0; i < size; i++) {
+            threadIndex.put(threadIds[i], i);
+        }
+    }
+
+    /**
+     * Create a snapshot of a thread dump taken through ThreadMXBean, without CPU times.
+     *
+     * @param allThreadInfo Array of ThreadInfo objects.
+     * @return snapshot of the thread dump.
+     */
+    public static ThreadDumpSnapshot fromThreadInfo(ThreadInfo[] allThreadInfo) {
+        return fromThreadInfo(allThreadInfo, null, System.currentTimeMillis());
+    }
+
+    /**
+     * Create a snapshot of a thread dump taken through ThreadMXBean. <code>null</code> entries,
+     * left by threads which died while the dump was taken, are skipped.
+     *
+     * @param allThreadInfo  Array of ThreadInfo objects.
+     * @param threadCpuTimes CPU time of each thread in nanoseconds, in the same order as
+     *                       <code>allThreadInfo</code>, or <code>null</code> if not captured.
+     * @param timestamp      time the dump was taken, in milliseconds since the epoch.
+     * @return snapshot of the thread dump.
+     */
+    public static ThreadDumpSnapshot fromThreadInfo(ThreadInfo[] allThreadInfo,
+                                                    long[] threadCpuTimes, long timestamp) {
+        ThreadDumpSnapshotBuilder builder = new ThreadDumpSnapshotBuilder(timestamp);
+        if (allThreadInfo != null) {
+            builder.addThreadInfo(allThreadInfo, threadCpuTimes);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return time the dump was taken, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return number of threads in the snapshot.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param threadId thread Id.
+     * @return index of the thread in the snapshot or <code>-1</code> if it is not in it.
+     */
+    public int indexOf(long threadId) {
+        return threadIndex.get(threadId);
+    }
+
+    public long getThreadId(int index) {
+        return threadIds[index];
+    }
+
+    public String getThreadName(int index) {
+        return strings[threadNames[index]];
+    }
+
+    public Thread.State getThreadState(int index) {
+        return STATES[threadStates[index]];
+    }
+
+    public boolean isInNative(int index) {
+        return (flags[index] & IN_NATIVE) != 0;
+    }
+
+    public boolean isSuspended(int index) {
+        return (flags[index] & SUSPENDED) != 0;
+    }
+
+    /**
+     * @param index index of the thread.
+     * @return <code>true</code> for a virtual thread, which only JSON thread dumps contain.
+     */
+    public boolean isVirtual(int index) {
+        return (flags[index] & VIRTUAL) != 0;
+    }
+
+    /**
+     * @param index index of the thread.
+     * @return CPU time of the thread in nanoseconds or <code>-1</code> if not captured.
+     */
+    public long getCpuTime(int index) {
+        return cpuTimes[index];
+    }
+
+    public long getBlockedCount(int index) {
+        return blockedCounts[index];
+    }
+
+    public long getBlockedTime(int index) {
+        return blockedTimes[index];
+    }
+
+    public long getWaitedCount(int index) {
+        return waitedCounts[index];
+    }
+
+    public long getWaitedTime(int index) {
+        return waitedTimes[index];
+    }
+
+    /**
+     * @param index index of the thread.
+     * @return Id, in the lock table, of the lock the thread is blocked on or waiting for, or
+     *         <code>-1</code> if there is none.
+     */
+    public int getLockId(int index) {
+        return lockIds[index];
+    }
+
+    /**
+     * @param index index of the thread.
+     * @return Id of the thread which owns the lock this thread is blocked on or waiting for, or
+     *         <code>-1</code> if there is none.
+     */
+    public long getLockOwnerId(int index) {
+        return lockOwnerIds[index];
+    }
+
+    //##############################################################################################
+
+    /**
+     * @param index index of the thread.
+     * @return number of frames in the stack trace of the thread.
+     */
+    public int getStackDepth(int index) {
+        return stackOffsets[index + 1] - stackOffsets[index];
+    }
+
+    /**
+     * @param index index of the thread.
+     * @param depth depth of the frame, <code>0</code> being the top of the stack.
+     * @return Id of the frame in the frame pool.
+     */
+    public int getFrameId(int index, int depth) {
+        return stackFrames[stackOffsets[index] + depth];
+    }
+
+    /**
+     * Create the stack trace of a thread. Elements are created on each call, so analysis code
+     * should prefer the frame Ids and the frame pool accessors.
+     *
+     * @param index index of the thread.
+     * @return stack trace of the thread.
+     */
+    public StackTraceElement[] getStackTrace(int index) {
+        StackTraceElement[] stackTrace = new StackTraceElement[getStackDepth(index)];
+        for (int depth = 0; depth < stackTrace.length; depth++) {
+            stackTrace[depth] = getFrame(getFrameId(index, depth));
+        }
+        return stackTrace;
+    }
+
+    /**
+     * Hash of the stack trace of a thread, computed from the content of its frames so it can be
+     * compared between snapshots, whose frame Ids differ. Hashes of all the threads are computed
+     * together on first use.
+     *
+     * @param index index of the thread.
+     * @return 64 bit hash of the stack trace.
+     */
+    public long getStackHash(int index) {
+        long[] hashes = stackHashes;
+        if (hashes == null) {
+            hashes = computeStackHashes();
+            stackHashes = hashes;
+        }
+        return hashes[index];
+    }
+
+    private long[] computeStackHashes() {
+        long[] frameHashes = new long[frameClassNames.length];
+        for (int frameId = 0; frameId < frameHashes.length; frameId++) {
+            long hash = strings[frameClassNames[frameId]].hashCode();
+            hash = hash * 0x100000001B3L + strings[frameMethodNames[frameId]].hashCode();
+            hash = hash * 0x100000001B3L + frameLineNumbers[frameId];
+            frameHashes[frameId] = hash * 0x9E3779B97F4A7C15L;
+        }
+        long[] hashes = new long[size];
+        for (int i = 0; i < size; i++) {
+            long hash = 0xCBF29CE484222325L;
+            for (int frame = stackOffsets[i]; frame < stackOffsets[i + 1]; frame++) {
+                hash = (hash ^ frameHashes[stackFrames[frame]]) * 0x100000001B3L;
+                hash ^= hash >>> 29;
+            }
+            hashes[i] = hash;
+        }
+        return hashes;
+    }
+
+    /**
+     * @return number of distinct frames in the frame pool.
+     */
+    public int getFrameCount() {
+        return frameClassNames.length;
+    }
+
+    public String getFrameClassName(int frameId) {
+        return strings[frameClassNames[frameId]];
+    }
+
+    public String getFrameMethodName(int frameId) {
+        return strings[frameMethodNames[frameId]];
+    }
+
+    public String getFrameFileName(int frameId) {
+        int fileName = frameFileNames[frameId];
+        return fileName < 0 ? null : strings[fileName];
+    }
+
+    public int getFrameLineNumber(int frameId) {
+        return frameLineNumbers[frameId];
+    }
+
+    public StackTraceElement getFrame(int frameId) {
+        return new StackTraceElement(getFrameClassName(frameId), getFrameMethodName(frameId),
+                                     getFrameFileName(frameId), getFrameLineNumber(frameId));
+    }
+
+    //##############################################################################################
+
+    /**
+     * @return number of distinct locks in the lock table.
+     */
+    public int getLockCount() {
+        return lockClassNames.length;
+    }
+
+    public String getLockClassName(int lockId) {
+        return strings[lockClassNames[lockId]];
+    }
+
+    public int getLockIdentityHashCode(int lockId) {
+        return lockIdentities[lockId];
+    }
+
+    /**
+     * @param lockId Id of the lock in the lock table.
+     * @return lock name in the same form as <code>LockInfo.toString()</code>.
+     */
+    public String getLockName(int lockId) {
+        return getLockClassName(lockId) + '@' + Integer.toHexString(lockIdentities[lockId]);
+    }
+
+    public int getLockedMonitorCount(int index) {
+        return monitorOffsets[index + 1] - monitorOffsets[index];
+    }
+
+    /**
+     * @param index   index of the thread.
+     * @param monitor index of the monitor among the monitors locked by the thread.
+     * @return Id of the monitor in the lock table.
+     */
+    public int getLockedMonitorId(int index, int monitor) {
+        return monitorLocks[monitorOffsets[index] + monitor];
+    }
+
+    /**
+     * @param index   index of the thread.
+     * @param monitor index of the monitor among the monitors locked by the thread.
+     * @return depth of the frame where the monitor was locked or <code>-1</code> if unknown.
+     */
+    public int getLockedMonitorDepth(int index, int monitor) {
+        return monitorDepths[monitorOffsets[index] + monitor];
+    }
+
+    public int getLockedSynchronizerCount(int index) {
+        return synchronizerOffsets[index + 1] - synchronizerOffsets[index];
+    }
+
+    /**
+     * @param index        index of the thread.
+     * @param synchronizer index of the synchronizer among the ones locked by the thread.
+     * @return Id of the synchronizer in the lock table.
+     */
+    public int getLockedSynchronizerId(int index, int synchronizer) {
+        return synchronizerLocks[synchronizerOffsets[index] + synchronizer];
+    }
+
+    //##############################################################################################
+
+    /**
+     * @param index index of the thread.
+     * @return index of the thread name in the string table.
+     */
+    int getThreadNameIndex(int index) {
+        return threadNames[index];
+    }
+
+    /**
+     * @return number of distinct strings in the string table.
+     */
+    int getStringCount() {
+        return strings.length;
+    }
+
+    String getString(int stringIndex) {
+        return strings[stringIndex];
+    }
+
+    byte getFlags(int index) {
+        return flags[index];
+    }
+
+    int getFrameClassNameIndex(int frameId) {
+        return frameClassNames[frameId];
+    }
+
+    int getFrameMethodNameIndex(int frameId) {
+        return frameMethodNames[frameId];
+    }
+
+    /**
+     * @param frameId Id of the frame in the frame pool.
+     * @return index of the file name in the string table or <code>-1</code> if unknown.
+     */
+    int getFrameFileNameIndex(int frameId) {
+        return frameFileNames[frameId];
+    }
+
+    int getLockClassNameIndex(int lockId) {
+        return lockClassNames[lockId];
+    }
+
+    /**
+     * @return names of all the threads, in snapshot order.
+     */
+    public String[] getThreadNames() {
+        String[] names = new String[size];
+        for (int i = 0; i < size; i++) {
+            names[i] = strings[threadNames[i]];
+        }
+        return names;
+    }
+
+    /**
+     * @return number of threads in each state, indexed by <code>Thread.State.ordinal()</code>.
+     */
+    public int[] getStateCounts() {
+        int[] counts = new int[STATES.length];
+        for (int i = 0; i < size; i++) {
+            counts[threadStates[i]]++;
+        }
+        return counts;
+    }
+
+    /**
+     * @param threadState thread state.
+     * @return Ids of the threads which are in the given state.
+     */
+    public long[] getThreadIds(Thread.State threadState) {
+        long[] ids = new long[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (threadStates[i] == threadState.ordinal()) {
+                ids[count++] = threadIds[i];
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Find threads which are waiting for each other in a cycle, as found by a
+     * {@link LockGraph} of this snapshot. Like <code>ThreadMXBean.findDeadlockedThreads()</code>,
+     * this covers both object monitors and ownable synchronizers, but needs no remote call.
+     *
+     * @return Ids of the deadlocked threads or <code>null</code> if there is no deadlock.
+     */
+    public long[] findDeadlockedThreads() {
+        return new LockGraph(this).getDeadlockedThreadIds();
+    }
+}
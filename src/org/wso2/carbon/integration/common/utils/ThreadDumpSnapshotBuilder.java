@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.lang.management.LockInfo;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Accumulates threads into the parallel arrays of a {@link ThreadDumpSnapshot}. Threads are added
+ * one at a time with {@link #beginThread}; frames, locked monitors and locked synchronizers added
+ * afterwards belong to the last thread begun. Strings, stack frames and locks are interned while
+ * they are added, so each distinct value is stored once per snapshot.
+ */
+class ThreadDumpSnapshotBuilder {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final long timestamp;
+
+    private int size;
+    private long[] threadIds = new long[INITIAL_CAPACITY];
+    private int[] threadNames = new int[INITIAL_CAPACITY];
+    private byte[] threadStates = new byte[INITIAL_CAPACITY];
+    private byte[] flags = new byte[INITIAL_CAPACITY];
+    private long[] cpuTimes = new long[INITIAL_CAPACITY];
+    private long[] blockedCounts = new long[INITIAL_CAPACITY];
+    private long[] blockedTimes = new long[INITIAL_CAPACITY];
+    private long[] waitedCounts = new long[INITIAL_CAPACITY];
+    private long[] waitedTimes = new long[INITIAL_CAPACITY];
+    private int[] lockIds = new int[INITIAL_CAPACITY];
+    private long[] lockOwnerIds = new long[INITIAL_CAPACITY];
+    private int[] stackOffsets = new int[INITIAL_CAPACITY + 1];
+    private int[] monitorOffsets = new int[INITIAL_CAPACITY + 1];
+    private int[] synchronizerOffsets = new int[INITIAL_CAPACITY + 1];
+
+    private int stackFrameCount;
+    private int[] stackFrames = new int[INITIAL_CAPACITY * 8];
+
+    private int monitorCount;
+    private int[] monitorLocks = new int[INITIAL_CAPACITY];
+    private int[] monitorDepths = new int[INITIAL_CAPACITY];
+
+    private int synchronizerCount;
+    private int[] synchronizerLocks = new int[INITIAL_CAPACITY];
+
+    private final Map<String, Integer> stringIndex = new HashMap<String, Integer>();
+    private String[] strings = new String[INITIAL_CAPACITY];
+    private int stringCount;
+
+    private final Map<StackTraceElement, Integer> frameIndex = new HashMap<StackTraceElement, Integer>();
+    private int frameCount;
+    private int[] frameClassNames = new int[INITIAL_CAPACITY];
+    private int[] frameMethodNames = new int[INITIAL_CAPACITY];
+    private int[] frameFileNames = new int[INITIAL_CAPACITY];
+    private int[] frameLineNumbers = new int[INITIAL_CAPACITY];
+
+    private final LongIntHashMap lockIndex = new LongIntHashMap(INITIAL_CAPACITY);
+    private int lockCount;
+    private int[] lockClassNames = new int[INITIAL_CAPACITY];
+    private int[] lockIdentities = new int[INITIAL_CAPACITY];
+
+    ThreadDumpSnapshotBuilder(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Add every thread of a thread dump taken through ThreadMXBean. <code>null</code> entries,
+     * left by threads which died while the dump was taken, are skipped.
+     *
+     * @param threadInfos Array of ThreadInfo objects.
+     * @param threadCpuTimes CPU time of each thread in nanoseconds, in the same order as
+     *                       <code>threadInfos</code>, or <code>null</code> if not captured.
+     */
+    void addThreadInfo(ThreadInfo[] threadInfos, long[] threadCpuTimes) {
+        for (int i = 0; i < threadInfos.length; i++) {
+            if (threadInfos[i] != null) {
+                addThreadInfo(threadInfos[i], threadCpuTimes == null ? -1 : threadCpuTimes[i]);
+            }
+        }
+    }
+
+    void addThreadInfo(ThreadInfo threadInfo, long cpuTime) {
+        beginThread(threadInfo.getThreadId(), threadInfo.getThreadName(),
+                    threadInfo.getThreadState());
+        setInNative(threadInfo.isInNative());
+        setSuspended(threadInfo.isSuspended());
+        setCpuTime(cpuTime);
+        setBlocked(threadInfo.getBlockedCount(), threadInfo.getBlockedTime());
+        setWaited(threadInfo.getWaitedCount(), threadInfo.getWaitedTime());
+
+        LockInfo lockInfo = threadInfo.getLockInfo();
+        if (lockInfo != null) {
+            setLock(lockInfo.getClassName(), lockInfo.getIdentityHashCode(),
+                    threadInfo.getLockOwnerId());
+        }
+        for (StackTraceElement stackTraceElement : threadInfo.getStackTrace()) {
+            addFrame(stackTraceElement);
+        }
+        MonitorInfo[] lockedMonitors = threadInfo.getLockedMonitors();
+        if (lockedMonitors != null) {
+            for (MonitorInfo monitorInfo : lockedMonitors) {
+                addLockedMonitor(monitorInfo.getClassName(), monitorInfo.getIdentityHashCode(),
+                                 monitorInfo.getLockedStackDepth());
+            }
+        }
+        LockInfo[] lockedSynchronizers = threadInfo.getLockedSynchronizers();
+        if (lockedSynchronizers != null) {
+            for (LockInfo synchronizer : lockedSynchronizers) {
+                addLockedSynchronizer(synchronizer.getClassName(),
+                                      synchronizer.getIdentityHashCode());
+            }
+        }
+    }
+
+    /**
+     * Start a new thread. Everything added until the next call belongs to this thread.
+     *
+     * @param threadId    thread Id.
+     * @param threadName  thread name.
+     * @param threadState thread state.
+     * @return index of the thread in the snapshot.
+     */
+    int beginThread(long threadId, String threadName, Thread.State threadState) {
+        if (size == threadIds.length) {
+            growThreads();
+        }
+        int index = size++;
+        threadIds[index] = threadId;
+        threadNames[index] = intern(threadName);
+        threadStates[index] = (byte) threadState.ordinal();
+        flags[index] = 0;
+        cpuTimes[index] = -1;
+        blockedCounts[index] = -1;
+        blockedTimes[index] = -1;
+        waitedCounts[index] = -1;
+        waitedTimes[index] = -1;
+        lockIds[index] = -1;
+        lockOwnerIds[index] = -1;
+        stackOffsets[size] = stackFrameCount;
+        monitorOffsets[size] = monitorCount;
+        synchronizerOffsets[size] = synchronizerCount;
+        return index;
+    }
+
+    void setInNative(boolean inNative) {
+        setFlag(ThreadDumpSnapshot.IN_NATIVE, inNative);
+    }
+
+    void setSuspended(boolean suspended) {
+        setFlag(ThreadDumpSnapshot.SUSPENDED, suspended);
+    }
+
+    void setVirtual(boolean virtual) {
+        setFlag(ThreadDumpSnapshot.VIRTUAL, virtual);
+    }
+
+    void setCpuTime(long cpuTime) {
+        cpuTimes[current()] = cpuTime;
+    }
+
+    void setBlocked(long blockedCount, long blockedTime) {
+        int index = current();
+        blockedCounts[index] = blockedCount;
+        blockedTimes[index] = blockedTime;
+    }
+
+    void setWaited(long waitedCount, long waitedTime) {
+        int index = current();
+        waitedCounts[index] = waitedCount;
+        waitedTimes[index] = waitedTime;
+    }
+
+    /**
+     * Set the lock the current thread is blocked on or waiting for.
+     *
+     * @param className        class name of the lock object.
+     * @param identityHashCode identity hash code of the lock object.
+     * @param ownerId          Id of the thread owning the lock or <code>-1</code>.
+     */
+    void setLock(String className, int identityHashCode, long ownerId) {
+        int index = current();
+        lockIds[index] = internLock(className, identityHashCode);
+        lockOwnerIds[index] = ownerId;
+    }
+
+    /**
+     * Set the owner of the lock a thread waits for, once it is known. Text dumps list the
+     * owner of a lock after the threads waiting for it.
+     *
+     * @param index   index of the thread.
+     * @param ownerId Id of the thread owning the lock.
+     */
+    void setLockOwnerId(int index, long ownerId) {
+        lockOwnerIds[index] = ownerId;
+    }
+
+    void addFrame(StackTraceElement stackTraceElement) {
+        current();
+        Integer frameId = frameIndex.get(stackTraceElement);
+        if (frameId == null) {
+            frameId = frameCount;
+            if (frameCount == frameClassNames.length) {
+                int capacity = frameCount << 1;
+                frameClassNames = Arrays.copyOf(frameClassNames, capacity);
+                frameMethodNames = Arrays.copyOf(frameMethodNames, capacity);
+                frameFileNames = Arrays.copyOf(frameFileNames, capacity);
+                frameLineNumbers = Arrays.copyOf(frameLineNumbers, capacity);
+            }
+            frameClassNames[frameCount] = intern(stackTraceElement.getClassName());
+            frameMethodNames[frameCount] = intern(stackTraceElement.getMethodName());
+            frameFileNames[frameCount] = intern(stackTraceElement.getFileName());
+            frameLineNumbers[frameCount] = stackTraceElement.getLineNumber();
+            frameCount++;
+            frameIndex.put(stackTraceElement, frameId);
+        }
+        if (stackFrameCount == stackFrames.length) {
+            stackFrames = Arrays.copyOf(stackFrames, stackFrameCount << 1);
+        }
+        stackFrames[stackFrameCount++] = frameId;
+        stackOffsets[size] = stackFrameCount;
+    }
+
+    void addLockedMonitor(String className, int identityHashCode, int stackDepth) {
+        current();
+        if (monitorCount == monitorLocks.length) {
+            monitorLocks = Arrays.copyOf(monitorLocks, monitorCount << 1);
+            monitorDepths = Arrays.copyOf(monitorDepths, monitorCount << 1);
+        }
+        monitorLocks[monitorCount] = internLock(className, identityHashCode);
+        monitorDepths[monitorCount] = stackDepth;
+        monitorCount++;
+        monitorOffsets[size] = monitorCount;
+    }
+
+    void addLockedSynchronizer(String className, int identityHashCode) {
+        current();
+        if (synchronizerCount == synchronizerLocks.length) {
+            synchronizerLocks = Arrays.copyOf(synchronizerLocks, synchronizerCount << 1);
+        }
+        synchronizerLocks[synchronizerCount++] = internLock(className, identityHashCode);
+        synchronizerOffsets[size] = synchronizerCount;
+    }
+
+    /**
+     * @return number of threads added so far.
+     */
+    int size() {
+        return size;
+    }
+
+    ThreadDumpSnapshot build() {
+        return new ThreadDumpSnapshot(
+                timestamp, size,
+                Arrays.copyOf(threadIds, size), Arrays.copyOf(threadNames, size),
+                Arrays.copyOf(threadStates, size), Arrays.copyOf(flags, size),
+                Arrays.copyOf(cpuTimes, size),
+                Arrays.copyOf(blockedCounts, size), Arrays.copyOf(blockedTimes, size),
+                Arrays.copyOf(waitedCounts, size), Arrays.copyOf(waitedTimes, size),
+                Arrays.copyOf(lockIds, size), Arrays.copyOf(lockOwnerIds, size),
+                Arrays.copyOf(stackOffsets, size + 1), Arrays.copyOf(stackFrames, stackFrameCount),
+                Arrays.copyOf(monitorOffsets, size + 1), Arrays.copyOf(monitorLocks, monitorCount),
+                Arrays.copyOf(monitorDepths, monitorCount),
+                Arrays.copyOf(synchronizerOffsets, size + 1),
+                Arrays.copyOf(synchronizerLocks, synchronizerCount),
+                Arrays.copyOf(strings, stringCount),
+                Arrays.copyOf(frameClassNames, frameCount), Arrays.copyOf(frameMethodNames, frameCount),
+                Arrays.copyOf(frameFileNames, frameCount), Arrays.copyOf(frameLineNumbers, frameCount),
+                Arrays.copyOf(lockClassNames, lockCount), Arrays.copyOf(lockIdentities, lockCount));
+    }
+
+    private int current() {
+        if (size == 0) {
+            throw new IllegalStateException("No thread has been started");
+        }
+        return size - 1;
+    }
+
+    private void setFlag(byte flag, boolean value) {
+        int index = current();
+        if (value) {
+            flags[index] |= flag;
+        } else {
+            flags[index] &= ~flag;
+        }
+    }
+
+    private int intern(String value) {
+        if (value == null) {
+            return -1;
+        }
+        Integer index = stringIndex.get(value);
+        if (index == null) {
+            index = stringCount;
+            if (stringCount == strings.length) {
+                strings = Arrays.copyOf(strings, stringCount << 1);
+            }
+            strings[stringCount++] = value;
+            stringIndex.put(value, index);
+        }
+        return index;
+    }
+
+    private int internLock(String className, int identityHashCode) {
+        int classNameIndex = intern(className);
+        long key = ((long) classNameIndex << 32) | (identityHashCode & 0xFFFFFFFFL);
+        int lockId = lockIndex.get(key);
+        if (lockId < 0) {
+            lockId = lockCount;
+            if (lockCount == lockClassNames.length) {
+                lockClassNames = Arrays.copyOf(lockClassNames, lockCount << 1);
+                lockIdentities = Arrays.copyOf(lockIdentities, lockCount << 1);
+            }
+            lockClassNames[lockCount] = classNameIndex;
+            lockIdentities[lockCount] = identityHashCode;
+            lockCount++;
+            lockIndex.put(key, lockId);
+        }
+        return lockId;
+    }
+
+    private void growThreads() {
+        int capacity = threadIds.length << 1;
+        threadIds = Arrays.copyOf(threadIds, capacity);
+        threadNames = Arrays.copyOf(threadNames, capacity);
+        threadStates = Arrays.copyOf(threadStates, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        cpuTimes = Arrays.copyOf(cpuTimes, capacity);
+        blockedCounts = Arrays.copyOf(blockedCounts, capacity);
+        blockedTimes = Arrays.copyOf(blockedTimes, capacity);
+        waitedCounts = Arrays.copyOf(waitedCounts, capacity);
+        waitedTimes = Arrays.copyOf(waitedTimes, capacity);
+        lockIds = Arrays.copyOf(lockIds, capacity);
+        lockOwnerIds = Arrays.copyOf(lockOwnerIds, capacity);
+        stackOffsets = Arrays.copyOf(stackOffsets, capacity + 1);
+        monitorOffsets = Arrays.copyOf(monitorOffsets, capacity + 1);
+        synchronizerOffsets = Arrays.copyOf(synchronizerOffsets, capacity + 1);
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes thread dump files into a directory so that a reader never sees a partial dump and a
+ * long running sampler can not fill the disk.
+ * <p/>
+ * Each dump is written to a temporary file in the same directory and then atomically renamed
+ * to its final name, <code>threadDump-&lt;UTC time&gt;-&lt;target&gt;-&lt;sequence&gt;.txt</code>.
+ * The time has a fixed width and comes first, so names sort in the order the dumps were taken.
+ * The target is the process Id, or another Id such as a connector address, of the VM the dump
+ * was taken from, as given to <code>store</code>, so dumps of many VMs written into one directory
+ * can be told apart; it is the process Id of this VM when no target is given. A per process
+ * sequence number, padded to the width of a <code>long</code> so it never outgrows its digits,
+ * keeps names unique even for dumps taken in the same millisecond. The file, and the directory
+ * entry after the rename, can optionally be forced to disk.
+ * <p/>
+ * Temporary files left in the directory by a writer which crashed are deleted when the store is
+ * created, once they have not been modified for <code>STALE_TEMP_MILLIS</code>, so a dump which
+ * another process is still writing is not touched.
+ * <p/>
+ * When a maximum number of files or bytes is set, the oldest dumps in the directory are deleted
+ * after each write until the directory is within both limits again. The newest dump is always
+ * kept, even if it is larger than the byte limit on its own.
+ */
+public class ThreadDumpStore {
+
+    private static final String PREFIX = "threadDump-";
+    private static final String SUFFIX = ".txt";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String PID = getProcessId();
+    private static final int MAX_TARGET_LENGTH = 64;
+    private static final long STALE_TEMP_MILLIS = 10 * 60 * 1000;
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final Path directory;
+    private final int maxFiles;
+    private final long maxBytes;
+    private final boolean sync;
+    private final CaptureInstrumentation instrumentation;
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss.SSS'Z'");
+
+    private Deque<StoredFile> storedFiles;
+    private long storedBytes;
+
+    /**
+     * Content of one dump file.
+     */
+    public interface Content {
+
+        void writeTo(ThreadDumpWriter threadDumpWriter) throws IOException;
+    }
+
+    /**
+     * Store dumps without retention limits and without forcing them to disk.
+     *
+     * @param path directory the dumps are written to.
+     */
+    public ThreadDumpStore(String path) {
+        this(path, 0, 0, false);
+    }
+
+    /**
+     * @param path     directory the dumps are written to.
+     * @param maxFiles maximum number of dumps kept in the directory, or <code>0</code> for no
+     *                 limit.
+     * @param maxBytes maximum total size of the dumps kept in the directory, or <code>0</code>
+     *                 for no limit.
+     * @param sync     <code>true</code> to force each dump to disk before it is renamed.
+     */
+    public ThreadDumpStore(String path, int maxFiles, long maxBytes, boolean sync) {
+        this(path, maxFiles, maxBytes, sync, CaptureInstrumentation.getDefault());
+    }
+
+    /**
+     * @param path            directory the dumps are written to.
+     * @param maxFiles        maximum number of dumps kept in the directory, or <code>0</code>
+     *                        for no limit.
+     * @param maxBytes        maximum total size of the dumps kept in the directory, or
+     *                        <code>0</code> for no limit.
+     * @param sync            <code>true</code> to force each dump to disk before it is renamed.
+     * @param instrumentation records the time taken to render and write each dump, and its size.
+     */
+    public ThreadDumpStore(String path, int maxFiles, long maxBytes, boolean sync,
+                           CaptureInstrumentation instrumentation) {
+        if (maxFiles < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Retention limits can not be negative");
+        }
+        this.directory = new File(path).toPath();
+        this.maxFiles = maxFiles;
+        this.maxBytes = maxBytes;
+        this.sync = sync;
+        this.instrumentation = instrumentation;
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        deleteStaleTemporaryFiles();
+    }
+
+    public File store(ThreadInfo[] allThreadInfo) throws IOException {
+        return store(null, allThreadInfo);
+    }
+
+    /**
+     * @param targetId      process Id or other Id of the VM the threads belong to, or
+     *                      <code>null</code> for this VM.
+     * @param allThreadInfo Array of ThreadInfo objects.
+     * @return the dump file.
+     * @throws IOException if the file can not be written.
+     */
+    public File store(String targetId, final ThreadInfo[] allThreadInfo) throws IOException {
+        return store(targetId, System.currentTimeMillis(), new Content() {
+            public void writeTo(ThreadDumpWriter threadDumpWriter) throws IOException {
+                threadDumpWriter.write(allThreadInfo);
+            }
+        });
+    }
+
+    public File store(ThreadDumpSnapshot snapshot) throws IOException {
+        return store(null, snapshot);
+    }
+
+    /**
+     * @param targetId process Id or other Id of the VM the snapshot was taken from, or
+     *                 <code>null</code> for this VM.
+     * @param snapshot thread dump snapshot.
+     * @return the dump file.
+     * @throws IOException if the file can not be written.
+     */
+    public File store(String targetId, final ThreadDumpSnapshot snapshot) throws IOException {
+        return store(targetId, snapshot.getTimestamp(), new Content() {
+            public void writeTo(ThreadDumpWriter threadDumpWriter) throws IOException {
+                threadDumpWriter.write(snapshot);
+            }
+        });
+    }
+
+    public File store(List<StackGroup> stackGroups) throws IOException {
+        return store(null, stackGroups);
+    }
+
+    /**
+     * @param targetId    process Id or other Id of the VM the threads belong to, or
+     *                    <code>null</code> for this VM.
+     * @param stackGroups threads grouped by state and stack trace.
+     * @return the dump file.
+     * @throws IOException if the file can not be written.
+     */
+    public File store(String targetId, final List<StackGroup> stackGroups) throws IOException {
+        return store(targetId, System.currentTimeMillis(), new Content() {
+            public void writeTo(ThreadDumpWriter threadDumpWriter) throws IOException {
+                threadDumpWriter.write(stackGroups);
+            }
+        });
+    }
+
+    /**
+     * Write a dump of this VM, or of a VM which is not known, and apply the retention limits.
+     *
+     * @param timestamp time the dump was taken, used in the file name.
+     * @param content   content of the file.
+     * @return the dump file.
+     * @throws IOException if the file can not be written or renamed, in which case no partial
+     *                     file is left behind.
+     */
+    public File store(long timestamp, Content content) throws IOException {
+        return store(null, timestamp, content);
+    }
+
+    /**
+     * Write a dump file and apply the retention limits.
+     *
+     * @param targetId  process Id or other Id of the VM the dump was taken from, used in the
+     *                  file name with characters other than letters, digits, '.' and '_'
+     *                  replaced, or <code>null</code> for this VM.
+     * @param timestamp time the dump was taken, used in the file name.
+     * @param content   content of the file.
+     * @return the dump file.
+     * @throws IOException if the file can not be written or renamed, in which case no partial
+     *                     file is left behind.
+     */
+    public File store(String targetId, long timestamp, Content content) throws IOException {
+        Files.createDirectories(directory);
+        Path target = directory.resolve(nextFileName(targetId == null ? PID : toFileNamePart(targetId),
+                                                     timestamp));
+        Path temporary = Files.createTempFile(directory, PREFIX, TEMP_SUFFIX);
+        long startNanos = System.nanoTime();
+        long bytesWritten;
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING);
+                 ThreadDumpWriter threadDumpWriter = new ThreadDumpWriter(channel)) {
+                content.writeTo(threadDumpWriter);
+                threadDumpWriter.flush();
+                if (sync) {
+                    channel.force(true);
+                }
+                bytesWritten = threadDumpWriter.getBytesWritten();
+            }
+            Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        } catch (RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+        if (sync) {
+            syncDirectory();
+        }
+        instrumentation.recordWrite(startNanos, bytesWritten);
+        if (maxFiles > 0 || maxBytes > 0) {
+            retain(target);
+        }
+        return target.toFile();
+    }
+
+    /**
+     * @return dump files in the directory, oldest first.
+     * @throws IOException if the directory can not be listed.
+     */
+    public List<File> list() throws IOException {
+        List<File> files = new ArrayList<File>();
+        for (Path file : listDumps()) {
+            files.add(file.toFile());
+        }
+        return files;
+    }
+
+    private synchronized String nextFileName(String target, long timestamp) {
+        return PREFIX + dateFormat.format(new Date(timestamp)) + '-' + target + '-' +
+               String.format("%019d", SEQUENCE.incrementAndGet()) + SUFFIX;
+    }
+
+    private synchronized void retain(Path newest) throws IOException {
+        if (storedFiles == null) {
+            // dumps left by earlier runs count against the limits too
+            storedFiles = new ArrayDeque<StoredFile>();
+            for (Path file : listDumps()) {
+                if (!file.equals(newest)) {
+                    add(file);
+                }
+            }
+        }
+        add(newest);
+
+        while (storedFiles.size() > 1 &&
+               ((maxFiles > 0 && storedFiles.size() > maxFiles) ||
+                (maxBytes > 0 && storedBytes > maxBytes))) {
+            StoredFile oldest = storedFiles.removeFirst();
+            storedBytes -= oldest.size;
+            Files.deleteIfExists(oldest.path);
+        }
+    }
+
+    private void add(Path file) throws IOException {
+        long size = Files.size(file);
+        storedFiles.addLast(new StoredFile(file, size));
+        storedBytes += size;
+    }
+
+    private List<Path> listDumps() throws IOException {
+        List<Path> files = new ArrayList<Path>();
+        if (!Files.isDirectory(directory)) {
+            return files;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : stream) {
+                files.add(file);
+            }
+        }
+        Collections.sort(files);
+        return files;
+    }
+
+    private void deleteStaleTemporaryFiles() {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        long staleBefore = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+        try (DirectoryStream<Path> stream =
+                     Files.newDirectoryStream(directory, PREFIX + "*" + TEMP_SUFFIX)) {
+            for (Path file : stream) {
+                try {
+                    if (Files.getLastModifiedTime(file).toMillis() < staleBefore) {
+                        Files.deleteIfExists(file);
+                    }
+                } catch (IOException ignored) {
+                    // removed by another store meanwhile, or not ours to delete
+                }
+            }
+        } catch (IOException ignored) {
+            // the files are only left over; writing new dumps does not depend on them
+        }
+    }
+
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+            // not every platform can open a directory; the file itself is already on disk
+        }
+    }
+
+    /**
+     * Keep a target Id safe in a file name on every platform. '-' separates the parts of the
+     * name, so it is replaced too.
+     */
+    private static String toFileNamePart(String targetId) {
+        StringBuilder part = new StringBuilder(Math.min(targetId.length(), MAX_TARGET_LENGTH));
+        for (int i = 0; i < targetId.length() && part.length() < MAX_TARGET_LENGTH; i++) {
+            char c = targetId.charAt(i);
+            part.append((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                        c == '.' || c == '_' ? c : '_');
+        }
+        return part.length() == 0 ? "_" : part.toString();
+    }
+
+    private static String getProcessId() {
+        String name = ManagementFactory.getRuntimeMXBean().getName();
+        int separator = name.indexOf('@');
+        return separator > 0 ? name.substring(0, separator) : name;
+    }
+
+    private static final class StoredFile {
+
+        private final Path path;
+        private final long size;
+
+        StoredFile(Path path, long size) {
+            this.path = path;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,657 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.LockInfo;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Streams thread dumps to a byte channel as UTF-8 text, one thread at a time, without building
+ * the dump as a String first. Constant fragments are encoded once, names and frames are encoded
+ * straight into a fixed size buffer and numbers are written digit by digit, so rendering a
+ * thread allocates nothing beyond what the ThreadInfo itself already holds.
+ * <p/>
+ * Each thread is written as
+ * <pre>
+ * Thread name:"pool-1-thread-1" Id=12
+ * 	java.lang.Thread.State: BLOCKED
+ * 		at org.example.Worker.run(Worker.java:42)
+ * 		- blocked on java.lang.Object@1b6d3586 owned by "pool-1-thread-2" Id=13
+ * 		at java.lang.Thread.run(Thread.java:745)
+ * 		- locked java.lang.Object@4554617c
+ * 		- locked java.lang.Class@7a81197d
+ * 	Locked ownable synchronizers:
+ * 		- java.util.concurrent.locks.ReentrantLock$NonfairSync@74a14482
+ * </pre>
+ * followed by two empty lines. Monitors locked where no frame is known, such as those locked
+ * through JNI, are listed after the stack. Instances are not thread safe.
+ */
+public class ThreadDumpWriter implements Closeable, Flushable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] THREAD_NAME = encode("Thread name:\"");
+    private static final byte[] THREAD_ID = encode("\" Id=");
+    private static final byte[] IN_NATIVE = encode(" (in native)");
+    private static final byte[] SUSPENDED = encode(" (suspended)");
+    private static final byte[] VIRTUAL = encode(" (virtual)");
+    private static final byte[] THREAD_STATE = encode("\n\tjava.lang.Thread.State: ");
+    private static final byte[] AT = encode("\n\t\tat ");
+    private static final byte[] BLOCKED_ON = encode("\n\t\t- blocked on ");
+    private static final byte[] WAITING_ON = encode("\n\t\t- waiting on ");
+    private static final byte[] OWNED_BY = encode(" owned by \"");
+    private static final byte[] OWNER_ID = encode("\" Id=");
+    private static final byte[] LOCKED = encode("\n\t\t- locked ");
+    private static final byte[] LOCKED_SYNCHRONIZERS = encode("\n\tLocked ownable synchronizers:");
+    private static final byte[] SYNCHRONIZER = encode("\n\t\t- ");
+    private static final byte[] NATIVE_METHOD = encode("(Native Method)");
+    private static final byte[] UNKNOWN_SOURCE = encode("(Unknown Source)");
+    private static final byte[] THREAD_END = encode("\n\n\n");
+    private static final byte[] GROUP_SIZE = encode(" threads share this stack:");
+    private static final byte[] GROUP_MEMBER = encode("\n\t- \"");
+    private static final byte[] HELD_BY = encode(" held by \"");
+    private static final byte[] WAITER_COUNT = encode(", waiters: ");
+    private static final byte[] WAITS_FOR = encode(" waits for \"");
+    private static final byte[] DEADLOCK = encode("Deadlock:");
+    private static final byte[] REPORT_END = encode("\n\n");
+    private static final byte[] CPU_PERCENT = encode("% cpu ");
+    private static final byte[] USER_PERCENT = encode("% user) ");
+    private static final byte[] KB_PER_SECOND = encode(" KB/s \"");
+    private static final byte[] SECTION_START = encode("\n\n#");
+    private static final byte[] SECTION_END = encode("\n\n");
+
+    private static final byte[] HEX_DIGITS = encode("0123456789abcdef");
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final byte[] digits = new byte[20];
+    private long bytesWritten;
+
+    /**
+     * @param channel channel the dump is written to. It is closed when this writer is closed.
+     */
+    public ThreadDumpWriter(WritableByteChannel channel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * @param outputStream stream the dump is written to. It is closed when this writer is closed.
+     */
+    public ThreadDumpWriter(OutputStream outputStream) {
+        this(Channels.newChannel(outputStream));
+    }
+
+    /**
+     * Write all the threads of a thread dump. <code>null</code> entries are skipped.
+     *
+     * @param allThreadInfo Array of ThreadInfo objects.
+     * @throws IOException if writing to the channel fails.
+     */
+    public void write(ThreadInfo[] allThreadInfo) throws IOException {
+        for (ThreadInfo threadInfo : allThreadInfo) {
+            if (threadInfo != null) {
+                write(threadInfo);
+            }
+        }
+    }
+
+    /**
+     * Write one thread, with the lock it is blocked on, the monitors it holds and the ownable
+     * synchronizers it holds.
+     *
+     * @param threadInfo ThreadInfo object.
+     * @throws IOException if writing to the channel fails.
+     */
+    public void write(ThreadInfo threadInfo) throws IOException {
+        Thread.State state = threadInfo.getThreadState();
+        writeHeader(threadInfo.getThreadName(), threadInfo.getThreadId(),
+                    threadInfo.isInNative(), threadInfo.isSuspended(), false, state);
+
+        StackTraceElement[] stackTrace = threadInfo.getStackTrace();
+        MonitorInfo[] lockedMonitors = threadInfo.getLockedMonitors();
+        LockInfo lockInfo = threadInfo.getLockInfo();
+
+        for (int depth = 0; depth < stackTrace.length; depth++) {
+            StackTraceElement frame = stackTrace[depth];
+            writeFrame(frame.getClassName(), frame.getMethodName(), frame.getFileName(),
+                       frame.getLineNumber());
+            if (depth == 0 && lockInfo != null) {
+                writeBlockingLock(state, lockInfo.getClassName(), lockInfo.getIdentityHashCode(),
+                                  threadInfo.getLockOwnerName(), threadInfo.getLockOwnerId());
+            }
+            if (lockedMonitors != null) {
+                for (MonitorInfo monitorInfo : lockedMonitors) {
+                    if (monitorInfo.getLockedStackDepth() == depth) {
+                        put(LOCKED);
+                        writeLock(monitorInfo.getClassName(), monitorInfo.getIdentityHashCode());
+                    }
+                }
+            }
+        }
+        if (stackTrace.length == 0 && lockInfo != null) {
+            writeBlockingLock(state, lockInfo.getClassName(), lockInfo.getIdentityHashCode(),
+                              threadInfo.getLockOwnerName(), threadInfo.getLockOwnerId());
+        }
+        if (lockedMonitors != null) {
+            // monitors locked through JNI have no frame, and frames beyond a depth limit are
+            // not fetched, so those monitors follow the stack
+            for (MonitorInfo monitorInfo : lockedMonitors) {
+                int depth = monitorInfo.getLockedStackDepth();
+                if (depth < 0 || depth >= stackTrace.length) {
+                    put(LOCKED);
+                    writeLock(monitorInfo.getClassName(), monitorInfo.getIdentityHashCode());
+                }
+            }
+        }
+
+        LockInfo[] lockedSynchronizers = threadInfo.getLockedSynchronizers();
+        if (lockedSynchronizers != null && lockedSynchronizers.length > 0) {
+            put(LOCKED_SYNCHRONIZERS);
+            for (LockInfo synchronizer : lockedSynchronizers) {
+                put(SYNCHRONIZER);
+                writeLock(synchronizer.getClassName(), synchronizer.getIdentityHashCode());
+            }
+        }
+        put(THREAD_END);
+    }
+
+    /**
+     * Write all the threads of a snapshot.
+     *
+     * @param snapshot thread dump snapshot.
+     * @throws IOException if writing to the channel fails.
+     */
+    public void write(ThreadDumpSnapshot snapshot) throws IOException {
+        for (int i = 0; i < snapshot.size(); i++) {
+            write(snapshot, i);
+        }
+    }
+
+    /**
+     * Write one thread of a snapshot, in the same form as a ThreadInfo.
+     *
+     * @param snapshot thread dump snapshot.
+     * @param index    index of the thread in the snapshot.
+     * @throws IOException if writing to the channel fails.
+     */
+    public void write(ThreadDumpSnapshot snapshot, int index) throws IOException {
+        Thread.State state = snapshot.getThreadState(index);
+        writeHeader(snapshot.getThreadName(index), snapshot.getThreadId(index),
+                    snapshot.isInNative(index), snapshot.isSuspended(index),
+                    snapshot.isVirtual(index), state);
+
+        int stackDepth = snapshot.getStackDepth(index);
+        int lockId = snapshot.getLockId(index);
+        int monitorCount = snapshot.getLockedMonitorCount(index);
+
+        for (int depth = 0; depth < stackDepth; depth++) {
+            int frameId = snapshot.getFrameId(index, depth);
+            writeFrame(snapshot.getFrameClassName(frameId), snapshot.getFrameMethodName(frameId),
+                       snapshot.getFrameFileName(frameId), snapshot.getFrameLineNumber(frameId));
+            if (depth == 0 && lockId >= 0) {
+                writeBlockingLock(snapshot, index, state, lockId);
+            }
+            for (int monitor = 0; monitor < monitorCount; monitor++) {
+                if (snapshot.getLockedMonitorDepth(index, monitor) == depth) {
+                    int monitorId = snapshot.getLockedMonitorId(index, monitor);
+                    put(LOCKED);
+                    writeLock(snapshot.getLockClassName(monitorId),
+                              snapshot.getLockIdentityHashCode(monitorId));
+                }
+            }
+        }
+        if (stackDepth == 0 && lockId >= 0) {
+            writeBlockingLock(snapshot, index, state, lockId);
+        }
+        for (int monitor = 0; monitor < monitorCount; monitor++) {
+            int depth = snapshot.getLockedMonitorDepth(index, monitor);
+            if (depth < 0 || depth >= stackDepth) {
+                int monitorId = snapshot.getLockedMonitorId(index, monitor);
+                put(LOCKED);
+                writeLock(snapshot.getLockClassName(monitorId),
+                          snapshot.getLockIdentityHashCode(monitorId));
+            }
+        }
+
+        int synchronizerCount = snapshot.getLockedSynchronizerCount(index);
+        if (synchronizerCount > 0) {
+            put(LOCKED_SYNCHRONIZERS);
+            for (int synchronizer = 0; synchronizer < synchronizerCount; synchronizer++) {
+                int synchronizerId = snapshot.getLockedSynchronizerId(index, synchronizer);
+                put(SYNCHRONIZER);
+                writeLock(snapshot.getLockClassName(synchronizerId),
+                          snapshot.getLockIdentityHashCode(synchronizerId));
+            }
+        }
+        put(THREAD_END);
+    }
+
+    /**
+     * Write groups of threads sharing a stack, as found by {@link StackTraceGrouper}.
+     *
+     * @param stackGroups groups of threads.
+     * @throws IOException if writing to the channel fails.
+     */
+    public void write(List<StackGroup> stackGroups) throws IOException {
+        for (StackGroup stackGroup : stackGroups) {
+            write(stackGroup);
+        }
+    }
+
+    /**
+     * Write one stack once, preceded by the number and the names of the threads sharing it:
+     * <pre>
+     * 250 threads share this stack:
+     * 	- "PassThroughHTTPSSender-1" Id=52
+     * 	- "PassThroughHTTPSSender-2" Id=53
+     * 	java.lang.Thread.State: WAITING
+     * 		at sun.misc.Unsafe.park(Native Method)
+     * </pre>
+     *
+     * @param stackGroup group of threads.
+     * @throws IOException if writing to the channel fails.
+     */
+    public void write(StackGroup stackGroup) throws IOException {
+        long[] threadIds = stackGroup.getThreadIds();
+        List<String> threadNames = stackGroup.getThreadNames();
+
+        putLong(threadIds.length);
+        put(GROUP_SIZE);
+        for (int i = 0; i < threadIds.length; i++) {
+            put(GROUP_MEMBER);
+            putString(threadNames.get(i));
+            put(THREAD_ID);
+            putLong(threadIds[i]);
+        }
+        put(THREAD_STATE);
+        putString(stackGroup.getThreadState().name());
+        for (StackTraceElement frame : stackGroup.stackTrace()) {
+            writeFrame(frame.getClassName(), frame.getMethodName(), frame.getFileName(),
+                       frame.getLineNumber());
+        }
+        put(THREAD_END);
+    }
+
+    /**
+     * Write the deadlock cycles and the most contended locks of a lock graph, each lock with its
+     * holder and the threads waiting for it:
+     * <pre>
+     * Deadlock:
+     * 	- "worker-1" Id=21 waits for "worker-2" Id=22
+     * 	- "worker-2" Id=22 waits for "worker-1" Id=21
+     *
+     * java.lang.Object@1b6d3586 held by "pool-1-thread-2" Id=13, waiters: 2
+     * 	- "pool-1-thread-1" Id=12
+     * 	- "pool-1-thread-3" Id=14
+     * </pre>
+     *
+     * @param lockGraph lock graph of a snapshot.
+     * @param limit     maximum number of locks written.
+     * @throws IOException if writing to the channel fails.
+     */
+    public void writeContentionReport(LockGraph lockGraph, int limit) throws IOException {
+        ThreadDumpSnapshot snapshot = lockGraph.getSnapshot();
+        for (int[] cycle : lockGraph.getCycles()) {
+            put(DEADLOCK);
+            for (int index : cycle) {
+                put(GROUP_MEMBER);
+                putString(snapshot.getThreadName(index));
+                put(THREAD_ID);
+                putLong(snapshot.getThreadId(index));
+                int owner = lockGraph.getWaitsFor(index);
+                put(WAITS_FOR);
+                putString(snapshot.getThreadName(owner));
+                put(THREAD_ID);
+                putLong(snapshot.getThreadId(owner));
+            }
+            put(REPORT_END);
+        }
+        for (int lockId : lockGraph.getHottestLocks(limit)) {
+            writeLock(snapshot.getLockClassName(lockId), snapshot.getLockIdentityHashCode(lockId));
+            int owner = lockGraph.getLockOwner(lockId);
+            if (owner >= 0) {
+                put(HELD_BY);
+                putString(snapshot.getThreadName(owner));
+                put(THREAD_ID);
+                putLong(snapshot.getThreadId(owner));
+            }
+            put(WAITER_COUNT);
+            putLong(lockGraph.getWaiterCount(lockId));
+            for (int waiter : lockGraph.getWaiters(lockId)) {
+                put(GROUP_MEMBER);
+                putString(snapshot.getThreadName(waiter));
+                put(THREAD_ID);
+                putLong(snapshot.getThreadId(waiter));
+            }
+            put(REPORT_END);
+        }
+    }
+
+    /**
+     * Write a snapshot followed by what a single dump tells about its locks: a
+     * <code>Deadlocked Threads</code> section repeating the threads of each deadlock, and a
+     * <code>Lock Contention</code> section with the contention report, each written only when
+     * there is something to report.
+     *
+     * @param snapshot           thread dump snapshot.
+     * @param contendedLockLimit maximum number of locks in the contention report.
+     * @throws IOException if writing to the channel fails.
+     */
+    public void writeReport(ThreadDumpSnapshot snapshot, int contendedLockLimit) throws IOException {
+        write(snapshot);
+        LockGraph lockGraph = new LockGraph(snapshot);
+        if (lockGraph.getDeadlockedThreadIds() != null) {
+            writeSectionHeader("Deadlocked Threads");
+            for (int i = 0; i < snapshot.size(); i++) {
+                if (lockGraph.isDeadlocked(i)) {
+                    write(snapshot, i);
+                }
+            }
+        }
+        if (lockGraph.getHottestLocks(1).length > 0) {
+            writeSectionHeader("Lock Contention");
+            writeContentionReport(lockGraph, contendedLockLimit);
+        }
+    }
+
+    /**
+     * Write threads ranked by CPU, as found by {@link HotThreadSampler}, each with its share of
+     * a core, the user mode part of it when sampled, and its stack:
+     * <pre>
+     * 97.5% cpu (95.0% user) "worker-1" Id=21
+     * 	java.lang.Thread.State: RUNNABLE
+     * 		at java.util.HashMap.getNode(HashMap.java:571)
+     * </pre>
+     *
+     * @param hotThreads hottest threads.
+     * @throws IOException if writing to the channel fails.
+     */
+    public void writeHotThreads(List<HotThreadSampler.HotThread> hotThreads) throws IOException {
+        for (HotThreadSampler.HotThread hotThread : hotThreads) {
+            putPercent(hotThread.getCpuPercent());
+            put(CPU_PERCENT);
+            if (hotThread.getUserPercent() >= 0) {
+                putByte('(');
+                putPercent(hotThread.getUserPercent());
+                put(USER_PERCENT);
+            }
+            putByte('"');
+            putString(hotThread.getThreadName());
+            put(THREAD_ID);
+            putLong(hotThread.getThreadId());
+            put(THREAD_STATE);
+            putString(hotThread.getThreadState().name());
+            for (StackTraceElement frame : hotThread.getStackTrace()) {
+                writeFrame(frame.getClassName(), frame.getMethodName(), frame.getFileName(),
+                           frame.getLineNumber());
+            }
+            put(THREAD_END);
+        }
+    }
+
+    /**
+     * Write the top allocating threads of an {@link AllocationSampler} sample, each with its
+     * allocation rate and its stack:
+     * <pre>
+     * 204800 KB/s "worker-1" Id=21
+     * 	java.lang.Thread.State: RUNNABLE
+     * 		at java.util.Arrays.copyOf(Arrays.java:3332)
+     * </pre>
+     *
+     * @param allocationSample allocation rates of an interval.
+     * @throws IOException if writing to the channel fails.
+     */
+    public void writeTopAllocators(AllocationSampler.AllocationSample allocationSample)
+            throws IOException {
+        for (AllocationSampler.ThreadAllocation allocation : allocationSample.getTopThreads()) {
+            putLong(Math.round(allocation.getBytesPerSecond() / 1024));
+            put(KB_PER_SECOND);
+            putString(allocation.getThreadName());
+            put(THREAD_ID);
+            putLong(allocation.getThreadId());
+            put(THREAD_STATE);
+            putString(allocation.getThreadState().name());
+            for (StackTraceElement frame : allocation.getStackTrace()) {
+                writeFrame(frame.getClassName(), frame.getMethodName(), frame.getFileName(),
+                           frame.getLineNumber());
+            }
+            put(THREAD_END);
+        }
+    }
+
+    /**
+     * Write a section title, such as <code>Deadlocked Threads</code>, between groups of threads.
+     *
+     * @param title section title.
+     * @throws IOException if writing to the channel fails.
+     */
+    public void writeSectionHeader(String title) throws IOException {
+        put(SECTION_START);
+        putString(title);
+        put(SECTION_END);
+    }
+
+    /**
+     * @return number of bytes written so far, including bytes which are still buffered.
+     */
+    public long getBytesWritten() {
+        return bytesWritten + buffer.position();
+    }
+
+    public void flush() throws IOException {
+        ((Buffer) buffer).flip();
+        while (buffer.hasRemaining()) {
+            bytesWritten += channel.write(buffer);
+        }
+        ((Buffer) buffer).clear();
+    }
+
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    //##############################################################################################
+
+    private void writeHeader(String threadName, long threadId, boolean inNative,
+                             boolean suspended, boolean virtual, Thread.State state)
+            throws IOException {
+        put(THREAD_NAME);
+        putString(threadName);
+        put(THREAD_ID);
+        putLong(threadId);
+        if (inNative) {
+            put(IN_NATIVE);
+        }
+        if (suspended) {
+            put(SUSPENDED);
+        }
+        if (virtual) {
+            put(VIRTUAL);
+        }
+        put(THREAD_STATE);
+        putString(state.name());
+    }
+
+    private void writeFrame(String className, String methodName, String fileName,
+                            int lineNumber) throws IOException {
+        put(AT);
+        putString(className);
+        putByte('.');
+        putString(methodName);
+        if (lineNumber == -2) {
+            put(NATIVE_METHOD);
+        } else if (fileName == null) {
+            put(UNKNOWN_SOURCE);
+        } else {
+            putByte('(');
+            putString(fileName);
+            if (lineNumber >= 0) {
+                putByte(':');
+                putLong(lineNumber);
+            }
+            putByte(')');
+        }
+    }
+
+    private void writeBlockingLock(ThreadDumpSnapshot snapshot, int index, Thread.State state,
+                                   int lockId) throws IOException {
+        long ownerId = snapshot.getLockOwnerId(index);
+        int ownerIndex = ownerId < 0 ? -1 : snapshot.indexOf(ownerId);
+        writeBlockingLock(state, snapshot.getLockClassName(lockId),
+                          snapshot.getLockIdentityHashCode(lockId),
+                          ownerIndex < 0 ? null : snapshot.getThreadName(ownerIndex), ownerId);
+    }
+
+    private void writeBlockingLock(Thread.State state, String className, int identityHashCode,
+                                   String ownerName, long ownerId) throws IOException {
+        put(state == Thread.State.BLOCKED ? BLOCKED_ON : WAITING_ON);
+        writeLock(className, identityHashCode);
+        if (ownerId >= 0) {
+            put(OWNED_BY);
+            if (ownerName != null) {
+                putString(ownerName);
+            }
+            put(OWNER_ID);
+            putLong(ownerId);
+        }
+    }
+
+    private void writeLock(String className, int identityHashCode) throws IOException {
+        putString(className);
+        putByte('@');
+        ensureCapacity(8);
+        boolean leading = true;
+        for (int shift = 28; shift >= 0; shift -= 4) {
+            int digit = (identityHashCode >>> shift) & 0xF;
+            if (digit != 0 || !leading || shift == 0) {
+                buffer.put(HEX_DIGITS[digit]);
+                leading = false;
+            }
+        }
+    }
+
+    private void put(byte[] bytes) throws IOException {
+        ensureCapacity(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void putByte(char c) throws IOException {
+        ensureCapacity(1);
+        buffer.put((byte) c);
+    }
+
+    private void putLong(long value) throws IOException {
+        if (value < 0) {
+            putByte('-');
+            if (value == Long.MIN_VALUE) {
+                putString("9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        int position = digits.length;
+        do {
+            digits[--position] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        ensureCapacity(digits.length - position);
+        buffer.put(digits, position, digits.length - position);
+    }
+
+    /**
+     * Write a non negative percentage with one decimal.
+     */
+    private void putPercent(double percent) throws IOException {
+        long tenths = Math.round(percent * 10);
+        putLong(tenths / 10);
+        putByte('.');
+        putByte((char) ('0' + tenths % 10));
+    }
+
+    /**
+     * Encode a string as UTF-8 straight into the array of the buffer. The position is kept in a
+     * local and checked once per character for room for the longest encoding, so the common
+     * ASCII character costs one compare and one array store.
+     */
+    private void putString(String value) throws IOException {
+        if (value == null) {
+            value = "null";
+        }
+        byte[] bytes = buffer.array();
+        int end = buffer.limit() - 4;
+        int position = buffer.position();
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (position > end) {
+                ((Buffer) buffer).position(position);
+                flush();
+                position = buffer.position();
+            }
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                bytes[position++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[position++] = (byte) (0xC0 | (c >> 6));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length &&
+                       Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                bytes[position++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                bytes[position++] = (byte) '?';
+            } else {
+                bytes[position++] = (byte) (0xE0 | (c >> 12));
+                bytes[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        ((Buffer) buffer).position(position);
+    }
+
+    private void ensureCapacity(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            flush();
+        }
+    }
+
+    private static byte[] encode(String fragment) {
+        return fragment.getBytes(UTF_8);
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Publishes thread statistics in the Prometheus text format from an embedded HTTP endpoint:
+ * <pre>
+ * thread_analyser_threads{state="BLOCKED"}                  threads per state
+ * thread_analyser_name_pattern_threads{pattern="..."}       threads per name pattern
+ * thread_analyser_deadlocked_threads                        threads in a deadlock
+ * thread_analyser_lock_waiters{lock="...",owner="..."}      waiters of the most contended locks
+ * thread_analyser_name_pattern_cpu_cores{pattern="..."}     CPU used by each name pattern, in cores
+ * thread_analyser_snapshot_timestamp_seconds                time of the snapshot the values come from
+ * </pre>
+ * The exporter is a {@link SnapshotListener}: it is fed by a {@link ThreadDumpSampler} (or any
+ * other source of snapshots), and each new snapshot is turned into the complete response body
+ * once, on the thread which delivers it. A scrape only copies the cached body, so it never
+ * causes a remote call and its latency does not depend on the number of threads of the target.
+ * CPU per pattern is computed from the CPU times of the threads present in both the previous
+ * and the latest snapshot, and is left out when snapshots carry no CPU times.
+ */
+public class ThreadMetricsExporter implements SnapshotListener {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final String PREFIX = "thread_analyser_";
+    private static final Thread.State[] STATES = Thread.State.values();
+
+    private final ThreadNameCounter threadNameCounter = new ThreadNameCounter();
+    private final List<String> patternLabels = new ArrayList<String>();
+    private final int contendedLockLimit;
+
+    private ThreadDumpSnapshot previousSnapshot;
+    private volatile byte[] body = new byte[0];
+    private HttpServer httpServer;
+    private ExecutorService executor;
+
+    /**
+     * @param contendedLockLimit number of most contended locks published.
+     */
+    public ThreadMetricsExporter(int contendedLockLimit) {
+        if (contendedLockLimit < 0) {
+            throw new IllegalArgumentException("Lock limit can not be negative: " + contendedLockLimit);
+        }
+        this.contendedLockLimit = contendedLockLimit;
+    }
+
+    /**
+     * Publish the number and CPU of the threads whose name matches a regular expression.
+     * Patterns must be added before the first snapshot.
+     *
+     * @param label value of the <code>pattern</code> label.
+     * @param regex regular expression found in the thread names.
+     */
+    public synchronized void addNamePattern(String label, String regex) {
+        threadNameCounter.addRegexMatch(regex);
+        patternLabels.add(label);
+    }
+
+    /**
+     * Compute every metric from a new snapshot and cache the response body.
+     *
+     * @param snapshot latest snapshot.
+     */
+    public synchronized void onSnapshot(ThreadDumpSnapshot snapshot) {
+        StringBuilder text = new StringBuilder(4096);
+
+        int[] stateCounts = snapshot.getStateCounts();
+        header(text, "threads", "gauge", "Number of threads in each state.");
+        for (Thread.State state : STATES) {
+            sample(text, "threads", "state", state.name(), stateCounts[state.ordinal()]);
+        }
+
+        int[] patternCounts = new int[patternLabels.size()];
+        double[] patternCpuNanos = new double[patternLabels.size()];
+        boolean cpu = countPatterns(snapshot, patternCounts, patternCpuNanos);
+        if (!patternLabels.isEmpty()) {
+            header(text, "name_pattern_threads", "gauge", "Number of threads whose name matches a pattern.");
+            for (int i = 0; i < patternCounts.length; i++) {
+                sample(text, "name_pattern_threads", "pattern", patternLabels.get(i), patternCounts[i]);
+            }
+        }
+        if (cpu && !patternLabels.isEmpty()) {
+            double wallNanos = (snapshot.getTimestamp() - previousSnapshot.getTimestamp()) * 1e6;
+            header(text, "name_pattern_cpu_cores", "gauge",
+                   "CPU used by the threads whose name matches a pattern, in cores.");
+            for (int i = 0; i < patternCpuNanos.length; i++) {
+                sample(text, "name_pattern_cpu_cores", "pattern", patternLabels.get(i),
+                       patternCpuNanos[i] / wallNanos);
+            }
+        }
+
+        LockGraph lockGraph = new LockGraph(snapshot);
+        long[] deadlocked = lockGraph.getDeadlockedThreadIds();
+        header(text, "deadlocked_threads", "gauge", "Number of threads in a deadlock.");
+        text.append(PREFIX).append("deadlocked_threads ").append(deadlocked == null ? 0 : deadlocked.length).append('\n');
+
+        int[] hottestLocks = lockGraph.getHottestLocks(contendedLockLimit);
+        if (hottestLocks.length > 0) {
+            header(text, "lock_waiters", "gauge", "Number of threads waiting for the most contended locks.");
+            for (int lockId : hottestLocks) {
+                int owner = lockGraph.getLockOwner(lockId);
+                text.append(PREFIX).append("lock_waiters{lock=\"");
+                escape(text, snapshot.getLockName(lockId));
+                text.append("\",owner=\"");
+                escape(text, owner < 0 ? "" : snapshot.getThreadName(owner));
+                text.append("\"} ").append(lockGraph.getWaiterCount(lockId)).append('\n');
+            }
+        }
+
+        header(text, "snapshot_timestamp_seconds", "gauge", "Time the latest snapshot was taken.");
+        text.append(PREFIX).append("snapshot_timestamp_seconds ").append(snapshot.getTimestamp() / 1000.0).append('\n');
+
+        previousSnapshot = snapshot;
+        body = text.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * @return response body computed from the latest snapshot.
+     */
+    public byte[] getBody() {
+        return body.clone();
+    }
+
+    /**
+     * Serve the metrics on <code>http://localhost:&lt;port&gt;/metrics</code> from one daemon
+     * thread. Only local clients can connect; see {@link #start(InetAddress, int)} to publish the
+     * endpoint to other hosts.
+     *
+     * @param port port to listen on, or <code>0</code> for any free port.
+     * @return port the endpoint listens on.
+     * @throws IOException if the port can not be bound.
+     */
+    public int start(int port) throws IOException {
+        return start(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Serve the metrics on <code>http://&lt;bindAddress&gt;:&lt;port&gt;/metrics</code> from one
+     * daemon thread. The endpoint has no authentication, and thread names and lock owners can
+     * reveal details of the monitored application.
+     *
+     * @param bindAddress local address to listen on, or <code>null</code> for every interface.
+     * @param port        port to listen on, or <code>0</code> for any free port.
+     * @return port the endpoint listens on.
+     * @throws IOException if the port can not be bound.
+     */
+    public synchronized int start(InetAddress bindAddress, int port) throws IOException {
+        if (httpServer != null) {
+            throw new IllegalStateException("Exporter is already running");
+        }
+        httpServer = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        httpServer.createContext("/metrics", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] response = body;
+                exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+                // scrapes are seconds apart, and closing avoids the delayed ACK of a kept alive
+                // connection which otherwise adds tens of milliseconds to every response
+                exchange.getResponseHeaders().set("Connection", "close");
+                exchange.sendResponseHeaders(200, response.length == 0 ? -1 : response.length);
+                try (OutputStream outputStream = exchange.getResponseBody()) {
+                    outputStream.write(response);
+                }
+            }
+        });
+        executor = Executors.newSingleThreadExecutor(ThreadDumpSampler.daemonThreadFactory("thread-metrics-exporter"));
+        httpServer.setExecutor(executor);
+        httpServer.start();
+        return httpServer.getAddress().getPort();
+    }
+
+    public synchronized void stop() {
+        if (httpServer == null) {
+            return;
+        }
+        httpServer.stop(0);
+        executor.shutdown();
+        httpServer = null;
+    }
+
+    /**
+     * Count the threads of each pattern, matching each distinct name once, and sum the CPU they
+     * used since the previous snapshot.
+     *
+     * @return <code>true</code> if CPU could be computed.
+     */
+    private boolean countPatterns(ThreadDumpSnapshot snapshot, int[] patternCounts,
+                                  double[] patternCpuNanos) {
+        if (patternCounts.length == 0) {
+            return false;
+        }
+        boolean cpu = previousSnapshot != null && snapshot.getTimestamp() > previousSnapshot.getTimestamp();
+        int[][] nameMatches = new int[snapshot.getStringCount()][];
+        int[] matches = new int[patternCounts.length];
+        for (int index = 0; index < snapshot.size(); index++) {
+            int nameIndex = snapshot.getThreadNameIndex(index);
+            if (nameMatches[nameIndex] == null) {
+                Arrays.fill(matches, 0);
+                threadNameCounter.match(snapshot.getString(nameIndex), matches);
+                nameMatches[nameIndex] = matches.clone();
+            }
+            long cpuTime = -1;
+            if (cpu && snapshot.getCpuTime(index) >= 0) {
+                int previous = previousSnapshot.indexOf(snapshot.getThreadId(index));
+                if (previous >= 0 && previousSnapshot.getCpuTime(previous) >= 0) {
+                    cpuTime = Math.max(0, snapshot.getCpuTime(index) - previousSnapshot.getCpuTime(previous));
+                }
+            }
+            int[] threadMatches = nameMatches[nameIndex];
+            for (int pattern = 0; pattern < threadMatches.length; pattern++) {
+                if (threadMatches[pattern] > 0) {
+                    patternCounts[pattern]++;
+                    if (cpuTime > 0) {
+                        patternCpuNanos[pattern] += cpuTime;
+                    }
+                }
+            }
+        }
+        if (cpu) {
+            // snapshots without CPU times have -1 for every thread
+            for (int index = 0; index < snapshot.size(); index++) {
+                if (snapshot.getCpuTime(index) >= 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void header(StringBuilder text, String name, String type, String help) {
+        text.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder text, String name, String label, String value,
+                               double sample) {
+        text.append(PREFIX).append(name).append('{').append(label).append("=\"");
+        escape(text, value);
+        text.append("\"} ");
+        if (sample == Math.rint(sample)) {
+            text.append((long) sample);
+        } else {
+            text.append(sample);
+        }
+        text.append('\n');
+    }
+
+    private static void escape(StringBuilder text, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                text.append('\\').append(c);
+            } else if (c == '\n') {
+                text.append("\\n");
+            } else {
+                text.append(c);
+            }
+        }
+    }
+}
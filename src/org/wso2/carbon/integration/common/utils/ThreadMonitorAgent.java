@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the thread analysis inside the monitored VM, on
+ * <code>ManagementFactory.getThreadMXBean()</code>, without the attach API, a JMX connector or
+ * serialization. Every class of this package which takes a ThreadMXBean works on
+ * {@link #getThreadMXBean()} as it does on a remote proxy.
+ * <p/>
+ * Loaded with <code>-javaagent:&lt;jar&gt;=&lt;options&gt;</code> at start up, or attached to a
+ * running VM, the agent starts a {@link ThreadWatchdog}. Options are comma separated
+ * <code>key=value</code> pairs:
+ * <pre>
+ * path      directory dumps are written to (default: threadDumps)
+ * interval  time between checks in milliseconds (default: 1000)
+ * blocked   number of BLOCKED threads which triggers a dump (default: 0, off)
+ * deadlock  true to trigger a dump on a deadlock (default: true)
+ * cpu       CPU use of one thread in percent of a core which triggers a dump (default: 0, off)
+ * cooldown  time after a dump during which triggers are ignored, in milliseconds (default: 60000)
+ * maxFiles  number of dumps kept in the directory (default: 100)
+ * </pre>
+ * The jar manifest must name this class as <code>Premain-Class</code> and
+ * <code>Agent-Class</code>. When the options are malformed the agent logs a warning and does not
+ * start the watchdog, so a bad command line never stops the monitored VM from starting.
+ */
+public final class ThreadMonitorAgent {
+
+    private static final Logger log = Logger.getLogger(ThreadMonitorAgent.class.getName());
+
+    private static volatile ThreadWatchdog threadWatchdog;
+
+    private ThreadMonitorAgent() {
+    }
+
+    public static void premain(String options, Instrumentation instrumentation) {
+        startFromAgent(options);
+    }
+
+    public static void agentmain(String options, Instrumentation instrumentation) {
+        startFromAgent(options);
+    }
+
+    /**
+     * Start the watchdog of this VM, unless it is already running.
+     *
+     * @param options agent options, or <code>null</code> for the defaults.
+     * @return the running watchdog.
+     * @throws IllegalArgumentException if an option is unknown or malformed.
+     */
+    public static synchronized ThreadWatchdog start(String options) {
+        if (threadWatchdog != null) {
+            return threadWatchdog;
+        }
+        String path = "threadDumps";
+        long interval = 1000;
+        int blocked = 0;
+        boolean deadlock = true;
+        double cpu = 0;
+        long cooldown = 60000;
+        int maxFiles = 100;
+        if (options != null && !options.trim().isEmpty()) {
+            for (String option : options.split(",")) {
+                int separator = option.indexOf('=');
+                if (separator <= 0) {
+                    throw new IllegalArgumentException("Malformed agent option: " + option);
+                }
+                String key = option.substring(0, separator).trim();
+                String value = option.substring(separator + 1).trim();
+                if (key.equals("path")) {
+                    path = value;
+                } else if (key.equals("interval")) {
+                    interval = Long.parseLong(value);
+                } else if (key.equals("blocked")) {
+                    blocked = Integer.parseInt(value);
+                } else if (key.equals("deadlock")) {
+                    deadlock = Boolean.parseBoolean(value);
+                } else if (key.equals("cpu")) {
+                    cpu = Double.parseDouble(value);
+                } else if (key.equals("cooldown")) {
+                    cooldown = Long.parseLong(value);
+                } else if (key.equals("maxFiles")) {
+                    maxFiles = Integer.parseInt(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown agent option: " + key);
+                }
+            }
+        }
+
+        ThreadMXBean threadMXBean = getThreadMXBean();
+        if (cpu > 0 && threadMXBean.isThreadCpuTimeSupported() && !threadMXBean.isThreadCpuTimeEnabled()) {
+            threadMXBean.setThreadCpuTimeEnabled(true);
+        }
+        ThreadWatchdog watchdog = new ThreadWatchdog(threadMXBean,
+                                                     new ThreadDumpStore(path, maxFiles, 0, false),
+                                                     interval);
+        watchdog.setBlockedThreshold(blocked);
+        watchdog.setDeadlockDetection(deadlock);
+        watchdog.setCpuThreshold(cpu);
+        watchdog.setCooldownMillis(cooldown);
+        watchdog.start();
+        threadWatchdog = watchdog;
+        return watchdog;
+    }
+
+    /**
+     * Stop the watchdog of this VM, if it is running.
+     */
+    public static synchronized void stop() {
+        if (threadWatchdog != null) {
+            threadWatchdog.stop();
+            threadWatchdog = null;
+        }
+    }
+
+    /**
+     * @return the running watchdog, or <code>null</code> if the agent has not been started.
+     */
+    public static ThreadWatchdog getThreadWatchdog() {
+        return threadWatchdog;
+    }
+
+    /**
+     * @return ThreadMXBean of this VM, which answers without any remote call.
+     */
+    public static ThreadMXBean getThreadMXBean() {
+        return ManagementFactory.getThreadMXBean();
+    }
+
+    //##############################################################################################
+
+    private static void startFromAgent(String options) {
+        try {
+            start(options);
+        } catch (RuntimeException e) {
+            // an exception thrown out of premain aborts the start of the VM
+            log.log(Level.WARNING, "Thread monitor agent not started, options: " + options, e);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Counts thread names against many patterns in a single pass. Patterns are registered once
+ * (exact names, sub strings or regular expressions, which are compiled when added) and every
+ * call to one of the <code>count</code> methods returns one counter per registered pattern,
+ * indexed in the order the patterns were added.
+ * <p/>
+ * When counting against a live ThreadMXBean, thread names are fetched with a single
+ * <code>getThreadInfo(long[], 0)</code> call, so the whole count costs one remote round trip
+ * instead of one per thread. Threads which have died between <code>getAllThreadIds</code> and
+ * the name lookup come back as <code>null</code> entries and are skipped.
+ * <p/>
+ * Instances keep reusable matchers and are not thread safe.
+ */
+public class ThreadNameCounter {
+
+    private final Map<String, int[]> exactMatches = new HashMap<String, int[]>();
+    private final List<String> subStrings = new ArrayList<String>();
+    private final List<Integer> subStringIndexes = new ArrayList<Integer>();
+    private final List<Matcher> matchers = new ArrayList<Matcher>();
+    private final List<Integer> matcherIndexes = new ArrayList<Integer>();
+    private int patternCount;
+
+    /**
+     * Register a thread name that must be equal to the whole thread name.
+     *
+     * @param threadName thread name.
+     * @return index of the counter for this pattern in the arrays returned by <code>count</code>.
+     */
+    public int addExactMatch(String threadName) {
+        if (threadName == null) {
+            throw new IllegalArgumentException("Thread name cannot be null");
+        }
+        int[] indexes = exactMatches.get(threadName);
+        if (indexes == null) {
+            indexes = new int[]{patternCount};
+        } else {
+            int[] grown = new int[indexes.length + 1];
+            System.arraycopy(indexes, 0, grown, 0, indexes.length);
+            grown[indexes.length] = patternCount;
+            indexes = grown;
+        }
+        exactMatches.put(threadName, indexes);
+        return patternCount++;
+    }
+
+    /**
+     * Register a sub string that must be contained in the thread name.
+     *
+     * @param subString sub string of thread name.
+     * @return index of the counter for this pattern in the arrays returned by <code>count</code>.
+     */
+    public int addSubStringMatch(String subString) {
+        if (subString == null) {
+            throw new IllegalArgumentException("Sub string cannot be null");
+        }
+        subStrings.add(subString);
+        subStringIndexes.add(patternCount);
+        return patternCount++;
+    }
+
+    /**
+     * Register a regular expression which must be found in the thread name. The expression is
+     * compiled here, once, and reused for every thread.
+     *
+     * @param regex regular expression.
+     * @return index of the counter for this pattern in the arrays returned by <code>count</code>.
+     * @throws java.util.regex.PatternSyntaxException if the expression is malformed.
+     */
+    public int addRegexMatch(String regex) {
+        return addRegexMatch(Pattern.compile(regex));
+    }
+
+    /**
+     * Register a compiled pattern which must be found in the thread name.
+     *
+     * @param pattern compiled pattern.
+     * @return index of the counter for this pattern in the arrays returned by <code>count</code>.
+     */
+    public int addRegexMatch(Pattern pattern) {
+        matchers.add(pattern.matcher(""));
+        matcherIndexes.add(patternCount);
+        return patternCount++;
+    }
+
+    /**
+     * Create a counter with the same patterns and counter indexes, for use by another thread.
+     * Compiled patterns are shared and only the matchers are new.
+     *
+     * @return independent copy of this counter.
+     */
+    public ThreadNameCounter copy() {
+        ThreadNameCounter copy = new ThreadNameCounter();
+        copy.exactMatches.putAll(exactMatches);
+        copy.subStrings.addAll(subStrings);
+        copy.subStringIndexes.addAll(subStringIndexes);
+        for (Matcher matcher : matchers) {
+            copy.matchers.add(matcher.pattern().matcher(""));
+        }
+        copy.matcherIndexes.addAll(matcherIndexes);
+        copy.patternCount = patternCount;
+        return copy;
+    }
+
+    /**
+     * @return number of registered patterns, which is also the length of the count arrays.
+     */
+    public int getPatternCount() {
+        return patternCount;
+    }
+
+    /**
+     * Fetch the names of the given threads with one remote call and count them.
+     *
+     * @param threadMXBean ThreadMXBean object of remote VM.
+     * @param threadIds    Array of thread Ids.
+     * @return one counter per registered pattern.
+     */
+    public int[] count(ThreadMXBean threadMXBean, long[] threadIds) {
+        return count(getThreadNames(threadMXBean, threadIds));
+    }
+
+    /**
+     * Count the names of already fetched threads. <code>null</code> entries are skipped.
+     *
+     * @param threadInfos Array of ThreadInfo objects.
+     * @return one counter per registered pattern.
+     */
+    public int[] count(ThreadInfo[] threadInfos) {
+        int[] counts = new int[patternCount];
+        if (threadInfos != null) {
+            for (ThreadInfo threadInfo : threadInfos) {
+                if (threadInfo != null) {
+                    match(threadInfo.getThreadName(), counts);
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Count the thread names of a snapshot. Names are interned in the snapshot, so every
+     * distinct name is matched once and its result applied to all the threads sharing it.
+     *
+     * @param snapshot thread dump snapshot.
+     * @return one counter per registered pattern.
+     */
+    public int[] count(ThreadDumpSnapshot snapshot) {
+        int[] occurrences = new int[snapshot.getStringCount()];
+        for (int i = 0; i < snapshot.size(); i++) {
+            occurrences[snapshot.getThreadNameIndex(i)]++;
+        }
+        int[] counts = new int[patternCount];
+        int[] nameCounts = new int[patternCount];
+        for (int stringIndex = 0; stringIndex < occurrences.length; stringIndex++) {
+            if (occurrences[stringIndex] > 0) {
+                match(snapshot.getString(stringIndex), nameCounts);
+                for (int pattern = 0; pattern < patternCount; pattern++) {
+                    counts[pattern] += nameCounts[pattern] * occurrences[stringIndex];
+                    nameCounts[pattern] = 0;
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Count the given thread names. <code>null</code> entries are skipped.
+     *
+     * @param threadNames Array of thread names.
+     * @return one counter per registered pattern.
+     */
+    public int[] count(String[] threadNames) {
+        int[] counts = new int[patternCount];
+        if (threadNames != null) {
+            for (String threadName : threadNames) {
+                if (threadName != null) {
+                    match(threadName, counts);
+                }
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Match one thread name against every registered pattern and increase the counters of the
+     * patterns that match.
+     *
+     * @param threadName thread name.
+     * @param counts     counters, one per registered pattern.
+     */
+    void match(String threadName, int[] counts) {
+        int[] exactIndexes = exactMatches.get(threadName);
+        if (exactIndexes != null) {
+            for (int index : exactIndexes) {
+                counts[index]++;
+            }
+        }
+        for (int i = 0; i < subStrings.size(); i++) {
+            if (threadName.contains(subStrings.get(i))) {
+                counts[subStringIndexes.get(i)]++;
+            }
+        }
+        for (int i = 0; i < matchers.size(); i++) {
+            if (matchers.get(i).reset(threadName).find()) {
+                counts[matcherIndexes.get(i)]++;
+            }
+        }
+    }
+
+    /**
+     * Fetch the names of the given threads with a single <code>getThreadInfo(long[], 0)</code>
+     * call, which carries no stack trace. Names of threads that are no longer alive are
+     * <code>null</code>.
+     *
+     * @param threadMXBean ThreadMXBean object of remote VM.
+     * @param threadIds    Array of thread Ids.
+     * @return thread names, in the same order as <code>threadIds</code>.
+     */
+    public static String[] getThreadNames(ThreadMXBean threadMXBean, long[] threadIds) {
+        String[] threadNames = new String[threadIds.length];
+        if (threadIds.length == 0) {
+            return threadNames;
+        }
+        ThreadInfo[] threadInfos = threadMXBean.getThreadInfo(threadIds, 0);
+        for (int i = 0; i < threadInfos.length; i++) {
+            if (threadInfos[i] != null) {
+                threadNames[i] = threadInfos[i].getThreadName();
+            }
+        }
+        return threadNames;
+    }
+}
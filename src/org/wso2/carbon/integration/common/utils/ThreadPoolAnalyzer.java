@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tracks the utilization of thread pools across snapshots. Threads are grouped into families by
+ * their name with the trailing number removed, so <code>http-nio-8280-exec-12</code> and
+ * <code>http-nio-8280-exec-3</code> both belong to <code>http-nio-8280-exec</code>. A thread is
+ * idle when its stack contains a frame where pool threads wait for work, such as
+ * <code>ThreadPoolExecutor.getTask</code> or a selector wait, and busy otherwise. A family is
+ * saturated in a sample when none of its threads is idle.
+ * <p/>
+ * Snapshots are fed in the order they were taken, for example as a {@link SnapshotListener} of a
+ * {@link ThreadDumpSampler} capturing at least {@link CaptureProfile#TOP_FRAMES}. Family names
+ * are cached by thread name, so a thread seen before costs one map lookup, and idle frames are
+ * looked up once per distinct frame of a snapshot.
+ */
+public class ThreadPoolAnalyzer implements SnapshotListener {
+
+    /**
+     * Bound of the family name cache, which is cleared when full so that VMs creating threads
+     * with ever new names can not grow it without limit.
+     */
+    static final int MAX_CACHED_NAMES = 65536;
+
+    private static final String[][] DEFAULT_IDLE_FRAMES = {
+            {"java.util.concurrent.ThreadPoolExecutor", "getTask"},
+            {"java.util.concurrent.ForkJoinPool", "awaitWork"},
+            {"java.util.concurrent.ForkJoinPool", "awaitQuiescence"},
+            {"java.util.concurrent.ScheduledThreadPoolExecutor$DelayedWorkQueue", "take"},
+            {"org.apache.tomcat.util.threads.TaskQueue", "take"},
+            {"org.apache.tomcat.util.threads.TaskQueue", "poll"},
+            {"sun.nio.ch.SelectorImpl", "select"},
+            {"sun.nio.ch.SelectorImpl", "lockAndDoSelect"},
+            {"sun.nio.ch.EPollArrayWrapper", "epollWait"},
+            {"sun.nio.ch.EPoll", "wait"},
+            {"sun.nio.ch.KQueue", "poll"},
+            {"sun.nio.ch.KQueueArrayWrapper", "kevent0"},
+            {"sun.nio.ch.WindowsSelectorImpl$SubSelector", "poll0"},
+            {"sun.nio.ch.ServerSocketChannelImpl", "accept"},
+            {"java.net.ServerSocket", "accept"},
+    };
+
+    private final Map<String, Set<String>> idleFrames = new HashMap<String, Set<String>>();
+    private final Map<String, ThreadPool> familiesByName = new HashMap<String, ThreadPool>();
+    private final Map<String, ThreadPool> families = new HashMap<String, ThreadPool>();
+    private long sampleCount;
+
+    /**
+     * Create an analyzer which knows the idle frames of the JDK executors, Tomcat and NIO
+     * selectors.
+     */
+    public ThreadPoolAnalyzer() {
+        for (String[] frame : DEFAULT_IDLE_FRAMES) {
+            addIdleFrame(frame[0], frame[1]);
+        }
+    }
+
+    /**
+     * Register a frame in which pool threads wait for work, for pools of other frameworks.
+     *
+     * @param className  fully qualified class name.
+     * @param methodName method name.
+     */
+    public synchronized void addIdleFrame(String className, String methodName) {
+        Set<String> methods = idleFrames.get(className);
+        if (methods == null) {
+            methods = new HashSet<String>();
+            idleFrames.put(className, methods);
+        }
+        methods.add(methodName);
+    }
+
+    public void onSnapshot(ThreadDumpSnapshot snapshot) {
+        update(snapshot);
+    }
+
+    /**
+     * Count the busy and idle threads of every family in a snapshot.
+     *
+     * @param snapshot snapshot taken after the previous one.
+     */
+    public synchronized void update(ThreadDumpSnapshot snapshot) {
+        ThreadPool[] familyOfName = new ThreadPool[snapshot.getStringCount()];
+        byte[] frameIdle = new byte[snapshot.getFrameCount()];
+        for (ThreadPool threadPool : families.values()) {
+            threadPool.threadCount = 0;
+            threadPool.busyThreadCount = 0;
+        }
+        for (int index = 0; index < snapshot.size(); index++) {
+            int nameIndex = snapshot.getThreadNameIndex(index);
+            ThreadPool threadPool = familyOfName[nameIndex];
+            if (threadPool == null) {
+                threadPool = getFamily(snapshot.getString(nameIndex));
+                familyOfName[nameIndex] = threadPool;
+            }
+            threadPool.threadCount++;
+            if (!isIdle(snapshot, index, frameIdle)) {
+                threadPool.busyThreadCount++;
+            }
+        }
+        for (ThreadPool threadPool : families.values()) {
+            threadPool.endSample();
+        }
+        sampleCount++;
+    }
+
+    /**
+     * @return number of snapshots analyzed.
+     */
+    public synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * @param minThreads minimum number of threads a family has had, to leave out single threads
+     *                   such as <code>main</code>.
+     * @return copies of the statistics of the families, most busy threads first.
+     */
+    public synchronized List<ThreadPool> getThreadPools(int minThreads) {
+        List<ThreadPool> threadPools = new ArrayList<ThreadPool>();
+        for (ThreadPool threadPool : families.values()) {
+            if (threadPool.maxThreadCount >= minThreads) {
+                threadPools.add(new ThreadPool(threadPool));
+            }
+        }
+        Collections.sort(threadPools, MOST_BUSY_FIRST);
+        return threadPools;
+    }
+
+    /**
+     * @param family family name.
+     * @return copy of the statistics of the family, or <code>null</code> if it was never seen.
+     */
+    public synchronized ThreadPool getThreadPool(String family) {
+        ThreadPool threadPool = families.get(family);
+        return threadPool == null ? null : new ThreadPool(threadPool);
+    }
+
+    /**
+     * Remove the trailing number of a thread name, with the separator before it, keeping
+     * numbers in the middle of the name such as ports and pool numbers.
+     *
+     * @param threadName thread name.
+     * @return family name, or the thread name if it does not end with a number.
+     */
+    public static String getFamilyName(String threadName) {
+        int end = threadName.length();
+        while (end > 0 && Character.isDigit(threadName.charAt(end - 1))) {
+            end--;
+        }
+        if (end == threadName.length() || end == 0) {
+            return threadName;
+        }
+        while (end > 0 && isSeparator(threadName.charAt(end - 1))) {
+            end--;
+        }
+        return end == 0 ? threadName : threadName.substring(0, end);
+    }
+
+    private ThreadPool getFamily(String threadName) {
+        ThreadPool threadPool = familiesByName.get(threadName);
+        if (threadPool == null) {
+            String family = getFamilyName(threadName);
+            threadPool = families.get(family);
+            if (threadPool == null) {
+                threadPool = new ThreadPool(family);
+                families.put(family, threadPool);
+            }
+            if (familiesByName.size() == MAX_CACHED_NAMES) {
+                familiesByName.clear();
+            }
+            familiesByName.put(threadName, threadPool);
+        }
+        return threadPool;
+    }
+
+    private boolean isIdle(ThreadDumpSnapshot snapshot, int index, byte[] frameIdle) {
+        if (snapshot.getThreadState(index) == Thread.State.BLOCKED) {
+            return false;
+        }
+        int depth = snapshot.getStackDepth(index);
+        for (int i = 0; i < depth; i++) {
+            int frameId = snapshot.getFrameId(index, i);
+            if (frameIdle[frameId] == 0) {
+                Set<String> methods = idleFrames.get(snapshot.getString(snapshot.getFrameClassNameIndex(frameId)));
+                boolean idle = methods != null &&
+                               methods.contains(snapshot.getString(snapshot.getFrameMethodNameIndex(frameId)));
+                frameIdle[frameId] = idle ? (byte) 1 : (byte) 2;
+            }
+            if (frameIdle[frameId] == 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '-' || c == '_' || c == '#' || c == '.' || c == ' ' || c == ':';
+    }
+
+    private static final Comparator<ThreadPool> MOST_BUSY_FIRST = new Comparator<ThreadPool>() {
+        public int compare(ThreadPool first, ThreadPool second) {
+            if (first.busyThreadCount != second.busyThreadCount) {
+                return second.busyThreadCount - first.busyThreadCount;
+            }
+            return first.family.compareTo(second.family);
+        }
+    };
+
+    /**
+     * Utilization of one thread family, in the last sample and over all the samples in which
+     * the family had threads.
+     */
+    public static final class ThreadPool {
+
+        private final String family;
+        private int threadCount;
+        private int busyThreadCount;
+        private int maxThreadCount;
+        private long sampleCount;
+        private double utilizationSum;
+        private long saturatedSampleCount;
+        private int saturatedStreak;
+        private int maxSaturatedStreak;
+
+        ThreadPool(String family) {
+            this.family = family;
+        }
+
+        ThreadPool(ThreadPool threadPool) {
+            this.family = threadPool.family;
+            this.threadCount = threadPool.threadCount;
+            this.busyThreadCount = threadPool.busyThreadCount;
+            this.maxThreadCount = threadPool.maxThreadCount;
+            this.sampleCount = threadPool.sampleCount;
+            this.utilizationSum = threadPool.utilizationSum;
+            this.saturatedSampleCount = threadPool.saturatedSampleCount;
+            this.saturatedStreak = threadPool.saturatedStreak;
+            this.maxSaturatedStreak = threadPool.maxSaturatedStreak;
+        }
+
+        void endSample() {
+            if (threadCount == 0) {
+                saturatedStreak = 0;
+                return;
+            }
+            sampleCount++;
+            maxThreadCount = Math.max(maxThreadCount, threadCount);
+            utilizationSum += (double) busyThreadCount / threadCount;
+            if (busyThreadCount == threadCount) {
+                saturatedSampleCount++;
+                saturatedStreak++;
+                maxSaturatedStreak = Math.max(maxSaturatedStreak, saturatedStreak);
+            } else {
+                saturatedStreak = 0;
+            }
+        }
+
+        public String getFamily() {
+            return family;
+        }
+
+        /**
+         * @return number of threads in the last sample.
+         */
+        public int getThreadCount() {
+            return threadCount;
+        }
+
+        /**
+         * @return number of threads which were not waiting for work in the last sample.
+         */
+        public int getBusyThreadCount() {
+            return busyThreadCount;
+        }
+
+        public int getIdleThreadCount() {
+            return threadCount - busyThreadCount;
+        }
+
+        /**
+         * @return largest number of threads seen in one sample.
+         */
+        public int getMaxThreadCount() {
+            return maxThreadCount;
+        }
+
+        /**
+         * @return fraction of busy threads in the last sample, or <code>0</code> if the family
+         *         had no threads.
+         */
+        public double getUtilization() {
+            return threadCount == 0 ? 0 : (double) busyThreadCount / threadCount;
+        }
+
+        /**
+         * @return mean fraction of busy threads over the samples in which the family had threads.
+         */
+        public double getMeanUtilization() {
+            return sampleCount == 0 ? 0 : utilizationSum / sampleCount;
+        }
+
+        /**
+         * @return number of samples in which the family had threads.
+         */
+        public long getSampleCount() {
+            return sampleCount;
+        }
+
+        /**
+         * @return number of samples in which every thread of the family was busy.
+         */
+        public long getSaturatedSampleCount() {
+            return saturatedSampleCount;
+        }
+
+        /**
+         * @return fraction of the samples in which every thread of the family was busy.
+         */
+        public double getSaturation() {
+            return sampleCount == 0 ? 0 : (double) saturatedSampleCount / sampleCount;
+        }
+
+        /**
+         * @return number of consecutive samples, up to the last one, in which the family was
+         *         saturated.
+         */
+        public int getSaturatedStreak() {
+            return saturatedStreak;
+        }
+
+        /**
+         * @return longest run of consecutive saturated samples.
+         */
+        public int getMaxSaturatedStreak() {
+            return maxSaturatedStreak;
+        }
+
+        public String toString() {
+            return family + ": " + busyThreadCount + "/" + threadCount + " busy, mean utilization " +
+                   Math.round(getMeanUtilization() * 100) + "%, saturated in " + saturatedSampleCount +
+                   " of " + sampleCount + " samples";
+        }
+    }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.util.Locale;
+
+/**
+ * A threshold on a thread metric, parsed once from a short expression and evaluated by a
+ * {@link ThreadRuleEngine} on every snapshot:
+ * <pre>
+ * count(name ~ "PassThrough.*") &gt; 400 for 3     regex found in the thread name, 3 samples in a row
+ * count(name == "Timer-0") == 0                 exact thread name
+ * count(name contains "HTTPSSender") &gt;= 100      sub string of the thread name
+ * count(BLOCKED) &gt; 20%                          thread state, as a share of all threads
+ * threads &gt; 2000                                all threads
+ * deadlocked &gt; 0                                deadlocked threads
+ * deadlock                                      short for deadlocked &gt; 0
+ * </pre>
+ * Comparisons are <code>&gt;</code>, <code>&gt;=</code>, <code>&lt;</code>, <code>&lt;=</code> and
+ * <code>==</code>. A <code>%</code> after the threshold compares the metric as a percentage of
+ * all threads, and <code>for N</code> requires the condition to hold on N samples in a row
+ * before the rule fires.
+ */
+public class ThreadRule {
+
+    static final int THREADS = 0;
+    static final int STATE = 1;
+    static final int NAME = 2;
+    static final int DEADLOCKED = 3;
+
+    static final int REGEX = 0;
+    static final int EXACT = 1;
+    static final int SUB_STRING = 2;
+
+    private final String name;
+    private final String expression;
+
+    private int metric;
+    private Thread.State threadState;
+    private int matchKind;
+    private String pattern;
+    private String operator;
+    private double threshold;
+    private boolean percent;
+    private int samples = 1;
+
+    // set and updated by the engine
+    int patternIndex = -1;
+    int consecutiveSamples;
+    boolean firing;
+
+    private int position;
+
+    /**
+     * Parse a rule.
+     *
+     * @param name       name of the rule, used in reports.
+     * @param expression rule expression.
+     * @throws IllegalArgumentException if the expression is malformed.
+     */
+    public ThreadRule(String name, String expression) {
+        this.name = name;
+        this.expression = expression;
+        parse();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    /**
+     * @return number of samples in a row the condition must hold before the rule fires.
+     */
+    public int getSamples() {
+        return samples;
+    }
+
+    /**
+     * Compare a metric value with the threshold of the rule.
+     *
+     * @param value       value of the metric of the rule.
+     * @param threadCount number of threads of the snapshot, for percentages.
+     * @return <code>true</code> if the condition holds.
+     */
+    boolean matches(int value, int threadCount) {
+        double actual = percent ? (threadCount == 0 ? 0 : 100.0 * value / threadCount) : value;
+        if (operator.equals(">")) {
+            return actual > threshold;
+        } else if (operator.equals(">=")) {
+            return actual >= threshold;
+        } else if (operator.equals("<")) {
+            return actual < threshold;
+        } else if (operator.equals("<=")) {
+            return actual <= threshold;
+        }
+        return actual == threshold;
+    }
+
+    int getMetric() {
+        return metric;
+    }
+
+    Thread.State getThreadState() {
+        return threadState;
+    }
+
+    int getMatchKind() {
+        return matchKind;
+    }
+
+    String getPattern() {
+        return pattern;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + expression;
+    }
+
+    //##############################################################################################
+
+    private void parse() {
+        if (expression == null) {
+            throw new IllegalArgumentException("Rule expression cannot be null");
+        }
+        String word = readWord();
+        if (word.equals("deadlock")) {
+            metric = DEADLOCKED;
+            operator = ">";
+            threshold = 0;
+        } else {
+            if (word.equals("threads")) {
+                metric = THREADS;
+            } else if (word.equals("deadlocked")) {
+                metric = DEADLOCKED;
+            } else if (word.equals("count")) {
+                parseCount();
+            } else {
+                throw error("threads, deadlocked, deadlock or count");
+            }
+            parseComparison();
+        }
+        if (skipSpaces() < expression.length()) {
+            if (!readWord().equals("for")) {
+                throw error("for");
+            }
+            samples = (int) readNumber();
+            if (samples < 1) {
+                throw error("a positive number of samples");
+            }
+            if (skipSpaces() < expression.length()) {
+                String unit = readWord();
+                if (!unit.equals("samples") && !unit.equals("sample")) {
+                    throw error("samples");
+                }
+            }
+        }
+        if (skipSpaces() < expression.length()) {
+            throw error("end of rule");
+        }
+    }
+
+    private void parseCount() {
+        expect("(");
+        String word = readWord();
+        if (word.equals("name")) {
+            metric = NAME;
+            if (accept("~")) {
+                matchKind = REGEX;
+            } else if (accept("==")) {
+                matchKind = EXACT;
+            } else if (readWord().equals("contains")) {
+                matchKind = SUB_STRING;
+            } else {
+                throw error("~, == or contains");
+            }
+            pattern = readString();
+        } else {
+            metric = STATE;
+            try {
+                threadState = Thread.State.valueOf(word.toUpperCase(Locale.ENGLISH));
+            } catch (IllegalArgumentException e) {
+                throw error("name or a thread state");
+            }
+        }
+        expect(")");
+    }
+
+    private void parseComparison() {
+        skipSpaces();
+        for (String candidate : new String[]{">=", "<=", "==", ">", "<"}) {
+            if (accept(candidate)) {
+                operator = candidate;
+                break;
+            }
+        }
+        if (operator == null) {
+            throw error("a comparison");
+        }
+        threshold = readNumber();
+        percent = accept("%");
+    }
+
+    private int skipSpaces() {
+        while (position < expression.length() && Character.isWhitespace(expression.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+
+    private boolean accept(String token) {
+        skipSpaces();
+        if (expression.startsWith(token, position)) {
+            position += token.length();
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String token) {
+        if (!accept(token)) {
+            throw error(token);
+        }
+    }
+
+    private String readWord() {
+        int start = skipSpaces();
+        while (position < expression.length() &&
+               (Character.isLetter(expression.charAt(position)) || expression.charAt(position) == '_')) {
+            position++;
+        }
+        return expression.substring(start, position).toLowerCase(Locale.ENGLISH);
+    }
+
+    private double readNumber() {
+        int start = skipSpaces();
+        while (position < expression.length() &&
+               (Character.isDigit(expression.charAt(position)) || expression.charAt(position) == '.')) {
+            position++;
+        }
+        try {
+            return Double.parseDouble(expression.substring(start, position));
+        } catch (NumberFormatException e) {
+            position = start;
+            throw error("a number");
+        }
+    }
+
+    private String readString() {
+        expect("\"");
+        StringBuilder value = new StringBuilder();
+        while (position < expression.length() && expression.charAt(position) != '"') {
+            char c = expression.charAt(position++);
+            if (c == '\\' && position < expression.length() && expression.charAt(position) == '"') {
+                c = expression.charAt(position++);
+            }
+            value.append(c);
+        }
+        expect("\"");
+        return value.toString();
+    }
+
+    private IllegalArgumentException error(String expected) {
+        return new IllegalArgumentException("Malformed rule \"" + expression + "\": expected " +
+                                            expected + " at position " + position);
+    }
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates {@link ThreadRule}s on every snapshot and writes a full dump when one fires, in
+ * place of scripts polling <code>getThreadCount</code> and <code>getThreadCountUsingRegex</code>.
+ * <p/>
+ * Name patterns of all rules are registered once, each distinct pattern once, in a single
+ * {@link ThreadNameCounter}, with regular expressions compiled when the rule is added. A
+ * snapshot is evaluated in one pass over its distinct thread names, and the patterns matched
+ * by a name are cached between snapshots, so in steady state, where the same pool threads are
+ * seen sample after sample, each name costs one hash lookup however many rules there are. The
+ * rules then only compare counters, so hundreds of rules evaluate well under a millisecond.
+ * The cache is cleared when it grows beyond <code>MAX_CACHED_NAMES</code>. Deadlocks are only
+ * searched for when a rule asks for them.
+ * <p/>
+ * A rule fires once when its condition has held for its number of samples, and fires again
+ * only after the condition has cleared. When rules fire, a full dump is captured through the
+ * ThreadMXBean, if one was given, and written with its deadlock and contention sections and a
+ * section naming the rules; otherwise the evaluated snapshot itself is written, which suits
+ * snapshots taken with locks by a {@link ThreadDumpSampler}. The engine is a
+ * {@link SnapshotListener}, so it can be attached to a sampler directly. Instances are thread
+ * safe.
+ */
+public class ThreadRuleEngine implements SnapshotListener {
+
+    private static final int MAX_CACHED_NAMES = 65536;
+    private static final int CONTENDED_LOCK_LIMIT = 10;
+    private static final int STATE_COUNT = Thread.State.values().length;
+    private static final int[] NO_MATCHES = new int[0];
+
+    private final ThreadMXBean threadMXBean;
+    private final String targetId;
+    private final ThreadDumpStore threadDumpStore;
+    private final ThreadAnalyser threadAnalyser = new ThreadAnalyser();
+    private final ThreadNameCounter threadNameCounter = new ThreadNameCounter();
+    private final Map<String, Integer> patternIndexes = new HashMap<String, Integer>();
+    private final Map<String, int[]> nameMatches = new HashMap<String, int[]>();
+    private final List<ThreadRule> rules = new ArrayList<ThreadRule>();
+    private boolean deadlockRules;
+    private int[] matches = new int[0];
+    private int[] patternCounts = new int[0];
+
+    private long evaluationCount;
+    private long totalEvaluationNanos;
+    private long maxEvaluationNanos;
+    private long failedDumpCount;
+    private File lastDumpFile;
+
+    /**
+     * @param threadMXBean    ThreadMXBean object of the monitored VM, used to capture a full
+     *                        dump when rules fire, or <code>null</code> to write the evaluated
+     *                        snapshot instead.
+     * @param threadDumpStore store the dumps are written to.
+     */
+    public ThreadRuleEngine(ThreadMXBean threadMXBean, ThreadDumpStore threadDumpStore) {
+        this(threadMXBean, null, threadDumpStore);
+    }
+
+    /**
+     * @param threadMXBean    ThreadMXBean object of the monitored VM, used to capture a full
+     *                        dump when rules fire, or <code>null</code> to write the evaluated
+     *                        snapshot instead.
+     * @param targetId        process Id or other Id of the monitored VM, which names its dump
+     *                        files, or <code>null</code> if it is this VM.
+     * @param threadDumpStore store the dumps are written to.
+     */
+    public ThreadRuleEngine(ThreadMXBean threadMXBean, String targetId, ThreadDumpStore threadDumpStore) {
+        this.threadMXBean = threadMXBean;
+        this.targetId = targetId;
+        this.threadDumpStore = threadDumpStore;
+    }
+
+    /**
+     * Parse and add a rule.
+     *
+     * @param name       name of the rule, used in reports.
+     * @param expression rule expression, see {@link ThreadRule}.
+     * @return the compiled rule.
+     * @throws IllegalArgumentException if the expression is malformed.
+     */
+    public ThreadRule addRule(String name, String expression) {
+        return addRule(new ThreadRule(name, expression));
+    }
+
+    /**
+     * Add a rule, registering its name pattern unless another rule already has it.
+     *
+     * @param rule compiled rule, which must not be added to another engine.
+     * @return the rule.
+     * @throws java.util.regex.PatternSyntaxException if the name pattern is malformed.
+     */
+    public synchronized ThreadRule addRule(ThreadRule rule) {
+        if (rule.getMetric() == ThreadRule.NAME) {
+            String key = rule.getMatchKind() + rule.getPattern();
+            Integer patternIndex = patternIndexes.get(key);
+            if (patternIndex == null) {
+                if (rule.getMatchKind() == ThreadRule.REGEX) {
+                    patternIndex = threadNameCounter.addRegexMatch(rule.getPattern());
+                } else if (rule.getMatchKind() == ThreadRule.EXACT) {
+                    patternIndex = threadNameCounter.addExactMatch(rule.getPattern());
+                } else {
+                    patternIndex = threadNameCounter.addSubStringMatch(rule.getPattern());
+                }
+                patternIndexes.put(key, patternIndex);
+                matches = new int[threadNameCounter.getPatternCount()];
+                patternCounts = new int[threadNameCounter.getPatternCount()];
+                // cached matches do not know about the new pattern
+                nameMatches.clear();
+            }
+            rule.patternIndex = patternIndex;
+        } else if (rule.getMetric() == ThreadRule.DEADLOCKED) {
+            deadlockRules = true;
+        }
+        rules.add(rule);
+        return rule;
+    }
+
+    public synchronized List<ThreadRule> getRules() {
+        return Collections.unmodifiableList(new ArrayList<ThreadRule>(rules));
+    }
+
+    public void onSnapshot(ThreadDumpSnapshot snapshot) {
+        evaluate(snapshot);
+    }
+
+    /**
+     * Capture the names and states of the threads of a VM, the cheapest capture which answers
+     * every rule, and evaluate the rules on them.
+     *
+     * @param threadMXBean ThreadMXBean object of the monitored VM.
+     * @return rules which fired on this snapshot.
+     */
+    public List<ThreadRule> evaluate(ThreadMXBean threadMXBean) {
+        return evaluate(threadAnalyser.capture(threadMXBean, CaptureProfile.STATES));
+    }
+
+    /**
+     * Evaluate every rule on a snapshot and write a dump if any of them fires.
+     *
+     * @param snapshot thread dump snapshot.
+     * @return rules which fired on this snapshot.
+     */
+    public List<ThreadRule> evaluate(ThreadDumpSnapshot snapshot) {
+        List<ThreadRule> fired;
+        synchronized (this) {
+            long startNanos = System.nanoTime();
+            fired = evaluateRules(snapshot);
+            long evaluationNanos = System.nanoTime() - startNanos;
+            evaluationCount++;
+            totalEvaluationNanos += evaluationNanos;
+            maxEvaluationNanos = Math.max(maxEvaluationNanos, evaluationNanos);
+        }
+        if (!fired.isEmpty()) {
+            dump(snapshot, fired);
+        }
+        return fired;
+    }
+
+    private List<ThreadRule> evaluateRules(ThreadDumpSnapshot snapshot) {
+        countNames(snapshot);
+        int[] stateCounts = snapshot.getStateCounts();
+        int deadlocked = 0;
+        if (deadlockRules) {
+            long[] deadlockedThreads = snapshot.findDeadlockedThreads();
+            deadlocked = deadlockedThreads == null ? 0 : deadlockedThreads.length;
+        }
+
+        List<ThreadRule> fired = Collections.emptyList();
+        for (ThreadRule rule : rules) {
+            int value;
+            switch (rule.getMetric()) {
+                case ThreadRule.STATE:
+                    value = stateCounts[rule.getThreadState().ordinal()];
+                    break;
+                case ThreadRule.NAME:
+                    value = patternCounts[rule.patternIndex];
+                    break;
+                case ThreadRule.DEADLOCKED:
+                    value = deadlocked;
+                    break;
+                default:
+                    value = snapshot.size();
+            }
+            if (!rule.matches(value, snapshot.size())) {
+                rule.consecutiveSamples = 0;
+                rule.firing = false;
+            } else if (++rule.consecutiveSamples >= rule.getSamples() && !rule.firing) {
+                rule.firing = true;
+                if (fired.isEmpty()) {
+                    fired = new ArrayList<ThreadRule>();
+                }
+                fired.add(rule);
+            }
+        }
+        return fired;
+    }
+
+    /**
+     * Count the threads matching each pattern, matching each distinct name once.
+     */
+    private void countNames(ThreadDumpSnapshot snapshot) {
+        Arrays.fill(patternCounts, 0);
+        if (patternCounts.length == 0) {
+            return;
+        }
+        int[] occurrences = new int[snapshot.getStringCount()];
+        for (int i = 0; i < snapshot.size(); i++) {
+            occurrences[snapshot.getThreadNameIndex(i)]++;
+        }
+        if (nameMatches.size() > MAX_CACHED_NAMES) {
+            nameMatches.clear();
+        }
+        for (int stringIndex = 0; stringIndex < occurrences.length; stringIndex++) {
+            if (occurrences[stringIndex] == 0) {
+                continue;
+            }
+            String threadName = snapshot.getString(stringIndex);
+            int[] patterns = nameMatches.get(threadName);
+            if (patterns == null) {
+                patterns = match(threadName);
+                nameMatches.put(threadName, patterns);
+            }
+            for (int pattern : patterns) {
+                patternCounts[pattern] += occurrences[stringIndex];
+            }
+        }
+    }
+
+    private int[] match(String threadName) {
+        Arrays.fill(matches, 0);
+        threadNameCounter.match(threadName, matches);
+        int matchCount = 0;
+        for (int match : matches) {
+            if (match > 0) {
+                matchCount++;
+            }
+        }
+        if (matchCount == 0) {
+            return NO_MATCHES;
+        }
+        int[] patterns = new int[matchCount];
+        matchCount = 0;
+        for (int pattern = 0; pattern < matches.length; pattern++) {
+            if (matches[pattern] > 0) {
+                patterns[matchCount++] = pattern;
+            }
+        }
+        return patterns;
+    }
+
+    private void dump(ThreadDumpSnapshot evaluated, final List<ThreadRule> fired) {
+        try {
+            final ThreadDumpSnapshot snapshot = threadMXBean == null ? evaluated :
+                                                threadAnalyser.getSnapshot(threadMXBean);
+            File file = threadDumpStore.store(targetId, snapshot.getTimestamp(), new ThreadDumpStore.Content() {
+                public void writeTo(ThreadDumpWriter threadDumpWriter) throws IOException {
+                    threadDumpWriter.writeReport(snapshot, CONTENDED_LOCK_LIMIT);
+                    for (ThreadRule rule : fired) {
+                        threadDumpWriter.writeSectionHeader("Rule " + rule);
+                    }
+                }
+            });
+            synchronized (this) {
+                lastDumpFile = file;
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failedDumpCount++;
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                failedDumpCount++;
+            }
+        }
+    }
+
+    //##############################################################################################
+
+    public synchronized long getEvaluationCount() {
+        return evaluationCount;
+    }
+
+    /**
+     * @return mean time taken to evaluate all rules on a snapshot, in nanoseconds.
+     */
+    public synchronized long getMeanEvaluationNanos() {
+        return evaluationCount == 0 ? 0 : totalEvaluationNanos / evaluationCount;
+    }
+
+    public synchronized long getMaxEvaluationNanos() {
+        return maxEvaluationNanos;
+    }
+
+    public synchronized long getFailedDumpCount() {
+        return failedDumpCount;
+    }
+
+    public synchronized File getLastDumpFile() {
+        return lastDumpFile;
+    }
+}
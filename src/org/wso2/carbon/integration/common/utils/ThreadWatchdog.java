@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2014, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.wso2.carbon.integration.common.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks a VM at a fixed rate and writes a thread dump as soon as one of its thresholds is
+ * crossed: too many BLOCKED threads, a deadlock, or a single thread using more than a share of
+ * a core. Meant to run in process, on <code>ManagementFactory.getThreadMXBean()</code> (see
+ * {@link ThreadMonitorAgent}), where every check is a local call.
+ * <p/>
+ * Each check uses the cheapest call which answers it: thread states come from
+ * <code>getThreadInfo(long[], 0)</code> without stacks, deadlocks from
+ * <code>findDeadlockedThreads()</code> and CPU from a {@link HotThreadSampler}. When a check
+ * fires, the full dump is captured on the watchdog thread straight away, before anything else
+ * is done, so the time from trigger to dump is the time of one <code>dumpAllThreads</code>
+ * call; the time taken is kept as the trigger latency. The dump is then written through a
+ * {@link ThreadDumpStore} with the deadlock and contention sections and a final section naming
+ * the trigger. After a dump, triggers are ignored for a cool down period, so a lasting problem
+ * does not fill the disk.
+ */
+public class ThreadWatchdog {
+
+    private static final int CONTENDED_LOCK_LIMIT = 10;
+    private static final int MAX_HOT_THREAD_DEPTH = 1;
+
+    private final ThreadMXBean threadMXBean;
+    private final ThreadDumpStore threadDumpStore;
+    private final long intervalNanos;
+    private final ThreadAnalyser threadAnalyser = new ThreadAnalyser();
+
+    private volatile int blockedThreshold;
+    private volatile boolean deadlockDetection;
+    private volatile double cpuThreshold;
+    private volatile long cooldownNanos = TimeUnit.MINUTES.toNanos(1);
+
+    private ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> checkingTask;
+    private HotThreadSampler hotThreadSampler;
+    private long lastDumpNanos;
+
+    private long checkCount;
+    private long failedCheckCount;
+    private long triggerCount;
+    private long failedDumpCount;
+    private String lastTrigger;
+    private File lastDumpFile;
+    private long lastTriggerLatencyNanos;
+    private long maxTriggerLatencyNanos;
+
+    /**
+     * Create a watchdog with every check disabled; enable them with the setters.
+     *
+     * @param threadMXBean    ThreadMXBean object of the monitored VM.
+     * @param threadDumpStore store the dumps are written to.
+     * @param intervalMillis  time between two checks, in milliseconds.
+     */
+    public ThreadWatchdog(ThreadMXBean threadMXBean, ThreadDumpStore threadDumpStore,
+                          long intervalMillis) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("Interval must be positive: " + intervalMillis);
+        }
+        this.threadMXBean = threadMXBean;
+        this.threadDumpStore = threadDumpStore;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    /**
+     * @param blockedThreshold number of BLOCKED threads which triggers a dump, or <code>0</code>
+     *                         to disable the check.
+     */
+    public void setBlockedThreshold(int blockedThreshold) {
+        if (blockedThreshold < 0) {
+            throw new IllegalArgumentException("Threshold can not be negative: " + blockedThreshold);
+        }
+        this.blockedThreshold = blockedThreshold;
+    }
+
+    /**
+     * @param deadlockDetection <code>true</code> to trigger a dump when threads are deadlocked.
+     */
+    public void setDeadlockDetection(boolean deadlockDetection) {
+        this.deadlockDetection = deadlockDetection;
+    }
+
+    /**
+     * @param cpuThreshold CPU use of a single thread over one interval, in percent of a core,
+     *                     which triggers a dump, or <code>0</code> to disable the check. Thread
+     *                     CPU time measurement must be enabled.
+     */
+    public void setCpuThreshold(double cpuThreshold) {
+        if (cpuThreshold < 0) {
+            throw new IllegalArgumentException("Threshold can not be negative: " + cpuThreshold);
+        }
+        this.cpuThreshold = cpuThreshold;
+    }
+
+    /**
+     * @param cooldownMillis time after a dump during which triggers are ignored, in
+     *                       milliseconds.
+     */
+    public void setCooldownMillis(long cooldownMillis) {
+        if (cooldownMillis < 0) {
+            throw new IllegalArgumentException("Cool down can not be negative: " + cooldownMillis);
+        }
+        this.cooldownNanos = TimeUnit.MILLISECONDS.toNanos(cooldownMillis);
+    }
+
+    /**
+     * Start checking. The first check is made immediately.
+     *
+     * @throws IllegalStateException if the watchdog is already running.
+     */
+    public synchronized void start() {
+        if (checkingTask != null) {
+            throw new IllegalStateException("Watchdog is already running");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(
+                ThreadDumpSampler.daemonThreadFactory("thread-watchdog"));
+        checkingTask = scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                check();
+            }
+        }, 0, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public synchronized void stop() {
+        if (checkingTask == null) {
+            return;
+        }
+        checkingTask.cancel(false);
+        scheduler.shutdown();
+        checkingTask = null;
+        hotThreadSampler = null;
+    }
+
+    public synchronized boolean isRunning() {
+        return checkingTask != null;
+    }
+
+    /**
+     * Run every enabled check once and write a dump if one fires. Called by the schedule, and
+     * can be called directly to check at a custom pace.
+     *
+     * @return dump file written, or <code>null</code> if no check fired or the watchdog is
+     *         cooling down after the previous dump.
+     */
+    public synchronized File check() {
+        String trigger;
+        try {
+            trigger = findTrigger();
+        } catch (RuntimeException e) {
+            failedCheckCount++;
+            return null;
+        }
+        checkCount++;
+        if (trigger == null || (triggerCount > 0 && System.nanoTime() - lastDumpNanos < cooldownNanos)) {
+            return null;
+        }
+
+        long triggerNanos = System.nanoTime();
+        ThreadDumpSnapshot snapshot;
+        try {
+            snapshot = threadAnalyser.getSnapshot(threadMXBean);
+        } catch (RuntimeException e) {
+            failedDumpCount++;
+            return null;
+        }
+        lastTriggerLatencyNanos = System.nanoTime() - triggerNanos;
+        maxTriggerLatencyNanos = Math.max(maxTriggerLatencyNanos, lastTriggerLatencyNanos);
+        lastDumpNanos = triggerNanos;
+        lastTrigger = trigger;
+        triggerCount++;
+        try {
+            lastDumpFile = threadDumpStore.store(snapshot.getTimestamp(), content(snapshot, trigger));
+        } catch (IOException e) {
+            failedDumpCount++;
+            return null;
+        }
+        return lastDumpFile;
+    }
+
+    private String findTrigger() {
+        if (blockedThreshold > 0) {
+            int blocked = 0;
+            for (ThreadInfo threadInfo : threadMXBean.getThreadInfo(threadMXBean.getAllThreadIds(), 0)) {
+                if (threadInfo != null && threadInfo.getThreadState() == Thread.State.BLOCKED) {
+                    blocked++;
+                }
+            }
+            if (blocked >= blockedThreshold) {
+                return blocked + " threads BLOCKED";
+            }
+        }
+        if (deadlockDetection) {
+            long[] deadlockedThreads = threadMXBean.findDeadlockedThreads();
+            if (deadlockedThreads != null) {
+                return deadlockedThreads.length + " threads deadlocked";
+            }
+        }
+        if (cpuThreshold > 0) {
+            if (hotThreadSampler == null) {
+                hotThreadSampler = new HotThreadSampler(threadMXBean, MAX_HOT_THREAD_DEPTH);
+            }
+            List<HotThreadSampler.HotThread> hotThreads = hotThreadSampler.sample(1);
+            if (!hotThreads.isEmpty() && hotThreads.get(0).getCpuPercent() >= cpuThreshold) {
+                HotThreadSampler.HotThread hotThread = hotThreads.get(0);
+                return "thread \"" + hotThread.getThreadName() + "\" Id=" + hotThread.getThreadId() +
+                       " using " + Math.round(hotThread.getCpuPercent()) + "% cpu";
+            }
+        }
+        return null;
+    }
+
+    private static ThreadDumpStore.Content content(final ThreadDumpSnapshot snapshot,
+                                                   final String trigger) {
+        return new ThreadDumpStore.Content() {
+            public void writeTo(ThreadDumpWriter threadDumpWriter) throws IOException {
+                threadDumpWriter.writeReport(snapshot, CONTENDED_LOCK_LIMIT);
+                threadDumpWriter.writeSectionHeader("Watchdog: " + trigger);
+            }
+        };
+    }
+
+    //##############################################################################################
+
+    public synchronized long getCheckCount() {
+        return checkCount;
+    }
+
+    public synchronized long getFailedCheckCount() {
+        return failedCheckCount;
+    }
+
+    /**
+     * @return number of dumps triggered.
+     */
+    public synchronized long getTriggerCount() {
+        return triggerCount;
+    }
+
+    public synchronized long getFailedDumpCount() {
+        return failedDumpCount;
+    }
+
+    /**
+     * @return description of the last trigger, or <code>null</code> if none fired yet.
+     */
+    public synchronized String getLastTrigger() {
+        return lastTrigger;
+    }
+
+    public synchronized File getLastDumpFile() {
+        return lastDumpFile;
+    }
+
+    /**
+     * @return time from the last trigger to its dump being captured, in nanoseconds.
+     */
+    public synchronized long getLastTriggerLatencyNanos() {
+        return lastTriggerLatencyNanos;
+    }
+
+    public synchronized long getMaxTriggerLatencyNanos() {
+        return maxTriggerLatencyNanos;
+    }
+}